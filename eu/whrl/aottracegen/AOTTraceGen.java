@@ -11,6 +11,8 @@ import org.jf.dexlib.DexFile;
 import eu.whrl.aottracegen.exceptions.TraceMergingException;
 
 public class AOTTraceGen implements Plugin {
+	private static final int ACC_FINAL = 0x10;
+	
 	private Config config = null;
 	
 	//
@@ -44,6 +46,10 @@ public class AOTTraceGen implements Plugin {
 		
 		// Add all the methods declared in our original dex file
 		for (ClassDefItem clazz : dexFile.ClassDefsSection.getItems()) {
+			lookup.addClass(clazz.getClassType().getTypeDescriptor());
+			if ((clazz.getAccessFlags() & ACC_FINAL) != 0) {
+				lookup.addFinalClass(clazz.getClassType().getTypeDescriptor());
+			}
 			if (clazz.getClassData() != null) {
 				for (EncodedMethod method : clazz.getClassData().getDirectMethods()) {
 					lookup.addMethod(method.method.getMethodString(), method);
@@ -59,6 +65,10 @@ public class AOTTraceGen implements Plugin {
 			try {
 				DexFile libDexFile = new DexFile("framework/" + libName, false, false);
 				for (ClassDefItem clazz : libDexFile.ClassDefsSection.getItems()) {
+					lookup.addClass(clazz.getClassType().getTypeDescriptor());
+					if ((clazz.getAccessFlags() & ACC_FINAL) != 0) {
+						lookup.addFinalClass(clazz.getClassType().getTypeDescriptor());
+					}
 					if (clazz.getClassData() != null) {
 						for (EncodedMethod method : clazz.getClassData().getDirectMethods()) {
 							lookup.addMethod(method.method.getMethodString(), method);
@@ -3,8 +3,14 @@ package eu.whrl.aottracegen;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.jf.dexlib.Code.Instruction;
 import org.jf.dexlib.Code.Opcode;
@@ -13,6 +19,30 @@ import eu.whrl.aottracegen.converters.BytecodeToCConverter;
 import eu.whrl.aottracegen.converters.BytecodeToPrettyConverter;
 import eu.whrl.aottracegen.exceptions.CGeneratorFaultException;
 import eu.whrl.aottracegen.exceptions.UnimplementedInstructionException;
+import eu.whrl.aottracegen.ir.ArrayCachePass;
+import eu.whrl.aottracegen.ir.CardMarkingPass;
+import eu.whrl.aottracegen.ir.ConstantPropagationPass;
+import eu.whrl.aottracegen.ir.DevirtualizationPass;
+import eu.whrl.aottracegen.ir.IRInstruction;
+import eu.whrl.aottracegen.ir.IRLoop;
+import eu.whrl.aottracegen.ir.IRValue;
+import eu.whrl.aottracegen.ir.InliningPass;
+import eu.whrl.aottracegen.ir.KernelLoopPass;
+import eu.whrl.aottracegen.ir.LoopInvariantCodeMotionPass;
+import eu.whrl.aottracegen.ir.LoopStructuringPass;
+import eu.whrl.aottracegen.ir.NullCheckEliminationPass;
+import eu.whrl.aottracegen.ir.PassManager;
+import eu.whrl.aottracegen.ir.PrefetchPass;
+import eu.whrl.aottracegen.ir.RangeCheckEliminationPass;
+import eu.whrl.aottracegen.ir.RegisterPromotionPass;
+import eu.whrl.aottracegen.ir.ScalarObject;
+import eu.whrl.aottracegen.ir.ScalarReplacementPass;
+import eu.whrl.aottracegen.ir.StaticFieldCachePass;
+import eu.whrl.aottracegen.ir.SuspendCheckPlacementPass;
+import eu.whrl.aottracegen.ir.TraceIR;
+import eu.whrl.aottracegen.ir.TraceIRBuilder;
+import eu.whrl.aottracegen.ir.TypeInferencePass;
+import eu.whrl.aottracegen.ir.VregType;
 
 public class CTraceGenerator {
 	private CodeGenContext context;
@@ -20,6 +50,13 @@ public class CTraceGenerator {
 	private boolean prepared;
 	private BytecodeToCConverter converter;
 	private BytecodeToPrettyConverter stringConverter;
+	private PassManager passManager;
+	private StringBuilder body;
+	
+	// Thread.cardTable, and what dvmMarkCard does to a card
+	private static final int offsetThreadCardTable = 56;
+	private static final int gcCardShift = 7;
+	private static final int gcCardDirty = 0x70;
 	
 	//
 	// Section where we define...
@@ -107,6 +144,30 @@ public class CTraceGenerator {
 		prepared = false;
 		converter = new BytecodeToCConverter();
 		stringConverter = new BytecodeToPrettyConverter(false /* not LLVM mode */);
+		passManager = new PassManager();
+		passManager.addPass(new ConstantPropagationPass());
+		if (context.config.inlineMaxSize > 0) {
+			// devirtualized calls are only worth the class guard if they're inlined
+			passManager.addPass(new DevirtualizationPass());
+			passManager.addPass(new InliningPass());
+		}
+		passManager.addPass(new ScalarReplacementPass());
+		passManager.addPass(new NullCheckEliminationPass());
+		passManager.addPass(new RangeCheckEliminationPass());
+		passManager.addPass(new ArrayCachePass());
+		passManager.addPass(new StaticFieldCachePass());
+		passManager.addPass(new CardMarkingPass());
+		passManager.addPass(new LoopInvariantCodeMotionPass());
+		passManager.addPass(new LoopStructuringPass());
+		if (context.config.breakFlagCheckMode) {
+			passManager.addPass(new SuspendCheckPlacementPass());
+		}
+		if (context.config.promoteVregs) {
+			passManager.addPass(new RegisterPromotionPass());
+		}
+		passManager.addPass(new TypeInferencePass());
+		passManager.addPass(new KernelLoopPass());
+		passManager.addPass(new PrefetchPass());
 	}
 	
 	/*
@@ -150,6 +211,11 @@ public class CTraceGenerator {
 		
 		curTrace.calculateRegisterInteraction(context);
 		
+		// Build the SSA form of the trace, and let the passes annotate it.
+		TraceIR ir = (new TraceIRBuilder(context)).build();
+		curTrace.ir = ir;
+		passManager.runPasses(context, ir);
+		
 		for (int successor : curTrace.successors) {
 			if (curTrace.containsCodeAddress(successor)) {
 				curTrace.meta.chainingCells.put(successor, new ChainingCell(ChainingCell.Type.BACKWARD_BRANCH, successor));
@@ -161,23 +227,54 @@ public class CTraceGenerator {
 		try {
 			// Everything that this calls MUST throw the IOException back up here!
 			determineInstructionsThatThrowExceptions();
-			emitFunctionStart();
 			
-			for (int i = 0; i < curTrace.getLength(); i++) {
-				emitForCodeAddress(curTrace.addresses.get(i));
+			// The body is generated first, so we know which departure points the
+			// function start has to define write-back macros for.
+			body = new StringBuilder();
+			List<IRLoop> openLoops = new ArrayList<IRLoop>();
+			for (IRInstruction inst : ir.instructions) {
+				IRLoop structuredLoop = getStructuredLoopStartingAt(ir, inst);
+				if (structuredLoop != null) {
+					openLoops.add(structuredLoop);
+					converter.setOpenLoop(structuredLoop);
+				}
+				
+				int start = body.length();
+				emitForInstruction(inst, "__L");
 				
 				// If we're the last instruction, make sure we jump to the correct exit.
-				int codeAddress = curTrace.addresses.get(i);
-				Instruction instruction = context.currentRegion.getInstructionAtCodeAddress(codeAddress);
-				int nextAddress = context.currentRegion.getNextCodeAddress(codeAddress, instruction);
+				boolean needControlFlow = needControlFlow(ir, inst);
+				if (needControlFlow) {
+					body.append("  " + converter.getGotoLabel(curTrace, inst, inst.nextAddress) + ";\n\n");
+				}
+				materializeAtExits(inst, start);
 				
-				if (needControlFlow(curTrace, i, nextAddress)) {
-					writer.write("  " + converter.getGotoLabel(curTrace, nextAddress) + ";\n\n");
+				if (inst.executable) {
+					updateChainingCells(curTrace, inst.instruction, inst.codeAddress, inst.nextAddress);
 				}
 				
-			 	updateChainingCells(curTrace, instruction, codeAddress, nextAddress);
+				// Close the loops that end here. Falling out of the bottom of the body has to
+				// leave the loop rather than go round again.
+				while (!openLoops.isEmpty() && openLoops.get(openLoops.size() - 1).lastIndex == inst.index) {
+					IRLoop loop = openLoops.remove(openLoops.size() - 1);
+					converter.setOpenLoop(openLoops.isEmpty() ? null : openLoops.get(openLoops.size() - 1));
+					if (!needControlFlow && canFallThrough(inst)) {
+						body.append("  break;\n");
+					}
+					body.append(String.format("  } // end of loop at %#x\n\n", loop.getStartAddress()));
+				}
 			}
 			
+			for (IRLoop loop : ir.loops) {
+				if (loop.versioned) {
+					emitVersionedLoop(ir, loop);
+				}
+			}
+			
+			emitFunctionStart();
+			removeUnusedChainingCells(curTrace);
+			writer.write(retypeRegisterReferences(ir, body.toString()));
+			
 			emitFunctionEnd();
 			
 		} catch (IOException e) {
@@ -195,38 +292,220 @@ public class CTraceGenerator {
 		}
 	}
 
-	private boolean needControlFlow(Trace trace, int currentAddressIdx, int nextAddress) {
-		if (opcodesThatCanReturn.contains(context.currentRegion.getInstructionAtCodeAddress(trace.addresses.get(currentAddressIdx)).opcode)) {
+	/*
+	 * Exits are only taken through the exit table, so the cells of successors that no
+	 * exit in the C leaves to (all their branches were folded away) can go.
+	 */
+	private void removeUnusedChainingCells(Trace curTrace) {
+		Iterator<ChainingCell> iterator = curTrace.meta.chainingCells.values().iterator();
+		while (iterator.hasNext()) {
+			ChainingCell cell = iterator.next();
+			if ((cell.type == ChainingCell.Type.NORMAL || cell.type == ChainingCell.Type.HOT) &&
+					!curTrace.meta.exitAddresses.contains(cell.codeAddress)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private boolean needControlFlow(TraceIR ir, IRInstruction inst) {
+		Trace trace = context.currentRegion.trace;
+		if (opcodesThatCanReturn.contains(inst.instruction.opcode) || !inst.executable || isAlwaysTaken(inst)) {
 			return false;
 		}
-		if (currentAddressIdx == (trace.getLength() - 1) && !trace.successors.isEmpty()) {
+		if (inst.index == (ir.instructions.size() - 1) && !trace.successors.isEmpty()) {
 			return true;
 		}
-		if (currentAddressIdx == (trace.getLength() - 1) && trace.successors.isEmpty()) {
+		if (inst.index == (ir.instructions.size() - 1) && trace.successors.isEmpty()) {
 			return false;
 		}
-		if (trace.addresses.get(currentAddressIdx+1) != nextAddress) {
+		if (ir.instructions.get(inst.index+1).codeAddress != inst.nextAddress) {
 			return true;
 		}
 		return false;
 	}
 	
+	private boolean canFallThrough(IRInstruction inst) {
+		Opcode opcode = inst.instruction.opcode;
+		return !opcodesThatCanReturn.contains(opcode) && !inst.successors.isEmpty() &&
+				opcode != Opcode.GOTO && opcode != Opcode.GOTO_16 && opcode != Opcode.GOTO_32 &&
+				inst.executable && !isAlwaysTaken(inst);
+	}
+	
+	/*
+	 * Is this an if that the ConstantPropagationPass showed always branches?
+	 */
+	private boolean isAlwaysTaken(IRInstruction inst) {
+		return inst.constantBranchTarget != -1 && inst.constantBranchTarget != inst.nextAddress;
+	}
+	
+	private IRLoop getStructuredLoopStartingAt(TraceIR ir, IRInstruction inst) {
+		for (IRLoop loop : ir.loops) {
+			if (loop.structured && loop.firstIndex == inst.index) {
+				return loop;
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Emit the check-free copy of a versioned loop. It's only entered from the guard
+	 * in front of the loop's header, and it leaves the same way the original does.
+	 */
+	private void emitVersionedLoop(TraceIR ir, IRLoop loop) throws IOException, UnimplementedInstructionException {
+		List<IRInstruction> loopInstructions = new ArrayList<IRInstruction>();
+		for (IRInstruction inst : ir.instructions) {
+			if (loop.contains(inst)) {
+				loopInstructions.add(inst);
+			}
+		}
+		
+		if (loop.kernelTest != null) {
+			body.append(String.format("  // --- Vectorizable copy of the loop at %#x ---\n\n", loop.getStartAddress()));
+			int start = body.length();
+			body.append(converter.emitKernelLoop(context, loop));
+			materializeAtExits(loop.kernelTest, start);
+			return;
+		}
+		
+		body.append(String.format("  // --- Versioned copy of the loop at %#x ---\n\n", loop.getStartAddress()));
+		converter.setFastLoop(loop);
+		for (int i = 0; i < loopInstructions.size(); i++) {
+			IRInstruction inst = loopInstructions.get(i);
+			int start = body.length();
+			emitForInstruction(inst, "__F");
+			
+			if (canFallThrough(inst) &&
+					(i == loopInstructions.size() - 1 || loopInstructions.get(i+1).codeAddress != inst.nextAddress)) {
+				body.append("  " + converter.getGotoLabel(context.currentRegion.trace, inst, inst.nextAddress) + ";\n\n");
+			}
+			materializeAtExits(inst, start);
+		}
+		converter.setFastLoop(null);
+	}
+	
+	/*
+	 * Have the exits in the body from start on, emitted for inst, allocate the scalar
+	 * replaced objects that are live there.
+	 */
+	private void materializeAtExits(IRInstruction inst, int start) {
+		if (inst.materializeBefore.isEmpty() && inst.materializeAfter.isEmpty()) {
+			return;
+		}
+		String code = body.substring(start);
+		body.setLength(start);
+		body.append(converter.emitMaterializations(context.currentRegion.trace, inst, code));
+	}
+	
 	/*
 	 * Emit the function signature, basically.
 	 */
 	private void emitFunctionStart() throws IOException {
-		writer.write("#define TRACE_EXIT(a) { return a+1; }\n");
-		writer.write("#define TRACE_EXCEPTION(a) { return -1-a; }\n");
-		writer.write("#define TRACE_RETURN(a) { return 0; }\n");
+		TraceIR ir = context.currentRegion.trace.ir;
+		
+		if (ir.promoteRegisters) {
+			writer.write("#define TRACE_EXIT(a) { TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS TRACE_FLUSH_EXIT_##a TRACE_CALL_FLAGS_EXIT_##a return TRACE_EXIT_ID_##a; }\n");
+			writer.write("#define TRACE_EXCEPTION(a) { TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS TRACE_FLUSH_EXCEPTION_##a TRACE_CALL_FLAGS_EXCEPTION_##a return -1-a; }\n");
+			writer.write("#define TRACE_RETURN(a) { TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS TRACE_CALL_FLAGS_RETURN_##a return 0; }\n");
+			writer.write("#define TRACE_FLUSH_CALL(a) TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS TRACE_FLUSH_CALL_##a\n");
+			writer.write("#define TRACE_FLUSH_ALL TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS " + getFlushString(context.currentRegion.trace.meta.dirtyRegs) + "\n");
+			emitFlushMacros("EXIT", ir.exitFlushes);
+			emitFlushMacros("EXCEPTION", ir.exceptionFlushes);
+			emitFlushMacros("FLUSH_CALL", ir.callFlushes);
+		} else {
+			writer.write("#define TRACE_EXIT(a) { TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS TRACE_CALL_FLAGS_EXIT_##a return TRACE_EXIT_ID_##a; }\n");
+			writer.write("#define TRACE_EXCEPTION(a) { TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS TRACE_CALL_FLAGS_EXCEPTION_##a return -1-a; }\n");
+			writer.write("#define TRACE_RETURN(a) { TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS TRACE_CALL_FLAGS_RETURN_##a return 0; }\n");
+			writer.write("#define TRACE_FLUSH_CALL(a) TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS\n");
+			writer.write("#define TRACE_FLUSH_ALL TRACE_FLUSH_STATICS TRACE_FLUSH_CARDS\n");
+		}
+		emitStaticFieldMacros();
+		emitCardMarkMacros();
+		emitMonitorMacros();
+		emitCallFlagMacros();
+		writer.write("#define TRACE_EXIT_ID(a) TRACE_EXIT_ID_##a\n");
+		emitExitIds();
 		writer.write("#define TRACE_DEPARTURE_INFO int\n");
 		writer.write("\n");
 		writer.write("extern double __hiya_sin(double v, int *lit);\n");
 		writer.write("extern double __hiya_cos(double v, int *lit);\n");
 		writer.write("extern double __hiya_sqrt(double v, int *lit);\n");
+		writer.write("extern void __hiya_memcpy(void *dest, const void *src, int n, int *lit);\n");
+		// the helpers that throw to a catch handler in the trace are named after its address
+		Set<String> throwHelpers = new TreeSet<String>();
+		Matcher matcher = Pattern.compile("__hiya_throw_\\w+").matcher(body);
+		while (matcher.find()) {
+			throwHelpers.add(matcher.group());
+		}
+		for (String helper : throwHelpers) {
+			writer.write(String.format("extern void %s(int a, int b, int *lit, int *fp);\n", helper));
+		}
 		writer.write("\n");
 		
 		writer.write(String.format("// --- TRACE %2d START (%s;%s;%s) ---\n", context.currentRegionIndex, context.currentRegion.clazz, context.currentRegion.method, context.currentRegion.signature));
-		writer.write("TRACE_DEPARTURE_INFO trace(int *lit, int *v, char *self) {\n");
+		writer.write("TRACE_DEPARTURE_INFO trace(int *lit, int *fp, char *self) {\n");
+		if (ir.promoteRegisters) {
+			// The trace works on locals, which only go back to the frame when we leave.
+			Set<Integer> touchedRegs = new TreeSet<Integer>(context.currentRegion.trace.meta.readRegs);
+			touchedRegs.addAll(context.currentRegion.trace.meta.dirtyRegs);
+			writer.write(String.format("\tint v[%d];\n", Math.max(ir.numRegisters, 1)));
+			for (Map.Entry<Integer,VregType> entry : ir.registerTypes.entrySet()) {
+				String members = (entry.getValue() == VregType.FLOAT) ? "float f; int w[1];" : "double d; long long l; int w[2];";
+				writer.write(String.format("\tunion { %s } %s;\n", members, ir.getTypedUnion(entry.getKey())));
+			}
+			for (int reg : touchedRegs) {
+				if (getTypedWord(ir, reg) == null) {
+					writer.write(String.format("\tv[%d] = fp[%d];\n", reg, reg));
+				}
+			}
+			for (Map.Entry<Integer,VregType> entry : ir.registerTypes.entrySet()) {
+				int reg = entry.getKey();
+				if (touchedRegs.contains(reg) || (entry.getValue() == VregType.DOUBLE && touchedRegs.contains(reg + 1))) {
+					String type = (entry.getValue() == VregType.FLOAT) ? "float" : "double";
+					writer.write(String.format("\t%s = *((%s*) (fp + %d));\n", ir.getTypedLocal(reg), type, reg));
+				}
+			}
+			writer.write("\n");
+		} else {
+			writer.write("\tint *v = fp;\n\n");
+		}
+		emitStaticFieldLocals();
+		if (body.indexOf("TRACE_MARK_CARD") != -1) {
+			writer.write(String.format("\tchar *cards = *((char**) (self + %d));\n", offsetThreadCardTable));
+			for (String slot : ir.cardSlots) {
+				writer.write(String.format("\tint %s = 0;\n", slot));
+			}
+			writer.write("\n");
+		}
+		if (!ir.cachedArrays.isEmpty()) {
+			for (IRValue array : ir.cachedArrays) {
+				writer.write(String.format("\tchar *%s; int %s;\n", ArrayCachePass.getDataName(array), ArrayCachePass.getLengthName(array)));
+			}
+			writer.write("\n");
+		}
+		boolean anyHoisted = false;
+		for (IRLoop loop : ir.loops) {
+			for (IRInstruction inst : loop.hoisted) {
+				writer.write(String.format("\tint %s;\n", LoopInvariantCodeMotionPass.getHoistedName(inst)));
+				anyHoisted = true;
+			}
+		}
+		if (anyHoisted) {
+			writer.write("\n");
+		}
+		for (ScalarObject object : ir.scalarObjects) {
+			String words = "";
+			for (int offset : object.words) {
+				words += (words.isEmpty() ? "" : ", ") + object.getWordName(offset);
+			}
+			writer.write(String.format("\t// fields of the object new-instance makes at %#x\n", object.allocation.codeAddress));
+			if (!words.isEmpty()) {
+				writer.write(String.format("\tint %s;\n", words));
+			}
+			writer.write("\n");
+		}
+		if (ir.suspendPollInterval > 0 && !ir.loops.isEmpty()) {
+			writer.write(String.format("\tint suspendCountdown = %d;\n\n", ir.suspendPollInterval));
+		}
 		if (context.config.forceEarlyExit) {
 			writer.write("\tint tripCount = 0;\n\n");
 		}
@@ -235,6 +514,222 @@ public class CTraceGenerator {
 		}
 	}
 	
+	/*
+	 * Static field stores the trace keeps in locals go back to the field whenever we
+	 * leave or make a call, and are read again after the call.
+	 */
+	private void emitStaticFieldMacros() throws IOException {
+		TraceIR ir = context.currentRegion.trace.ir;
+		TraceMetadata meta = context.currentRegion.trace.meta;
+		String flush = "";
+		String reload = "";
+		for (int field : ir.writtenStatics) {
+			int loc = meta.addLiteralPoolTypeAndValue(LiteralPoolType.STATIC_FIELD, field);
+			String type = ir.cachedStatics.get(field);
+			flush += String.format("*((%s*) sf%d) = sv%d; ", type, loc, loc);
+			reload += String.format("sv%d = *((%s*) sf%d); ", loc, type, loc);
+		}
+		writer.write("#define TRACE_FLUSH_STATICS " + flush + "\n");
+		writer.write("#define TRACE_RELOAD_STATICS " + reload + "\n");
+	}
+	
+	/*
+	 * Card marks the CardMarkingPass put off are made whenever we leave or make a call.
+	 */
+	private void emitCardMarkMacros() throws IOException {
+		String flush = "";
+		for (String slot : context.currentRegion.trace.ir.cardSlots) {
+			flush += String.format("if (%1$s != 0) { TRACE_MARK_CARD(%1$s) %1$s = 0; } ", slot);
+		}
+		writer.write(String.format("#define TRACE_MARK_CARD(o) { cards[((unsigned int) (o)) >> %d] = %#x; }\n",
+				gcCardShift, gcCardDirty));
+		writer.write("#define TRACE_FLUSH_CARDS " + flush + "\n");
+	}
+	
+	/*
+	 * monitor-enter/exit take thin locks themselves. TRACE_CAS is 0 if it swapped *p from
+	 * o to n, and we don't retry if it didn't. The code is Thumb-2, so strexeq needs an it.
+	 */
+	private void emitMonitorMacros() throws IOException {
+		writer.write("#define TRACE_CAS(p, o, n) ({ int status, prev; __asm__ __volatile__(\"ldrex %1, [%2]\\n\\tmov %0, #1\\n\\tteq %1, %3\\n\\tit eq\\n\\tstrexeq %0, %4, [%2]\" : \"=&r\" (status), \"=&r\" (prev) : \"r\" (p), \"r\" (o), \"r\" (n) : \"cc\", \"memory\"); status; })\n");
+		writer.write("#define TRACE_MEMBAR __asm__ __volatile__(\"dmb\" : : : \"memory\");\n");
+	}
+	
+	/*
+	 * Define the clearing of the marks calls leave in the suspend flags for every departure
+	 * point the body uses. Only those a call may have come before clear them (see
+	 * SuspendCheckPlacementPass).
+	 */
+	private void emitCallFlagMacros() throws IOException {
+		TraceIR ir = context.currentRegion.trace.ir;
+		writer.write("#define TRACE_FLAGS_AFTER_CALLS ({ int flags = *((int*)(self+40)) & ~0x4000; (flags == 0x10000) ? 0 : flags; })\n");
+		writer.write("#define TRACE_CLEAR_CALL_FLAGS *((int*)(self+40)) = TRACE_FLAGS_AFTER_CALLS;\n");
+		for (String kind : new String[] { "EXIT", "EXCEPTION", "RETURN" }) {
+			Set<String> defined = new TreeSet<String>();
+			Matcher matcher = Pattern.compile("TRACE_" + kind + "\\((0x[0-9a-f]+|[0-9]+)\\)").matcher(body);
+			while (matcher.find()) {
+				String arg = matcher.group(1);
+				if (!defined.add(arg)) {
+					continue;
+				}
+				int codeAddress = Integer.decode(arg);
+				boolean pending = kind.equals("EXIT") ? SuspendCheckPlacementPass.isCallFlagsPendingAtExit(ir, codeAddress) :
+						SuspendCheckPlacementPass.isCallFlagsPendingAt(ir, codeAddress);
+				writer.write(String.format("#define TRACE_CALL_FLAGS_%s_%s%s\n", kind, arg, pending ? " TRACE_CLEAR_CALL_FLAGS" : ""));
+			}
+		}
+	}
+	
+	/*
+	 * Load the address of every static field the trace uses from the literal pool once,
+	 * and the value of the ones the StaticFieldCachePass picked.
+	 */
+	private void emitStaticFieldLocals() throws IOException {
+		TraceIR ir = context.currentRegion.trace.ir;
+		TraceMetadata meta = context.currentRegion.trace.meta;
+		boolean any = false;
+		for (int loc = 0; loc < meta.literalPoolSize; loc++) {
+			if (meta.literalPoolTypes.get(loc) != LiteralPoolType.STATIC_FIELD) {
+				continue;
+			}
+			writer.write(String.format("\tchar *sf%d = (char*) lit[%d];\n", loc, loc));
+			String type = ir.cachedStatics.get(meta.literalPoolIndices.get(loc));
+			if (type != null) {
+				writer.write(String.format("\t%1$s sv%2$d = *((%1$s*) sf%2$d);\n", type, loc));
+			}
+			any = true;
+		}
+		if (any) {
+			writer.write("\n");
+		}
+	}
+	
+	/*
+	 * Give every code address the body leaves the trace to an exit id, which is what the
+	 * trace returns to leave there. The epilogue uses the id to index a table of branches
+	 * to the chaining cells.
+	 */
+	private void emitExitIds() throws IOException {
+		TraceMetadata meta = context.currentRegion.trace.meta;
+		Set<String> defined = new TreeSet<String>();
+		Pattern pattern = Pattern.compile("TRACE_EXIT(?:_ID)?\\((0x[0-9a-f]+|[0-9]+)\\)");
+		Matcher matcher = pattern.matcher(body);
+		while (matcher.find()) {
+			String arg = matcher.group(1);
+			if (defined.contains(arg)) {
+				continue;
+			}
+			defined.add(arg);
+			
+			int codeAddress = Integer.decode(arg);
+			ChainingCell cell = meta.chainingCells.get(codeAddress);
+			if (cell == null || cell.type == ChainingCell.Type.INVOKE_PREDICTED || cell.type == ChainingCell.Type.INVOKE_SINGLETON ||
+					cell.type == ChainingCell.Type.INVOKE_SUPER_SINGLETON) {
+				System.err.println(String.format("No chaining cell for the exit to %#x, adding one", codeAddress));
+				meta.chainingCells.put(codeAddress, new ChainingCell(ChainingCell.Type.NORMAL, codeAddress));
+			}
+			writer.write(String.format("#define TRACE_EXIT_ID_%s %d\n", arg, meta.getExitId(codeAddress)));
+		}
+	}
+	
+	/*
+	 * Define the write-back macro for every departure point of this kind that the body uses.
+	 * Departure points we don't have an entry for write back everything the trace writes.
+	 */
+	private void emitFlushMacros(String kind, Map<Integer,Set<Integer>> flushes) throws IOException {
+		Set<String> defined = new TreeSet<String>();
+		Pattern pattern = Pattern.compile("TRACE_" + kind + "\\((0x[0-9a-f]+|[0-9]+)\\)");
+		Matcher matcher = pattern.matcher(body);
+		while (matcher.find()) {
+			String arg = matcher.group(1);
+			if (defined.contains(arg)) {
+				continue;
+			}
+			defined.add(arg);
+			
+			Set<Integer> regs = flushes.get(Integer.decode(arg));
+			if (regs == null) {
+				regs = context.currentRegion.trace.meta.dirtyRegs;
+			}
+			String macroName = kind.equals("FLUSH_CALL") ? "TRACE_FLUSH_CALL_" : "TRACE_FLUSH_" + kind + "_";
+			writer.write(String.format("#define %s%s %s\n", macroName, arg, getFlushString(regs)));
+		}
+	}
+	
+	private String getFlushString(Set<Integer> regs) {
+		TraceIR ir = context.currentRegion.trace.ir;
+		String result = "";
+		for (int reg : regs) {
+			String local = ir.getTypedLocal(reg);
+			if (local != null && ir.registerTypes.get(reg) == VregType.FLOAT) {
+				result += String.format("*((float*) (fp + %d)) = %s; ", reg, local);
+			} else if (local != null && regs.contains(reg + 1)) {
+				result += String.format("*((double*) (fp + %d)) = %s; ", reg, local);
+			} else if (local != null || getTypedWord(ir, reg) != null) {
+				if (!(ir.registerTypes.get(reg - 1) == VregType.DOUBLE && regs.contains(reg - 1))) {
+					result += String.format("fp[%d] = %s; ", reg, getTypedWord(ir, reg));
+				}
+			} else {
+				result += String.format("fp[%d] = v[%d]; ", reg, reg);
+			}
+		}
+		return result;
+	}
+	
+	/*
+	 * The C int lvalue of the word of the float/double union that holds reg, or null if
+	 * reg is in v[].
+	 */
+	private String getTypedWord(TraceIR ir, int reg) {
+		return ir.getTypedMember(reg, "int");
+	}
+	
+	/*
+	 * The converter addresses vregs as v[n], *((type*) (v + n)) and (type*) (v + n). For
+	 * vregs the TypeInferencePass gave a float/double union, turn those into the member of
+	 * the union of that type, or its address, instead. A vreg only gets a union if every
+	 * value it holds has one type, so the FP accesses always have a member to use. Others
+	 * (bytes, shorts) go through the address of the int word, as v[] would have.
+	 */
+	private String retypeRegisterReferences(TraceIR ir, String c) {
+		if (ir.registerTypes.isEmpty()) {
+			return c;
+		}
+		Matcher matcher = Pattern.compile("(\\*\\()?(?:\\(([a-z ]+)\\*\\) ?)?\\(v \\+ (\\d+)\\)(\\))?|\\bv\\[(\\d+)\\]").matcher(c);
+		StringBuffer result = new StringBuffer();
+		while (matcher.find()) {
+			String replacement = matcher.group();
+			if (matcher.group(5) != null) {
+				String word = getTypedWord(ir, Integer.parseInt(matcher.group(5)));
+				if (word != null) {
+					replacement = word;
+				}
+			} else {
+				int reg = Integer.parseInt(matcher.group(3));
+				String type = (matcher.group(2) == null) ? "int" : matcher.group(2);
+				// unsigned types may alias their signed member
+				String memberType = type.replaceFirst("^unsigned ", "");
+				String member = ir.getTypedMember(reg, memberType);
+				String pointer = null;
+				if (member != null) {
+					pointer = type.equals(memberType) ? "&" + member : String.format("(%s*) &%s", type, member);
+				} else if (getTypedWord(ir, reg) != null) {
+					pointer = String.format("(%s*) &%s", type, getTypedWord(ir, reg));
+				}
+				String before = (matcher.group(1) == null) ? "" : matcher.group(1);
+				String after = (matcher.group(4) == null) ? "" : matcher.group(4);
+				if (member != null && type.equals(memberType) && !before.isEmpty() && !after.isEmpty()) {
+					replacement = member;
+				} else if (pointer != null) {
+					replacement = before + "(" + pointer + ")" + after;
+				}
+			}
+			matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+		}
+		matcher.appendTail(result);
+		return result.toString();
+	}
+	
 	/*
 	 * Emit the functions that exit labels call. This will be required to correctly identify where the trace is going
 	 * when we're generating our injectable trace.
@@ -259,26 +754,45 @@ public class CTraceGenerator {
 	/*
 	 * Emit the comment, label and actual C for the given instruction.
 	 */
-	private void emitForCodeAddress(int codeAddress) throws IOException, UnimplementedInstructionException {
-		Instruction instruction = context.currentRegion.getInstructionAtCodeAddress(codeAddress);
+	private void emitForInstruction(IRInstruction inst, String labelPrefix) throws IOException, UnimplementedInstructionException {
+		Instruction instruction = inst.instruction;
+		int codeAddress = inst.codeAddress;
 		
 		if (instruction.opcode != Opcode.NOP) {
-			writer.write(stringConverter.convert(context, codeAddress));
-			writer.write(String.format("  __L%#x:\n", codeAddress));
+			body.append(stringConverter.convert(context, codeAddress));
+			
+			// Jumps into a loop from outside come through its preheader.
+			IRLoop preheaderLoop = context.currentRegion.trace.ir.getLoopWithPreheader(codeAddress);
+			if (preheaderLoop != null && labelPrefix.equals("__L")) {
+				body.append(String.format("  __P%#x:\n", codeAddress));
+				body.append(converter.emitLoopPreheader(context.currentRegion.trace, preheaderLoop));
+			}
+			
+			body.append(String.format("  %s%#x:\n", labelPrefix, codeAddress));
+			if (labelPrefix.equals("__L") && getStructuredLoopStartingAt(context.currentRegion.trace.ir, inst) != null) {
+				body.append("  for (;;) {\n");
+			}
+			IRLoop loop = context.currentRegion.trace.ir.getLoopWithHeader(codeAddress);
+			if (loop != null && !loop.prefetches.isEmpty()) {
+				body.append(converter.emitPrefetches(loop));
+			}
 			
 			if (context.config.forceEarlyExit && (codeAddress == context.config.forceEarlyExitCodeAddress)) {
-				writer.write("  // Forced to exit early...\n");
-				writer.write(String.format("  if (++tripCount == %d) TRACE_EXCEPTION(%#x)\n\n", context.config.forceEarlyExitTripCount, codeAddress));
+				body.append("  // Forced to exit early...\n");
+				body.append(String.format("  if (++tripCount == %d) TRACE_EXCEPTION(%#x)\n\n", context.config.forceEarlyExitTripCount, codeAddress));
 				return;
 			}
 			
-			if (context.config.breakFlagCheckMode && context.currentRegion.trace.meta.backwardsBranchTargets.contains(codeAddress)) {
-				writer.write("  // Backwards Branch Target - must check flags!\n");
-				writer.write(String.format("  if ( *((int*)(self+40)) != 0 ) TRACE_EXCEPTION(%#x)\n", codeAddress));
+			// Natural loops test the flags on their back-edges instead (SuspendCheckPlacementPass).
+			if (context.config.breakFlagCheckMode && context.currentRegion.trace.meta.backwardsBranchTargets.contains(codeAddress) &&
+					context.currentRegion.trace.ir.getLoopWithHeader(codeAddress) == null) {
+				body.append("  // Backwards Branch Target - must check flags!\n");
+				body.append(String.format("  if ( %s != 0 ) TRACE_EXCEPTION(%#x)\n",
+						BytecodeToCConverter.getSuspendFlags(inst.callFlagsPending), codeAddress));
 			}	
 			
-			writer.write(converter.convert(context, codeAddress));
-			writer.write("\n");
+			body.append(converter.convert(context, inst));
+			body.append("\n");
 		}
 	}
 	
@@ -11,7 +11,7 @@ public class ChainingCell {
 	}
 	
 	public Type type;
-	public int codeAddress; // in INVOKE_SINGLE, this is actually the methodIndex
+	public int codeAddress; // in INVOKE_SINGLE, this is actually the methodIndex (see TraceMetadata.getSingletonCellKey)
 	
 	public ChainingCell(Type t, int pc) {
 		type = t;
@@ -152,7 +152,7 @@ public class CodeGenerator {
 					"-slp-vectorizer -bb-vectorize -instcombine -gvn -loop-unroll -adce -simplifycfg -instcombine " +
 					"-strip-dead-prototypes -globaldce -constmerge";
 			
-			String llcOptions = "-mcpu=cortex-a15 -march=thumb -O2 -regalloc=basic -code-model=default -float-abi=hard -pre-RA-sched=fast -relocation-model=static";
+			String llcOptions = "-mcpu=" + context.config.targetCpu + " -march=thumb -O2 -regalloc=basic -code-model=default -float-abi=hard -pre-RA-sched=fast -relocation-model=static";
 			
 			clangCommand = String.format("%s -emit-llvm -S %s -o /sdcard/bitcode.bc /sdcard/%s", clangBinary, clangOptions, cTraceFileName);
 			optCommand = String.format("%s -S %s -o /sdcard/bitcode_opt.bc /sdcard/bitcode.bc", optBinary, optOptions);
@@ -160,7 +160,7 @@ public class CodeGenerator {
 			
 		} else {
 			
-			String clangOptions = "-target armv7a -mcpu=cortex-a15 -mtune=cortex-a15 -O3 -funsafe-math -funroll-loops -mfpu=neon -mfloat-abi=hard -mthumb";
+			String clangOptions = "-target armv7a -mcpu=" + context.config.targetCpu + " -mtune=" + context.config.targetCpu + " -O3 -funsafe-math -funroll-loops -mfpu=neon -mfloat-abi=hard -mthumb";
 			
 			clangCommand = String.format("%s %s -S -o /sdcard/%s /sdcard/%s", clangBinary, clangOptions, asmTraceFileName, cTraceFileName);
 		}
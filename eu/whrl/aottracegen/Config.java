@@ -30,6 +30,8 @@ public class Config {
 	public boolean trailMode = false;
 	
 	public boolean breakFlagCheckMode = false;
+	// 0 checks on every loop iteration, N polls once every N loop iterations
+	public int breakFlagPollInterval = 0;
 	
 	public boolean vultureMode = false;
 	
@@ -49,6 +51,20 @@ public class Config {
 	
 	public boolean enableRemoveCBZs = true;
 	
+	public boolean dumpIR = false;
+	
+	public boolean promoteVregs = false;
+	
+	// Largest callee (in code units) to inline, 0 to turn inlining off, and the
+	// total size of the callees inlined into one trace
+	public int inlineMaxSize = 24;
+	public int inlineBudget = 256;
+	
+	// CPU the C is compiled for, and how many iterations ahead loops that walk arrays
+	// prefetch them: -1 for the CPU's default, 0 for no prefetching
+	public String targetCpu = "cortex-a15";
+	public int prefetchDistance = -1;
+	
 	public void loadConfigFile(String filename) {
 		File file = new File(filename);
 		FileReader reader = null;
@@ -125,6 +141,9 @@ public class Config {
 					trailMode = true;
 				} else if (line.startsWith("vulture")) {
 					vultureMode = true;
+				} else if (line.startsWith("breakflagpoll")) {
+					breakFlagPollInterval = Integer.parseInt(line.substring(14, line.length()).trim());
+					breakFlagCheckMode = true;
 				} else if (line.startsWith("breakflag")) {
 					breakFlagCheckMode = true;
 				} else if (line.startsWith("printvregs")) {
@@ -144,6 +163,18 @@ public class Config {
 					emulateJitMode = true;
 				} else if (line.startsWith("no-remove-cbz")) {
 					enableRemoveCBZs = false;
+				} else if (line.startsWith("promotevregs")) {
+					promoteVregs = true;
+				} else if (line.startsWith("inlinesize")) {
+					inlineMaxSize = Integer.parseInt(line.substring(11, line.length()));
+				} else if (line.startsWith("inlinebudget")) {
+					inlineBudget = Integer.parseInt(line.substring(13, line.length()));
+				} else if (line.startsWith("cpu")) {
+					targetCpu = line.substring(4, line.length()).trim();
+				} else if (line.startsWith("prefetch")) {
+					prefetchDistance = Integer.parseInt(line.substring(9, line.length()));
+				} else if (line.startsWith("dumpir")) {
+					dumpIR = true;
 				} else if (line.startsWith("cflags")) {
 					cflags = line.substring(6, line.length());
 				} else if (line.startsWith("libs")) {
@@ -162,6 +193,23 @@ public class Config {
 		}
 	}
 	
+	/*
+	 * Get how many iterations ahead to prefetch array elements. The A9 waits longer for
+	 * memory and its prefetcher is weaker than the A15's, so it wants more.
+	 */
+	public int getPrefetchDistance() {
+		if (prefetchDistance >= 0) {
+			return prefetchDistance;
+		}
+		if (targetCpu.equals("cortex-a9")) {
+			return 16;
+		}
+		if (targetCpu.equals("cortex-a15")) {
+			return 8;
+		}
+		return 0;
+	}
+	
 	/*
 	 * Checks if the config file we tried to load in loadConfigFile() is valid.
 	 */
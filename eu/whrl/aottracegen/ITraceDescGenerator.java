@@ -44,6 +44,10 @@ public class ITraceDescGenerator {
 		literalPoolTypeMap.put(LiteralPoolType.CALL_COS, "call_cos");
 		literalPoolTypeMap.put(LiteralPoolType.CALL_SIN, "call_sin");
 		literalPoolTypeMap.put(LiteralPoolType.CALL_SQRT, "call_sqrt");
+		literalPoolTypeMap.put(LiteralPoolType.CALL_MEMCPY, "call_memcpy");
+		literalPoolTypeMap.put(LiteralPoolType.CALL_DVMTHROWNULLPOINTEREXCEPTION, "call_dvmthrownullpointerexception");
+		literalPoolTypeMap.put(LiteralPoolType.CALL_DVMTHROWARRAYINDEXOUTOFBOUNDSEXCEPTION, "call_dvmthrowarrayindexoutofboundsexception");
+		literalPoolTypeMap.put(LiteralPoolType.CALL_DVMTHROWARITHMETICEXCEPTION, "call_dvmthrowarithmeticexception");
 		literalPoolTypeMap.put(LiteralPoolType.CALL_DVMANNOUNCE, "call_dvmannounce");
 		literalPoolTypeMap.put(LiteralPoolType.CALL_DVMANNOUNCEINT, "call_dvmannounceint");
 		literalPoolTypeMap.put(LiteralPoolType.CALL_DVMBLOCKREGION, "call_dvmblockregion");
@@ -7,6 +7,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import eu.whrl.aottracegen.armgen.AssemblyBlob;
@@ -230,6 +231,30 @@ public class ITraceGenerator {
 			curTrace.meta.addLiteralPoolType(LiteralPoolType.RETURN_HANDLER);
 		}
 
+		// fill-array-data tables go right in front of the literal pool, the last first, so the
+		// trace finds them at the offsets TraceMetadata.addArrayData gave it.
+		if (curTrace.meta.arrayDataSize > 0) {
+			writer.write("\t.align 4\n");
+			writer.write(String.format("\t.space %d\n", (16 - curTrace.meta.arrayDataSize % 16) % 16));
+			List<Integer> tables = new ArrayList<Integer>(curTrace.meta.arrayData.keySet());
+			Collections.reverse(tables);
+			for (int codeAddress : tables) {
+				byte[] data = curTrace.meta.arrayData.get(codeAddress);
+				writer.write(String.format("ArrayData_T%d_%#x:\n", context.currentRegionIndex, codeAddress));
+				for (int i = 0; i < data.length; i += 16) {
+					String bytes = "";
+					for (int j = i; j < data.length && j < i + 16; j++) {
+						bytes += String.format("%s%#x", bytes.isEmpty() ? "" : ", ", data[j] & 0xff);
+					}
+					writer.write("\t.byte " + bytes + "\n");
+				}
+				int padding = ((data.length + 7) & ~7) - data.length;
+				if (padding > 0) {
+					writer.write(String.format("\t.space %d\n", padding));
+				}
+			}
+		}
+
 		// The literal pool is now at the start.
 		writer.write("\t.align 4\n");
 		writer.write(String.format("LiteralPool_T%d:\n", context.currentRegionIndex));
@@ -300,7 +325,7 @@ public class ITraceGenerator {
 		assemblyBlob.writeOut(writer);
 		writer.write("\n");
 		
-		// Exit code! r0 = {1 = exit, 2 = exception, 3 = return}, r1 = code address
+		// Exit code! r0 = {> 0 = exit id, < 0 = exception at code address -1-r0, 0 = return}
 		writer.write("# End of actual trace code, now for code to determine how we leave the trace:\n");
 		writer.write(String.format("Leave_T%d:\n", context.currentRegionIndex));
 		
@@ -342,29 +367,17 @@ public class ITraceGenerator {
 		}
 		
 		writer.write(String.format("Exits_T%d:\n", context.currentRegionIndex));
-		writer.write("\tsub\tr1, r0, #1\n");
-		
-		int jumpsProduced = 0;
-		int previousCodeAddress = 0;
-		for (ChainingCell cc : curTrace.meta.chainingCells.values()) {
-			if (cc.type == ChainingCell.Type.INVOKE_SINGLETON || cc.type == ChainingCell.Type.INVOKE_SUPER_SINGLETON ||
-					cc.type == ChainingCell.Type.INVOKE_PREDICTED) {
-				continue;
-			}
-			
-			writer.write(String.format("\t# Jump to offset %#x\n", cc.codeAddress));
-			if (jumpsProduced == 0) {
-				writer.write(String.format("\tmov\tr2, #%d\n", cc.codeAddress));
-				writer.write("\tcmp\tr1, r2\n");
-				previousCodeAddress = cc.codeAddress;
-			} else {
-				writer.write(String.format("\tadd\tr2, r2, #%d\n", cc.codeAddress - previousCodeAddress));
-				writer.write("\tcmp\tr1, r2\n");
-				previousCodeAddress = cc.codeAddress;
+		if (!curTrace.meta.exitAddresses.isEmpty()) {
+			// r0 is the exit id the C code returned, counting from 1
+			writer.write("\tsub\tr1, r0, #1\n");
+			writer.write("\ttbh\t[pc, r1, lsl #1]\n");
+			writer.write(String.format("ExitTable_T%d:\n", context.currentRegionIndex));
+			int exitId = 1;
+			for (int codeAddress : curTrace.meta.exitAddresses) {
+				writer.write(String.format("\t# Exit %d, jump to offset %#x\n", exitId++, codeAddress));
+				writer.write(String.format("\t.short\t(ChainingCell_T%1$d_A%2$#x-ExitTable_T%1$d)/2\n",
+						context.currentRegionIndex, codeAddress));
 			}
-			jumpsProduced++;
-			
-			writer.write(String.format("\tbeq\tChainingCell_T%d_A%#x\n", context.currentRegionIndex, cc.codeAddress));
 		}
 		
 		if (curTrace.meta.codeAddressesThatThrowExceptions.size() > 0) {
@@ -30,6 +30,10 @@ public enum LiteralPoolType {
 	CALL_SIN,
 	CALL_COS,
 	CALL_SQRT,
+	CALL_MEMCPY,
+	CALL_DVMTHROWNULLPOINTEREXCEPTION,
+	CALL_DVMTHROWARRAYINDEXOUTOFBOUNDSEXCEPTION,
+	CALL_DVMTHROWARITHMETICEXCEPTION,
 	CALL_DVMANNOUNCE,
 	CALL_DVMANNOUNCEINT,
 	CALL_DVMBLOCKREGION,
@@ -1,5 +1,9 @@
 package eu.whrl.aottracegen;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
 
 import org.jf.dexlib.DexFile;
@@ -23,6 +27,11 @@ public class MethodLookup {
 	
 	private static TreeMap<String,EncodedMethod> methodMap = new TreeMap<String,EncodedMethod>();
 	
+	// type descriptors of every class whose methods are in the map
+	private static List<String> loadedClasses = new ArrayList<String>();
+	// the ones among them that are declared final
+	private static Set<String> finalClasses = new HashSet<String>();
+	
 	public EncodedMethod getSuperQuickMethodFromInstruction(Instruction instruction, CodeGenContext context) {
 		/* get vtable index */
 		int vtableIndex = ((Instruction35ms)instruction).getVtableIndex();
@@ -57,10 +66,41 @@ public class MethodLookup {
 		return method;
 	}
 	
+	/*
+	 * Like getMethodByName, but for callers that expect some lookups to fail.
+	 */
+	public EncodedMethod findMethod(String methodName) {
+		return methodMap.get(methodName);
+	}
+	
 	public void addMethod(String name, EncodedMethod method) {
 		methodMap.put(name, method);
 	}
 	
+	public void addClass(String typeDescriptor) {
+		loadedClasses.add(typeDescriptor);
+	}
+	
+	public List<String> getLoadedClasses() {
+		return loadedClasses;
+	}
+	
+	public void addFinalClass(String typeDescriptor) {
+		finalClasses.add(typeDescriptor);
+	}
+	
+	/*
+	 * Is every instance of the type an instance of exactly that class? True of the final
+	 * classes we've loaded, and arrays of them or of primitives.
+	 */
+	public boolean isExactType(String typeDescriptor) {
+		String element = typeDescriptor.replaceFirst("^\\[+", "");
+		if (!element.equals(typeDescriptor) && element.length() == 1) {
+			return true;
+		}
+		return finalClasses.contains(element);
+	}
+	
 	public void initClassPath(DexFile dexFile) {
 		String[] classPathDirs = {".", "framework"};
 		String[] extraDirs = {};
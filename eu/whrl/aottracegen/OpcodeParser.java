@@ -0,0 +1,414 @@
+package eu.whrl.aottracegen;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jf.dexlib.Code.FiveRegisterInstruction;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.InvokeInstruction;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.RegisterRangeInstruction;
+import org.jf.dexlib.Code.SingleRegisterInstruction;
+import org.jf.dexlib.Code.ThreeRegisterInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+/*
+ * Works out which virtual registers an instruction reads and writes.
+ * Wide values count as two registers (vN and vN+1).
+ */
+public class OpcodeParser {
+
+	// Opcodes where vA is a wide register.
+	private static Set<Opcode> wideA;
+	static {
+		wideA = new TreeSet<Opcode>();
+		wideA.add(Opcode.MOVE_WIDE);
+		wideA.add(Opcode.MOVE_WIDE_FROM16);
+		wideA.add(Opcode.MOVE_WIDE_16);
+		wideA.add(Opcode.MOVE_RESULT_WIDE);
+		wideA.add(Opcode.RETURN_WIDE);
+		wideA.add(Opcode.CONST_WIDE_16);
+		wideA.add(Opcode.CONST_WIDE_32);
+		wideA.add(Opcode.CONST_WIDE);
+		wideA.add(Opcode.CONST_WIDE_HIGH16);
+		wideA.add(Opcode.AGET_WIDE);
+		wideA.add(Opcode.APUT_WIDE);
+		wideA.add(Opcode.IGET_WIDE);
+		wideA.add(Opcode.IPUT_WIDE);
+		wideA.add(Opcode.SGET_WIDE);
+		wideA.add(Opcode.SPUT_WIDE);
+		wideA.add(Opcode.IGET_WIDE_QUICK);
+		wideA.add(Opcode.IPUT_WIDE_QUICK);
+		wideA.add(Opcode.IGET_WIDE_VOLATILE);
+		wideA.add(Opcode.IPUT_WIDE_VOLATILE);
+		wideA.add(Opcode.SGET_WIDE_VOLATILE);
+		wideA.add(Opcode.SPUT_WIDE_VOLATILE);
+		wideA.add(Opcode.NEG_LONG);
+		wideA.add(Opcode.NOT_LONG);
+		wideA.add(Opcode.NEG_DOUBLE);
+		wideA.add(Opcode.INT_TO_LONG);
+		wideA.add(Opcode.INT_TO_DOUBLE);
+		wideA.add(Opcode.LONG_TO_DOUBLE);
+		wideA.add(Opcode.FLOAT_TO_LONG);
+		wideA.add(Opcode.FLOAT_TO_DOUBLE);
+		wideA.add(Opcode.DOUBLE_TO_LONG);
+		for (Opcode op : Opcode.values()) {
+			if (isLongOrDoubleArith(op)) {
+				wideA.add(op);
+			}
+		}
+	}
+
+	// Opcodes where vB is a wide register.
+	private static Set<Opcode> wideB;
+	static {
+		wideB = new TreeSet<Opcode>();
+		wideB.add(Opcode.MOVE_WIDE);
+		wideB.add(Opcode.MOVE_WIDE_FROM16);
+		wideB.add(Opcode.MOVE_WIDE_16);
+		wideB.add(Opcode.CMPL_DOUBLE);
+		wideB.add(Opcode.CMPG_DOUBLE);
+		wideB.add(Opcode.CMP_LONG);
+		wideB.add(Opcode.NEG_LONG);
+		wideB.add(Opcode.NOT_LONG);
+		wideB.add(Opcode.NEG_DOUBLE);
+		wideB.add(Opcode.LONG_TO_INT);
+		wideB.add(Opcode.LONG_TO_FLOAT);
+		wideB.add(Opcode.LONG_TO_DOUBLE);
+		wideB.add(Opcode.DOUBLE_TO_INT);
+		wideB.add(Opcode.DOUBLE_TO_LONG);
+		wideB.add(Opcode.DOUBLE_TO_FLOAT);
+		for (Opcode op : Opcode.values()) {
+			if (isLongOrDoubleArith(op) && !isLongShift2Addr(op)) {
+				wideB.add(op);
+			}
+		}
+	}
+
+	// Opcodes where vC is a wide register.
+	private static Set<Opcode> wideC;
+	static {
+		wideC = new TreeSet<Opcode>();
+		wideC.add(Opcode.CMPL_DOUBLE);
+		wideC.add(Opcode.CMPG_DOUBLE);
+		wideC.add(Opcode.CMP_LONG);
+		for (Opcode op : Opcode.values()) {
+			if (isLongOrDoubleArith(op) && !op.name.endsWith("/2addr")) {
+				if (op != Opcode.SHL_LONG && op != Opcode.SHR_LONG && op != Opcode.USHR_LONG) {
+					wideC.add(op);
+				}
+			}
+		}
+	}
+
+	private static boolean isLongOrDoubleArith(Opcode op) {
+		String name = op.name;
+		if (name == null) {
+			return false;
+		}
+		if (name.startsWith("cmp") || name.startsWith("neg") || name.startsWith("not") || name.contains("-to-")) {
+			return false;
+		}
+		return name.contains("-long") || name.contains("-double");
+	}
+
+	private static boolean isLongShift2Addr(Opcode op) {
+		return op == Opcode.SHL_LONG_2ADDR || op == Opcode.SHR_LONG_2ADDR || op == Opcode.USHR_LONG_2ADDR;
+	}
+
+	private static boolean isTwoAddr(Opcode op) {
+		return op.name != null && op.name.endsWith("/2addr");
+	}
+
+	/*
+	 * Returns true if we know exactly which registers the given instruction touches.
+	 */
+	public static boolean isUnderstood(Instruction instruction) {
+		switch (instruction.opcode) {
+		case THROW_VERIFICATION_ERROR:
+		case INVOKE_DIRECT_EMPTY:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/*
+	 * Returns the registers read by the given instruction.
+	 */
+	public static int[] getReadRegisters(Instruction instruction) {
+		Opcode op = instruction.opcode;
+		Set<Integer> regs = new TreeSet<Integer>();
+
+		switch (op) {
+		case NOP:
+		case MOVE_RESULT:
+		case MOVE_RESULT_WIDE:
+		case MOVE_RESULT_OBJECT:
+		case MOVE_EXCEPTION:
+		case RETURN_VOID:
+		case RETURN_VOID_BARRIER:
+		case CONST_4:
+		case CONST_16:
+		case CONST:
+		case CONST_HIGH16:
+		case CONST_WIDE_16:
+		case CONST_WIDE_32:
+		case CONST_WIDE:
+		case CONST_WIDE_HIGH16:
+		case CONST_STRING:
+		case CONST_STRING_JUMBO:
+		case CONST_CLASS:
+		case NEW_INSTANCE:
+		case GOTO:
+		case GOTO_16:
+		case GOTO_32:
+		case SGET:
+		case SGET_WIDE:
+		case SGET_OBJECT:
+		case SGET_BOOLEAN:
+		case SGET_BYTE:
+		case SGET_CHAR:
+		case SGET_SHORT:
+		case SGET_VOLATILE:
+		case SGET_WIDE_VOLATILE:
+		case SGET_OBJECT_VOLATILE:
+		case THROW_VERIFICATION_ERROR:
+			break;
+
+		case RETURN:
+		case RETURN_WIDE:
+		case RETURN_OBJECT:
+		case MONITOR_ENTER:
+		case MONITOR_EXIT:
+		case CHECK_CAST:
+		case FILL_ARRAY_DATA:
+		case THROW:
+		case PACKED_SWITCH:
+		case SPARSE_SWITCH:
+		case IF_EQZ:
+		case IF_NEZ:
+		case IF_LTZ:
+		case IF_GEZ:
+		case IF_GTZ:
+		case IF_LEZ:
+		case SPUT:
+		case SPUT_WIDE:
+		case SPUT_OBJECT:
+		case SPUT_BOOLEAN:
+		case SPUT_BYTE:
+		case SPUT_CHAR:
+		case SPUT_SHORT:
+		case SPUT_VOLATILE:
+		case SPUT_WIDE_VOLATILE:
+		case SPUT_OBJECT_VOLATILE:
+			addRegister(regs, ((SingleRegisterInstruction) instruction).getRegisterA(), wideA.contains(op));
+			break;
+
+		case IF_EQ:
+		case IF_NE:
+		case IF_LT:
+		case IF_GE:
+		case IF_GT:
+		case IF_LE:
+			addRegister(regs, ((TwoRegisterInstruction) instruction).getRegisterA(), false);
+			addRegister(regs, ((TwoRegisterInstruction) instruction).getRegisterB(), false);
+			break;
+
+		case APUT:
+		case APUT_WIDE:
+		case APUT_OBJECT:
+		case APUT_BOOLEAN:
+		case APUT_BYTE:
+		case APUT_CHAR:
+		case APUT_SHORT:
+			addRegister(regs, ((ThreeRegisterInstruction) instruction).getRegisterA(), wideA.contains(op));
+			addRegister(regs, ((ThreeRegisterInstruction) instruction).getRegisterB(), false);
+			addRegister(regs, ((ThreeRegisterInstruction) instruction).getRegisterC(), false);
+			break;
+
+		case IPUT:
+		case IPUT_WIDE:
+		case IPUT_OBJECT:
+		case IPUT_BOOLEAN:
+		case IPUT_BYTE:
+		case IPUT_CHAR:
+		case IPUT_SHORT:
+		case IPUT_QUICK:
+		case IPUT_WIDE_QUICK:
+		case IPUT_OBJECT_QUICK:
+		case IPUT_VOLATILE:
+		case IPUT_WIDE_VOLATILE:
+		case IPUT_OBJECT_VOLATILE:
+			addRegister(regs, ((TwoRegisterInstruction) instruction).getRegisterA(), wideA.contains(op));
+			addRegister(regs, ((TwoRegisterInstruction) instruction).getRegisterB(), false);
+			break;
+
+		default:
+			if (instruction instanceof InvokeInstruction) {
+				addInvokeRegisters(regs, instruction);
+			} else if (instruction instanceof ThreeRegisterInstruction) {
+				addRegister(regs, ((ThreeRegisterInstruction) instruction).getRegisterB(), wideB.contains(op));
+				addRegister(regs, ((ThreeRegisterInstruction) instruction).getRegisterC(), wideC.contains(op));
+			} else if (instruction instanceof TwoRegisterInstruction) {
+				if (isTwoAddr(op)) {
+					addRegister(regs, ((TwoRegisterInstruction) instruction).getRegisterA(), wideA.contains(op));
+				}
+				addRegister(regs, ((TwoRegisterInstruction) instruction).getRegisterB(), wideB.contains(op));
+			}
+			break;
+		}
+
+		return toArray(regs);
+	}
+
+	/*
+	 * Returns the registers written by the given instruction.
+	 */
+	public static int[] getWrittenRegisters(Instruction instruction) {
+		Opcode op = instruction.opcode;
+		Set<Integer> regs = new TreeSet<Integer>();
+
+		switch (op) {
+		case MOVE:
+		case MOVE_FROM16:
+		case MOVE_16:
+		case MOVE_WIDE:
+		case MOVE_WIDE_FROM16:
+		case MOVE_WIDE_16:
+		case MOVE_OBJECT:
+		case MOVE_OBJECT_FROM16:
+		case MOVE_OBJECT_16:
+		case MOVE_RESULT:
+		case MOVE_RESULT_WIDE:
+		case MOVE_RESULT_OBJECT:
+		case MOVE_EXCEPTION:
+		case CONST_4:
+		case CONST_16:
+		case CONST:
+		case CONST_HIGH16:
+		case CONST_WIDE_16:
+		case CONST_WIDE_32:
+		case CONST_WIDE:
+		case CONST_WIDE_HIGH16:
+		case CONST_STRING:
+		case CONST_STRING_JUMBO:
+		case CONST_CLASS:
+		case INSTANCE_OF:
+		case ARRAY_LENGTH:
+		case NEW_INSTANCE:
+		case NEW_ARRAY:
+		case CMPL_FLOAT:
+		case CMPG_FLOAT:
+		case CMPL_DOUBLE:
+		case CMPG_DOUBLE:
+		case CMP_LONG:
+		case AGET:
+		case AGET_WIDE:
+		case AGET_OBJECT:
+		case AGET_BOOLEAN:
+		case AGET_BYTE:
+		case AGET_CHAR:
+		case AGET_SHORT:
+		case IGET:
+		case IGET_WIDE:
+		case IGET_OBJECT:
+		case IGET_BOOLEAN:
+		case IGET_BYTE:
+		case IGET_CHAR:
+		case IGET_SHORT:
+		case IGET_QUICK:
+		case IGET_WIDE_QUICK:
+		case IGET_OBJECT_QUICK:
+		case IGET_VOLATILE:
+		case IGET_WIDE_VOLATILE:
+		case IGET_OBJECT_VOLATILE:
+		case SGET:
+		case SGET_WIDE:
+		case SGET_OBJECT:
+		case SGET_BOOLEAN:
+		case SGET_BYTE:
+		case SGET_CHAR:
+		case SGET_SHORT:
+		case SGET_VOLATILE:
+		case SGET_WIDE_VOLATILE:
+		case SGET_OBJECT_VOLATILE:
+			addRegister(regs, ((SingleRegisterInstruction) instruction).getRegisterA(), wideA.contains(op));
+			break;
+
+		default:
+			if (instruction instanceof InvokeInstruction) {
+				break;
+			}
+			String name = op.name;
+			if (name != null && (name.startsWith("neg-") || name.startsWith("not-") || name.contains("-to-") ||
+					name.startsWith("add-") || name.startsWith("sub-") || name.startsWith("rsub-") ||
+					name.startsWith("mul-") || name.startsWith("div-") || name.startsWith("rem-") ||
+					name.startsWith("and-") || name.startsWith("or-") || name.startsWith("xor-") ||
+					name.startsWith("shl-") || name.startsWith("shr-") || name.startsWith("ushr-"))) {
+				addRegister(regs, ((SingleRegisterInstruction) instruction).getRegisterA(), wideA.contains(op));
+			}
+			break;
+		}
+
+		return toArray(regs);
+	}
+
+	/*
+	 * Adds the registers read by instruction to readRegs, if they haven't already been written
+	 * by an earlier instruction (they're in writtenRegs), then adds the registers it writes to writtenRegs.
+	 */
+	public static void calculateRegisterInteraction(Instruction instruction, Set<Integer> readRegs, Set<Integer> writtenRegs) {
+		for (int reg : getReadRegisters(instruction)) {
+			if (!writtenRegs.contains(reg)) {
+				readRegs.add(reg);
+			}
+		}
+		for (int reg : getWrittenRegisters(instruction)) {
+			writtenRegs.add(reg);
+		}
+	}
+
+	private static void addInvokeRegisters(Set<Integer> regs, Instruction instruction) {
+		int regCount = ((InvokeInstruction) instruction).getRegCount();
+		if (instruction instanceof RegisterRangeInstruction) {
+			int start = ((RegisterRangeInstruction) instruction).getStartRegister();
+			for (int i = 0; i < regCount; i++) {
+				regs.add(start + i);
+			}
+		} else {
+			FiveRegisterInstruction five = (FiveRegisterInstruction) instruction;
+			if (regCount > 0) {
+				regs.add((int) five.getRegisterD());
+			}
+			if (regCount > 1) {
+				regs.add((int) five.getRegisterE());
+			}
+			if (regCount > 2) {
+				regs.add((int) five.getRegisterF());
+			}
+			if (regCount > 3) {
+				regs.add((int) five.getRegisterG());
+			}
+			if (regCount > 4) {
+				regs.add((int) five.getRegisterA());
+			}
+		}
+	}
+
+	private static void addRegister(Set<Integer> regs, int reg, boolean wide) {
+		regs.add(reg);
+		if (wide) {
+			regs.add(reg + 1);
+		}
+	}
+
+	private static int[] toArray(Set<Integer> regs) {
+		int[] result = new int[regs.size()];
+		int i = 0;
+		for (int reg : regs) {
+			result[i++] = reg;
+		}
+		return result;
+	}
+}
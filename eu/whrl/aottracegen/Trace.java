@@ -7,6 +7,8 @@ import java.util.Set;
 
 import org.jf.dexlib.Code.Instruction;
 
+import eu.whrl.aottracegen.ir.TraceIR;
+
 public class Trace {
 	public boolean valid;
 	public List<Integer> addresses;
@@ -17,12 +19,16 @@ public class Trace {
 	
 	public TraceMetadata meta;
 	
+	// SSA form of the trace, built by the CTraceGenerator
+	public TraceIR ir;
+	
 	public Trace() {
 		valid = false;
 		addresses = new LinkedList<Integer>();
 		successors = new HashSet<Integer>();
 		entry = 0;
 		meta = new TraceMetadata();
+		ir = null;
 	}
 	
 	/*
@@ -68,13 +74,16 @@ public class Trace {
 		return addresses.size();
 	}
 	
+	/*
+	 * Work out which vregs the trace reads and writes.
+	 */
 	public void calculateRegisterInteraction(CodeGenContext context) {
-		/*
+		meta.readRegs.clear();
+		meta.dirtyRegs.clear();
 		for (int address : addresses) {
-			Instruction inst = context.getInstructionAtCodeAddress(address);
+			Instruction inst = context.currentRegion.getInstructionAtCodeAddress(address);
 			OpcodeParser.calculateRegisterInteraction(inst, meta.readRegs, meta.dirtyRegs);
 		}
-		*/
 	}
 	
 	/*
@@ -2,10 +2,12 @@ package eu.whrl.aottracegen;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class TraceMetadata {
 	public List<Integer> codeAddressesThatThrowExceptions;
@@ -17,7 +19,17 @@ public class TraceMetadata {
 	public boolean containsSwitch;
 	public boolean containsReturn;
 	public Map<Integer, ChainingCell> chainingCells;
+	// code addresses the C leaves the trace to, by exit id (counting from 1)
+	public List<Integer> exitAddresses;
 	public int stackAllocSize;
+	// vregs read before being written, and vregs written, in trace order
+	public Set<Integer> readRegs;
+	public Set<Integer> dirtyRegs;
+	// fill-array-data tables, by the code address of the instruction (and the message of
+	// the ArithmeticExceptions the trace throws, under -1), and the number of bytes the
+	// ITraceGenerator puts them in front of the literal pool in
+	public Map<Integer, byte[]> arrayData;
+	public int arrayDataSize;
 	
 	public TraceMetadata() {
 		codeAddressesThatThrowExceptions = new ArrayList<Integer>();
@@ -28,7 +40,51 @@ public class TraceMetadata {
 		containsSwitch = false;
 		containsReturn = false;
 		chainingCells = new TreeMap<Integer,ChainingCell>();
+		exitAddresses = new ArrayList<Integer>();
 		stackAllocSize = 0;
+		readRegs = new TreeSet<Integer>();
+		dirtyRegs = new TreeSet<Integer>();
+		arrayData = new LinkedHashMap<Integer, byte[]>();
+		arrayDataSize = 0;
+	}
+	
+	/*
+	 * Get how many bytes before the literal pool the table of the fill-array-data at
+	 * codeAddress starts. Each table goes in front of the ones before it, 8 byte aligned.
+	 */
+	public int addArrayData(int codeAddress, byte[] data) {
+		if (!arrayData.containsKey(codeAddress)) {
+			arrayData.put(codeAddress, data);
+			arrayDataSize += (data.length + 7) & ~7;
+		}
+		int offset = 0;
+		for (Map.Entry<Integer, byte[]> entry : arrayData.entrySet()) {
+			offset += (entry.getValue().length + 7) & ~7;
+			if (entry.getKey() == codeAddress) {
+				break;
+			}
+		}
+		return offset;
+	}
+	
+	/*
+	 * Get the key of the chaining cell of a singleton invoke of methodIndex. Method indices
+	 * would collide with the code addresses the other cells are under, so these are negative.
+	 */
+	public static int getSingletonCellKey(int methodIndex) {
+		return -1 - methodIndex;
+	}
+	
+	/*
+	 * Get the id the trace returns to leave to codeAddress, handing out a new one if needed.
+	 */
+	public int getExitId(int codeAddress) {
+		int index = exitAddresses.indexOf(codeAddress);
+		if (index == -1) {
+			exitAddresses.add(codeAddress);
+			index = exitAddresses.size() - 1;
+		}
+		return index + 1;
 	}
 	
 	private int insertLiteralPoolEntry(LiteralPoolType type, int value) {
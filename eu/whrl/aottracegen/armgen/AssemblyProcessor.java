@@ -1,5 +1,7 @@
 package eu.whrl.aottracegen.armgen;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,6 +20,7 @@ import eu.whrl.aottracegen.CodeGenContext;
 import eu.whrl.aottracegen.LiteralPoolType;
 import eu.whrl.aottracegen.MethodLookup;
 import eu.whrl.aottracegen.Trace;
+import eu.whrl.aottracegen.TraceMetadata;
 import eu.whrl.aottracegen.armgen.insts.*;
 
 public class AssemblyProcessor {
@@ -141,13 +144,16 @@ public class AssemblyProcessor {
 		
 		boolean doFixup = false;
 		boolean foundTable = false;
+		boolean widen = false;
 		
 		String regionPrefix = "T" + context.currentRegionIndex + "_";
 		
 		for (ArmInst inst : insts) {
 			ArmOpcode opcode = inst.getOpcode();
 			if ((opcode == ArmOpcode.tbb || opcode == ArmOpcode.tbh) && !doFixup) {
-				if (opcode == ArmOpcode.tbb) {
+				/* the calls we expanded may have pushed the targets out of reach of a byte table */
+				widen = (opcode == ArmOpcode.tbb && !byteTableReachesTargets(inst, regionPrefix));
+				if (widen) {
 					ArmInstOp tableBranchInst = (ArmInstOp) inst;
 					tableBranchInst.opcode = ArmOpcode.tbh;
 					ArmInstComment comment = new ArmInstComment("Was promoted from tbb to tbh");
@@ -168,7 +174,7 @@ public class AssemblyProcessor {
 					ArmInstPseudoDirectiveSingleArg directive = (ArmInstPseudoDirectiveSingleArg) inst;
 					if (directive.name.equals("byte") || directive.name.equals("2byte") || directive.name.equals("short")) {
 						directive.arg = directive.arg.replaceAll("L", regionPrefix + "L");
-						if (directive.name.equals("byte")) {
+						if (directive.name.equals("byte") && widen) {
 							directive.name = "2byte";
 						}
 					} else {
@@ -183,6 +189,53 @@ public class AssemblyProcessor {
 		return insts;
 	}
 	
+	/*
+	 * Can the byte table after this tbb still reach all of its targets? Everything between
+	 * the tbb and its furthest target is counted as 4 bytes, the most a Thumb-2
+	 * instruction takes, so a yes here is safe without knowing the real encodings.
+	 */
+	private boolean byteTableReachesTargets(ArmInst tableBranch, String regionPrefix) {
+		Pattern tableTargetPattern = Pattern.compile("(\\.?L\\w+)-");
+		Set<String> targets = new HashSet<String>();
+		for (ArmInst inst = tableBranch.next; inst != null; inst = inst.next) {
+			if (inst instanceof ArmInstPseudoDirectiveSingleArg && ((ArmInstPseudoDirectiveSingleArg) inst).name.equals("byte")) {
+				Matcher matcher = tableTargetPattern.matcher(((ArmInstPseudoDirectiveSingleArg) inst).arg);
+				if (!matcher.find()) {
+					return false;
+				}
+				targets.add(matcher.group(1).replaceAll("L", regionPrefix + "L"));
+			} else if (!targets.isEmpty()) {
+				break;
+			}
+		}
+		if (targets.isEmpty()) {
+			return false;
+		}
+		
+		int bytes = 0;
+		for (ArmInst inst = tableBranch.next; inst != null && !targets.isEmpty(); inst = inst.next) {
+			if (inst instanceof ArmInstPseudoLabel) {
+				targets.remove(((ArmInstPseudoLabel) inst).label.getLabelAsString());
+				continue;
+			}
+			if (inst instanceof ArmInstPseudoDirectiveList) {
+				return false;
+			}
+			if (inst instanceof ArmInstPseudoDirectiveSingleArg) {
+				String name = ((ArmInstPseudoDirectiveSingleArg) inst).name;
+				if (!name.matches("byte|2byte|short|long|word|align|p2align") ||
+						(name.endsWith("align") && !((ArmInstPseudoDirectiveSingleArg) inst).arg.matches("[0-2]"))) {
+					return false;
+				}
+			}
+			bytes += 4 * inst.getSize();
+			if (bytes > 2 * 255) {
+				return false;
+			}
+		}
+		return targets.isEmpty();
+	}
+	
 	public ArmInst fixupEntryAndExits(CodeGenContext context, ArmInst insts) {
 		boolean foundAnExit = false;
 		
@@ -371,6 +424,10 @@ public class AssemblyProcessor {
 					handleBarrier(context, branchInst);
 				} else if (dest.contains("__hiya_sqrt")) {
 					handleSqrt(context, branchInst);
+				} else if (dest.contains("__hiya_memcpy")) {
+					handleMemcpy(context, branchInst);
+				} else if (dest.contains("__hiya_throw_")) {
+					handleThrow(context, branchInst);
 				} else if (dest.contains("__aeabi_l2d") || dest.contains("__floatdidf") ) {
 					handleAeabiL2D(context, branchInst);
 				} else if (dest.contains("__aeabi_l2f") || dest.contains("__floatdisf") ) {
@@ -561,6 +618,46 @@ public class AssemblyProcessor {
 		inst.replaceChain(gen.getFirst(), gen.getLast());
 	}
 	
+	private void handleMemcpy(CodeGenContext context, ArmInstOpL inst) {
+		/* literal pool pointer is in r3 */
+		InstGen gen = new InstGen();
+		gen.insertComment("--- MEMCPY START");
+		gen.jumpToFunction(context, ArmRegister.r3, ArmRegister.r3, LiteralPoolType.CALL_MEMCPY, "memcpy");
+		gen.insertComment("--- MEMCPY END");
+		inst.replaceChain(gen.getFirst(), gen.getLast());
+	}
+	
+	private void handleThrow(CodeGenContext context, ArmInstOpL inst) {
+		String label = inst.label.getLabelAsString();
+		Pattern p = Pattern.compile("__hiya_throw_(.*)_0x(.*)$");
+		Matcher m = p.matcher(label);
+		if (!m.find()) {
+			System.out.println("Failure to parse __hiya_throw label in .S file. Investigate.");
+			System.exit(1);
+		}
+		int codeAddress = Integer.parseInt(m.group(2), 16);
+		LiteralPoolType function = LiteralPoolType.CALL_DVMTHROWNULLPOINTEREXCEPTION;
+		String name = "dvmThrowNullPointerException";
+		if (m.group(1).equals("array_index")) {
+			function = LiteralPoolType.CALL_DVMTHROWARRAYINDEXOUTOFBOUNDSEXCEPTION;
+			name = "dvmThrowArrayIndexOutOfBoundsException";
+		} else if (m.group(1).equals("arithmetic")) {
+			function = LiteralPoolType.CALL_DVMTHROWARITHMETICEXCEPTION;
+			name = "dvmThrowArithmeticException";
+		}
+		int dpcLoc = context.currentRegion.trace.meta.addLiteralPoolTypeAndValue(LiteralPoolType.DPC_OFFSET, codeAddress);
+
+		/* literal pool pointer is in r2, frame pointer in r3 */
+		InstGen gen = new InstGen();
+		gen.insertComment("--- THROW START");
+		gen.insertComment("Set the frame's pc for the stack trace");
+		gen.memoryRead(ArmRegister.r12, ArmRegister.r2, dpcLoc * 4);
+		gen.memoryWrite(ArmRegister.r12, ArmRegister.r3, -8);
+		gen.jumpToFunction(context, ArmRegister.r2, ArmRegister.r2, function, name);
+		gen.insertComment("--- THROW END");
+		inst.replaceChain(gen.getFirst(), gen.getLast());
+	}
+	
 	private void handleAeabiL2D(CodeGenContext context, ArmInstOpL inst) {
 		InstGen gen = new InstGen();
 		gen.insertComment("--- AEABI_L2D START");
@@ -750,15 +847,17 @@ public class AssemblyProcessor {
 			/* load DIRECT METHOD */
 			methodIndex = ((InstructionWithReference)instruction).getReferencedItem().getIndex();
 			literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(LiteralPoolType.DIRECT_METHOD, methodIndex);
-			if (!curTrace.meta.chainingCells.containsKey(methodIndex)) {
-				curTrace.meta.chainingCells.put(methodIndex, (new ChainingCell(ChainingCell.Type.INVOKE_SINGLETON, methodIndex)));
+			if (!curTrace.meta.chainingCells.containsKey(TraceMetadata.getSingletonCellKey(methodIndex))) {
+				curTrace.meta.chainingCells.put(TraceMetadata.getSingletonCellKey(methodIndex),
+						(new ChainingCell(ChainingCell.Type.INVOKE_SINGLETON, methodIndex)));
 			}
 		} else {
 			/* load STATIC METHOD */
 			methodIndex = ((InstructionWithReference)instruction).getReferencedItem().getIndex();
 			literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(LiteralPoolType.STATIC_METHOD, methodIndex);
-			if (!curTrace.meta.chainingCells.containsKey(methodIndex)) {
-				curTrace.meta.chainingCells.put(methodIndex, (new ChainingCell(ChainingCell.Type.INVOKE_SINGLETON, methodIndex)));
+			if (!curTrace.meta.chainingCells.containsKey(TraceMetadata.getSingletonCellKey(methodIndex))) {
+				curTrace.meta.chainingCells.put(TraceMetadata.getSingletonCellKey(methodIndex),
+						(new ChainingCell(ChainingCell.Type.INVOKE_SINGLETON, methodIndex)));
 			}
 		}
 		
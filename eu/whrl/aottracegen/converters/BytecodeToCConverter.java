@@ -1,7 +1,19 @@
 package eu.whrl.aottracegen.converters;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
-
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jf.dexlib.CodeItem;
+import org.jf.dexlib.TypeIdItem;
+import org.jf.dexlib.ClassDataItem.EncodedMethod;
 import org.jf.dexlib.Code.FiveRegisterInstruction;
 import org.jf.dexlib.Code.Instruction;
 import org.jf.dexlib.Code.InstructionWithReference;
@@ -10,10 +22,12 @@ import org.jf.dexlib.Code.LiteralInstruction;
 import org.jf.dexlib.Code.OdexedFieldAccess;
 import org.jf.dexlib.Code.OdexedInvokeInline;
 import org.jf.dexlib.Code.OffsetInstruction;
+import org.jf.dexlib.Code.Opcode;
 import org.jf.dexlib.Code.RegisterRangeInstruction;
 import org.jf.dexlib.Code.SingleRegisterInstruction;
 import org.jf.dexlib.Code.ThreeRegisterInstruction;
 import org.jf.dexlib.Code.TwoRegisterInstruction;
+import org.jf.dexlib.Code.Format.ArrayDataPseudoInstruction;
 import org.jf.dexlib.Code.Format.PackedSwitchDataPseudoInstruction;
 import org.jf.dexlib.Code.Format.PackedSwitchDataPseudoInstruction.PackedSwitchTarget;
 import org.jf.dexlib.Code.Format.SparseSwitchDataPseudoInstruction;
@@ -23,46 +37,161 @@ import eu.whrl.aottracegen.CTraceGenerator;
 import eu.whrl.aottracegen.ChainingCell;
 import eu.whrl.aottracegen.CodeGenContext;
 import eu.whrl.aottracegen.LiteralPoolType;
+import eu.whrl.aottracegen.MethodLookup;
 import eu.whrl.aottracegen.Region;
 import eu.whrl.aottracegen.Trace;
 import eu.whrl.aottracegen.armgen.ArmRegister;
 import eu.whrl.aottracegen.exceptions.UnimplementedInstructionException;
+import eu.whrl.aottracegen.ir.ArrayCachePass;
+import eu.whrl.aottracegen.ir.DevirtualizationPass;
+import eu.whrl.aottracegen.ir.IRBasicBlock;
+import eu.whrl.aottracegen.ir.IRInstruction;
+import eu.whrl.aottracegen.ir.IRLoop;
+import eu.whrl.aottracegen.ir.IRPhi;
+import eu.whrl.aottracegen.ir.IRValue;
+import eu.whrl.aottracegen.ir.KernelLoopPass;
+import eu.whrl.aottracegen.ir.LoopInvariantCodeMotionPass;
+import eu.whrl.aottracegen.ir.Prefetch;
+import eu.whrl.aottracegen.ir.RangeCheckEliminationPass;
+import eu.whrl.aottracegen.ir.RangeGuard;
+import eu.whrl.aottracegen.ir.ScalarObject;
+import eu.whrl.aottracegen.ir.SuspendCheckPlacementPass;
+import eu.whrl.aottracegen.ir.TraceIR;
+import eu.whrl.aottracegen.ir.TraceIRBuilder;
+import eu.whrl.aottracegen.ir.VregType;
 
 public class BytecodeToCConverter {
 
 	private static final int offsetThreadReturn = 16;
+	// switches with fewer cases than this are always a binary search
+	private static final int minJumpTableCases = 4;
 	private static final int offsetThreadException = 68;
+	private static final int offsetThreadCurFrame = 4;
+	// where the message of the ArithmeticExceptions the trace throws goes with the array data
+	private static final int divideByZeroMessageKey = -1;
 	private static final int offsetArrayObjectLength = 8;
+	private static final int offsetArrayObjectContents = 16;
+	private static final int offsetObjectLock = 4;
+	private static final int offsetThreadThreadId = 36;
+	private static final int offsetClassObjectElementClass = 60;
+	private static final int offsetClassObjectArrayDim = 64;
+	// a StaticField's value, which is what the literal pool points at, follows its Field
+	private static final int offsetStaticFieldValue = 16;
+	// iterations of a kernel loop between tests of the suspend flags
+	private static final int kernelChunkSize = 4096;
+	// Dalvik's thin lock word: shape bit, hash state, owner thread id and recursion count
+	private static final int lockOwnerShift = 3;
+	private static final int lockOwnerMask = 0x7fff9;   // the owner and the shape bit
+	private static final int lockCountShift = 19;
+	private static final int lockCountMax = 0x1fff;
+	private static final int lockHashStateMask = 0x6;
+
+	public static final int INLINE_EMPTYINLINEMETHOD = 0;
+	public static final int INLINE_STRING_CHARAT = 1;
+	public static final int INLINE_STRING_COMPARETO = 2;
+	public static final int INLINE_STRING_EQUALS = 3;
+	public static final int INLINE_STRING_FASTINDEXOF_II = 4;
+	public static final int INLINE_STRING_IS_EMPTY = 5;
+	public static final int INLINE_STRING_LENGTH = 6;
+	public static final int INLINE_MATH_ABS_INT = 7;
+	public static final int INLINE_MATH_ABS_LONG = 8;
+	public static final int INLINE_MATH_ABS_FLOAT = 9;
+	public static final int INLINE_MATH_ABS_DOUBLE = 10;
+	public static final int INLINE_MATH_MIN_INT = 11;
+	public static final int INLINE_MATH_MAX_INT = 12;
+	public static final int INLINE_MATH_SQRT = 13;
+	public static final int INLINE_MATH_COS = 14;
+	public static final int INLINE_MATH_SIN = 15;
+	public static final int INLINE_FLOAT_TO_INT_BITS = 16;
+	public static final int INLINE_FLOAT_TO_RAW_INT_BITS = 17;
+	public static final int INLINE_INT_BITS_TO_FLOAT = 18;
+	public static final int INLINE_DOUBLE_TO_LONG_BITS = 19;
+	public static final int INLINE_DOUBLE_TO_RAW_LONG_BITS = 20;
+	public static final int INLINE_LONG_BITS_TO_DOUBLE = 21;
+	public static final int INLINE_STRICT_MATH_ABS_INT = 22;
+	public static final int INLINE_STRICT_MATH_ABS_LONG = 23;
+	public static final int INLINE_STRICT_MATH_ABS_FLOAT = 24;
+	public static final int INLINE_STRICT_MATH_ABS_DOUBLE = 25;
+	public static final int INLINE_STRICT_MATH_MIN_INT = 26;
+	public static final int INLINE_STRICT_MATH_MAX_INT = 27;
+	public static final int INLINE_STRICT_MATH_SQRT = 28;
+
+	// The region and IR instruction currently being converted, if we were given one.
+	private Region region = null;
+	private IRInstruction currentIR = null;
+	// The loop whose versioned (check-free) copy is being emitted, if any.
+	private IRLoop fastLoop = null;
+	// The innermost structured loop whose C for loop we're inside, if any.
+	private IRLoop openLoop = null;
+	// While emitting an inlined callee, the code address of the invoke and the
+	// prefix of the callee's labels. -1 otherwise.
+	private int inlineSite = -1;
+	private String inlineLabelPrefix = null;
+	// While emitting an inlined constructor of a ScalarObject, the callee's 'this'. -1 otherwise.
+	private int scalarReceiver = -1;
+
+	/*
+	 * Tell the converter we're emitting the versioned copy of loop (or null once we're done),
+	 * so jumps within the loop stay in the copy.
+	 */
+	public void setFastLoop(IRLoop loop) {
+		fastLoop = loop;
+	}
 
-	private static final int INLINE_EMPTYINLINEMETHOD = 0;
-	private static final int INLINE_STRING_CHARAT = 1;
-	private static final int INLINE_STRING_COMPARETO = 2;
-	private static final int INLINE_STRING_EQUALS = 3;
-	private static final int INLINE_STRING_FASTINDEXOF_II = 4;
-	private static final int INLINE_STRING_IS_EMPTY = 5;
-	private static final int INLINE_STRING_LENGTH = 6;
-	private static final int INLINE_MATH_ABS_INT = 7;
-	private static final int INLINE_MATH_ABS_LONG = 8;
-	private static final int INLINE_MATH_ABS_FLOAT = 9;
-	private static final int INLINE_MATH_ABS_DOUBLE = 10;
-	private static final int INLINE_MATH_MIN_INT = 11;
-	private static final int INLINE_MATH_MAX_INT = 12;
-	private static final int INLINE_MATH_SQRT = 13;
-	private static final int INLINE_MATH_COS = 14;
-	private static final int INLINE_MATH_SIN = 15;
-	private static final int INLINE_FLOAT_TO_INT_BITS = 16;
-	private static final int INLINE_FLOAT_TO_RAW_INT_BITS = 17;
-	private static final int INLINE_INT_BITS_TO_FLOAT = 18;
-	private static final int INLINE_DOUBLE_TO_LONG_BITS = 19;
-	private static final int INLINE_DOUBLE_TO_RAW_LONG_BITS = 20;
-	private static final int INLINE_LONG_BITS_TO_DOUBLE = 21;
-	private static final int INLINE_STRICT_MATH_ABS_INT = 22;
-	private static final int INLINE_STRICT_MATH_ABS_LONG = 23;
-	private static final int INLINE_STRICT_MATH_ABS_FLOAT = 24;
-	private static final int INLINE_STRICT_MATH_ABS_DOUBLE = 25;
-	private static final int INLINE_STRICT_MATH_MIN_INT = 26;
-	private static final int INLINE_STRICT_MATH_MAX_INT = 27;
-	private static final int INLINE_STRICT_MATH_SQRT = 28;
+	/*
+	 * Tell the converter which structured loop's body is being emitted, so jumps back
+	 * to its header can be a continue.
+	 */
+	public void setOpenLoop(IRLoop loop) {
+		openLoop = loop;
+	}
+
+	/*
+	 * Return a string representing the given IR instruction, as a C implementation.
+	 * Passes can annotate the IR to change what gets emitted here.
+	 */
+	public String convert(CodeGenContext context, IRInstruction inst)
+			throws UnimplementedInstructionException {
+		currentIR = inst;
+		try {
+			if (!inst.executable) {
+				return "  // not reachable from the trace entry";
+			}
+			if (inst.foldedConstant != null) {
+				return String.format("  v[%d] = %d; // folded", inst.defs[0], inst.foldedConstant);
+			}
+			if (inst.constantBranchTarget != -1) {
+				return String.format("  // branch on a constant\n  %s;",
+						getGotoLabel(context.currentRegion.trace, inst.constantBranchTarget));
+			}
+			if (inst.hoistedTo != null) {
+				return String.format("  v[%d] = %s; // hoisted", inst.defs[0],
+						LoopInvariantCodeMotionPass.getHoistedName(inst));
+			}
+			return substituteConstants(inst, convert(context, inst.codeAddress));
+		} finally {
+			currentIR = null;
+		}
+	}
+
+	/*
+	 * Replace the reads of registers the ConstantPropagationPass found to be constant with
+	 * the constants, so clang doesn't have to reload them from the frame. Registers the
+	 * instruction also writes are left alone, the C may read them back after the write.
+	 */
+	private String substituteConstants(IRInstruction inst, String code) {
+		if (!inst.understood) {
+			return code;
+		}
+		for (int reg : inst.uses) {
+			IRValue value = inst.getUse(reg);
+			if (value == null || value.constant == null || inst.definesRegister(reg)) {
+				continue;
+			}
+			code = code.replaceAll("\\bv\\[" + reg + "\\]", "(" + value.constant + ")");
+		}
+		return code;
+	}
 
 	/*
 	 * Return a string representing the instruction at codeAddress, as a C
@@ -71,15 +200,26 @@ public class BytecodeToCConverter {
 	 */
 	public String convert(CodeGenContext context, int codeAddress)
 			throws UnimplementedInstructionException {
-		Instruction instruction = context.currentRegion
-				.getInstructionAtCodeAddress(codeAddress);
+		return convert(context, codeAddress, context.currentRegion
+				.getInstructionAtCodeAddress(codeAddress));
+	}
 
+	private String convert(CodeGenContext context, int codeAddress, Instruction instruction)
+			throws UnimplementedInstructionException {
 		String result = "";
 
 		Trace curTrace = context.currentRegion.trace;
+		region = context.currentRegion;
+
+		// Returns from an inlined callee go back to the call site
+		if (inlineSite != -1) {
+			if (CTraceGenerator.opcodesThatCanReturn.contains(instruction.opcode)) {
+				return emitInlinedReturn(instruction) + "\n\n";
+			}
+		}
 
 		// Potentially print vregs?
-		if (context.config.printVregsMode
+		if (inlineSite == -1 && context.config.printVregsMode
 				&& !CTraceGenerator.opcodesThatCanReturn
 						.contains(instruction.opcode)
 				&& !CTraceGenerator.opcodesThatCanBranch
@@ -88,12 +228,12 @@ public class BytecodeToCConverter {
 		}
 		
 		// potentially do trail mode
-		if (context.config.trailMode) {
+		if (inlineSite == -1 && context.config.trailMode) {
 			result += emitTrail(codeAddress) + "\n";
 		}
 
 		// Potentially use single stepping?
-		if (context.currentRegion.singleStepOnly
+		if (inlineSite == -1 && context.currentRegion.singleStepOnly
 				&& !CTraceGenerator.opcodesThatCanReturn
 						.contains(instruction.opcode)
 				&& !CTraceGenerator.opcodesThatCanBranch
@@ -196,8 +336,9 @@ public class BytecodeToCConverter {
 		case MOVE_EXCEPTION: {
 			int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
 
-			result += String.format("  v[%d] = *((int*) (self+%d));", vA,
+			result += String.format("  v[%d] = *((int*) (self+%d));\n", vA,
 					offsetThreadException);
+			result += String.format("  *((int*) (self+%d)) = 0;", offsetThreadException);
 			break;
 		}
 
@@ -335,13 +476,13 @@ public class BytecodeToCConverter {
 
 		// opcode: 1d monitor-enter
 		case MONITOR_ENTER: {
-			result += emitLeaveRegion(codeAddress, curTrace, instruction);
+			result += emitMonitorEnter(codeAddress, instruction);
 			break;
 		}
 
 		// opcode: 1e monitor-exit
 		case MONITOR_EXIT: {
-			result += emitLeaveRegion(codeAddress, curTrace, instruction);
+			result += emitMonitorExit(codeAddress, instruction);
 			break;
 		}
 
@@ -349,16 +490,21 @@ public class BytecodeToCConverter {
 		case CHECK_CAST: {
 			int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
 
-			int classIndex = ((InstructionWithReference) instruction)
-					.getReferencedItem().getIndex();
-
+			TypeIdItem type = (TypeIdItem) ((InstructionWithReference) instruction).getReferencedItem();
 			int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(
-					LiteralPoolType.CLASS_POINTER, classIndex);
+					LiteralPoolType.CLASS_POINTER, type.getIndex());
 
+			// null always passes, and an object of exactly the class does
 			result += "  {\n";
-			result += String
-					.format("    if (!instanceof_%2$#x(v[%1$d], lit[%3$d], lit)) TRACE_EXCEPTION(%2$#x);\n",
-							vA, codeAddress, literalPoolLoc);
+			result += String.format("    int obj = v[%d];\n", vA);
+			result += String.format("    if (obj != 0 && *((int*) obj) != lit[%d]) {\n", literalPoolLoc);
+			if (MethodLookup.getMethodLookup().isExactType(type.getTypeDescriptor())) {
+				result += String.format("      TRACE_EXCEPTION(%#x);\n", codeAddress);
+			} else {
+				result += String.format("      if (!instanceof_%1$#x(obj, lit[%2$d], lit)) TRACE_EXCEPTION(%1$#x);\n",
+						codeAddress, literalPoolLoc);
+			}
+			result += "    }\n";
 			result += "  }";
 
 			break;
@@ -369,19 +515,20 @@ public class BytecodeToCConverter {
 			int vA = ((TwoRegisterInstruction) instruction).getRegisterA();
 			int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 
-			int classIndex = ((InstructionWithReference) instruction)
-					.getReferencedItem().getIndex();
-
+			TypeIdItem type = (TypeIdItem) ((InstructionWithReference) instruction).getReferencedItem();
 			int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(
-					LiteralPoolType.CLASS_POINTER, classIndex);
+					LiteralPoolType.CLASS_POINTER, type.getIndex());
 
 			result += "  {\n";
-			result += String.format(
-					"    if (v[%d] == 0) TRACE_EXCEPTION(%#x);\n", vB,
-					codeAddress);
-			result += String.format(
-					"    v[%d] = instanceof_%#x(v[%d], lit[%d], lit);\n", vA,
-					codeAddress, vB, literalPoolLoc);
+			result += String.format("    int obj = v[%d];\n", vB);
+			result += String.format("    if (obj == 0) v[%d] = 0;\n", vA);
+			result += String.format("    else if (*((int*) obj) == lit[%d]) v[%d] = 1;\n", literalPoolLoc, vA);
+			if (MethodLookup.getMethodLookup().isExactType(type.getTypeDescriptor())) {
+				result += String.format("    else v[%d] = 0;\n", vA);
+			} else {
+				result += String.format("    else v[%d] = instanceof_%#x(obj, lit[%d], lit);\n", vA,
+						codeAddress, literalPoolLoc);
+			}
 			result += "  }";
 
 			break;
@@ -392,12 +539,15 @@ public class BytecodeToCConverter {
 			int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 
 			result += "  {\n";
-			result += String.format(
-					"    if (v[%d] == 0) TRACE_EXCEPTION(%#x);\n", vB,
-					codeAddress);
-			result += String.format(
-					"    v[%d] = *((int*) ( ((char*) v[%d]) + %d ));", vA, vB,
-					offsetArrayObjectLength);
+			if (currentIR != null && currentIR.cachedArray != null) {
+				result += emitArrayLoad(vB, codeAddress);
+				result += String.format("    v[%d] = array_size;\n", vA);
+			} else {
+				result += emitNullCheck(String.format("v[%d]", vB), codeAddress, "    ");
+				result += String.format(
+						"    v[%d] = *((int*) ( ((char*) v[%d]) + %d ));", vA, vB,
+						offsetArrayObjectLength);
+			}
 			result += "  }";
 			break;
 		}
@@ -405,6 +555,10 @@ public class BytecodeToCConverter {
 		// opcode: 22 new-instance
 		case NEW_INSTANCE: {
 			int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
+			if (currentIR != null && currentIR.scalarObject != null) {
+				result += emitScalarAllocation(currentIR.scalarObject, vA);
+				break;
+			}
 			int classIndex = ((InstructionWithReference) instruction)
 					.getReferencedItem().getIndex();
 
@@ -412,6 +566,7 @@ public class BytecodeToCConverter {
 					LiteralPoolType.CLASS_POINTER, classIndex);
 
 			result += "  {\n";
+			result += String.format("    TRACE_FLUSH_CALL(%#x)\n", codeAddress);
 			result += String
 					.format("    v[%d] = new_instance_%#x(lit[%d], 1 /*ALLOC_DONT_TRACK*/, lit);\n",
 							vA, codeAddress, literalPoolLoc);
@@ -436,6 +591,7 @@ public class BytecodeToCConverter {
 			result += String.format(
 					"    if (v[%d] < 0) TRACE_EXCEPTION(%#x);\n", vB,
 					codeAddress);
+			result += String.format("    TRACE_FLUSH_CALL(%#x)\n", codeAddress);
 			result += String
 					.format("    v[%d] = new_array(lit[%d], v[%d], 1 /*ALLOC_DONT_TRACK*/, lit);\n",
 							vA, literalPoolLoc, vB);
@@ -448,69 +604,41 @@ public class BytecodeToCConverter {
 
 		// opcode: 24 filled-new-array
 		case FILLED_NEW_ARRAY: {
-			int classIndex = ((InstructionWithReference) instruction)
-					.getReferencedItem().getIndex();
-
-			String arrayType = ((InstructionWithReference) instruction)
-					.getReferencedItem().getConciseIdentity().substring(15, 16);
+			result += emitFilledNewArray(codeAddress, curTrace, instruction);
+			break;
+		}
 
-			if (!arrayType.equals("I")) {
-				System.out
-						.println("Can only handle FILLED_NEW_ARRAY with [I right now. Fix.");
-				System.exit(1);
-			}
+		// opcode: 25 filled-new-array/range
+		case FILLED_NEW_ARRAY_RANGE: {
+			result += emitFilledNewArray(codeAddress, curTrace, instruction);
+			break;
+		}
 
-			int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(
-					LiteralPoolType.CLASS_POINTER, classIndex);
+		// opcode: 26 fill-array-data
+		case FILL_ARRAY_DATA: {
+			int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
+			int dataOffset = ((OffsetInstruction) instruction).getTargetAddressOffset();
 
-			int length = ((FiveRegisterInstruction) instruction).getRegCount();
+			ArrayDataPseudoInstruction dataInstruction = (ArrayDataPseudoInstruction) context.currentRegion
+					.getInstructionAtCodeAddress(codeAddress + dataOffset);
+			int count = dataInstruction.getElementCount();
+			int size = count * dataInstruction.getElementWidth();
+			int dataLoc = curTrace.meta.addArrayData(codeAddress, dataInstruction.getEncodedValues());
 
 			result += "  {\n";
-			result += String
-					.format("    int *array_obj = new_array(lit[%d], %d, 1 /*ALLOC_DONT_TRACK*/, lit);\n",
-							literalPoolLoc, length);
-			result += String.format(
-					"    if (array_obj == 0) TRACE_EXCEPTION(%#x);\n",
-					codeAddress);
-			result += String.format("    *((int*) (self+%d)) = array_obj;\n",
-					offsetThreadReturn);
-			if (length > 0) {
-				result += String.format(
-						"    *((int*)(((char*)array_obj) + 16)) = v[%d];\n",
-						((FiveRegisterInstruction) instruction).getRegisterD());
-			}
-			if (length > 1) {
-				result += String.format(
-						"    *((int*)(((char*)array_obj) + 20)) = v[%d];\n",
-						((FiveRegisterInstruction) instruction).getRegisterE());
-			}
-			if (length > 2) {
-				result += String.format(
-						"    *((int*)(((char*)array_obj) + 24)) = v[%d];\n",
-						((FiveRegisterInstruction) instruction).getRegisterF());
-			}
-			if (length > 3) {
-				result += String.format(
-						"    *((int*)(((char*)array_obj) + 28)) = v[%d];\n",
-						((FiveRegisterInstruction) instruction).getRegisterG());
+			result += emitNullCheck(String.format("v[%d]", vA), codeAddress, "    ");
+			result += String.format("    int array_size = *((int*) (((char*) v[%d]) + %d));\n", vA, offsetArrayObjectLength);
+			result += String.format("    if (array_size < %d) %s\n", count,
+					emitThrow(TraceIRBuilder.arrayIndexOutOfBoundsException, String.format("array_size, %d", count), codeAddress));
+			if (size > 0) {
+				// the table is in front of the literal pool
+				result += String.format("    __hiya_memcpy(((char*) v[%d]) + %d, ((char*) lit) - %d, %d, lit);\n",
+						vA, offsetArrayObjectContents, dataLoc, size);
 			}
-			if (length > 4) {
-				result += String.format(
-						"    *((int*)(((char*)array_obj) + 32)) = v[%d];\n",
-						((FiveRegisterInstruction) instruction).getRegisterA());
-			}
-			// no need to mark card table if it's just ints
 			result += "  }";
 			break;
 		}
 
-		// opcode: 25 filled-new-array/range
-		case FILLED_NEW_ARRAY_RANGE: {
-			result += emitSingleStep(codeAddress, curTrace, instruction);
-			break;
-		}
-
-		// opcode: 26 fill-array-data
 		// opcode: 27 throw
 		case THROW: {
 			result += String.format("    TRACE_EXCEPTION(%#x);\n", codeAddress);
@@ -546,25 +674,18 @@ public class BytecodeToCConverter {
 			PackedSwitchDataPseudoInstruction dataInstruction = (PackedSwitchDataPseudoInstruction) context.currentRegion
 					.getInstructionAtCodeAddress(codeAddress + dataOffset);
 
-			result += String.format("  switch (v[%d]) {\n", vA);
-
+			List<Integer> keys = new ArrayList<Integer>();
+			List<Integer> targets = new ArrayList<Integer>();
 			Iterator<PackedSwitchTarget> targetIterator = dataInstruction
 					.iterateKeysAndTargets();
 			while (targetIterator.hasNext()) {
 				PackedSwitchTarget target = targetIterator.next();
-
-				int targetAddress = codeAddress + target.targetAddressOffset;
-
-				result += String.format("    case %d: %s;\n", target.value,
-						getGotoLabel(curTrace, targetAddress));
+				keys.add(target.value);
+				targets.add(codeAddress + target.targetAddressOffset);
 			}
 
-			int fallthroughAddress = codeAddress
-					+ instruction.getSize(codeAddress);
-			result += String.format("    default: %s;\n",
-					getGotoLabel(curTrace, fallthroughAddress));
-
-			result += "  }";
+			result += emitSwitch(codeAddress, curTrace, vA, keys, targets,
+					codeAddress + instruction.getSize(codeAddress));
 			break;
 		}
 
@@ -579,25 +700,19 @@ public class BytecodeToCConverter {
 			SparseSwitchDataPseudoInstruction dataInstruction = (SparseSwitchDataPseudoInstruction) context.currentRegion
 					.getInstructionAtCodeAddress(codeAddress + dataOffset);
 
-			result += String.format("  switch (v[%d]) {\n", vA);
-
+			// the keys of a sparse-switch are sorted
+			List<Integer> keys = new ArrayList<Integer>();
+			List<Integer> targets = new ArrayList<Integer>();
 			Iterator<SparseSwitchTarget> targetIterator = dataInstruction
 					.iterateKeysAndTargets();
 			while (targetIterator.hasNext()) {
 				SparseSwitchTarget target = targetIterator.next();
-
-				int targetAddress = codeAddress + target.targetAddressOffset;
-
-				result += String.format("    case %d: %s;\n", target.key,
-						getGotoLabel(curTrace, targetAddress));
+				keys.add(target.key);
+				targets.add(codeAddress + target.targetAddressOffset);
 			}
 
-			int fallthroughAddress = codeAddress
-					+ instruction.getSize(codeAddress);
-			result += String.format("    default: %s;\n",
-					getGotoLabel(curTrace, fallthroughAddress));
-
-			result += "  }";
+			result += emitSwitch(codeAddress, curTrace, vA, keys, targets,
+					codeAddress + instruction.getSize(codeAddress));
 			break;
 		}
 
@@ -815,7 +930,7 @@ public class BytecodeToCConverter {
 
 		// opcode: 4d aput-object
 		case APUT_OBJECT: {
-			result += emitArrayPut(codeAddress, curTrace, instruction, "int", 4);
+			result += emitObjectArrayPut(codeAddress, curTrace, instruction);
 			break;
 		}
 
@@ -882,19 +997,19 @@ public class BytecodeToCConverter {
 
 		// opcode: 63 sget-boolean
 		case SGET_BOOLEAN: {
-			result += emitStaticGet(codeAddress, curTrace, instruction, "char");
+			result += emitStaticGet(codeAddress, curTrace, instruction, "unsigned char");
 			break;
 		}
 
 		// opcode: 64 sget-byte
 		case SGET_BYTE: {
-			result += emitStaticGet(codeAddress, curTrace, instruction, "char");
+			result += emitStaticGet(codeAddress, curTrace, instruction, "signed char");
 			break;
 		}
 
 		// opcode: 65 sget-char
 		case SGET_CHAR: {
-			result += emitStaticGet(codeAddress, curTrace, instruction, "char");
+			result += emitStaticGet(codeAddress, curTrace, instruction, "unsigned short");
 			break;
 		}
 
@@ -919,25 +1034,32 @@ public class BytecodeToCConverter {
 
 		// opcode: 69 sput-object
 		case SPUT_OBJECT: {
+			int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
+			int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(LiteralPoolType.STATIC_FIELD,
+					((InstructionWithReference) instruction).getReferencedItem().getIndex());
+
+			// the field's card is its class's
+			result += emitCardMark(String.format("*((int*) (sf%d - %d))", literalPoolLoc, offsetStaticFieldValue),
+					String.format("v[%d]", vA), "  ");
 			result += emitStaticPut(codeAddress, curTrace, instruction, "int");
 			break;
 		}
 
 		// opcode: 6a sput-boolean
 		case SPUT_BOOLEAN: {
-			result += emitStaticPut(codeAddress, curTrace, instruction, "char");
+			result += emitStaticPut(codeAddress, curTrace, instruction, "unsigned char");
 			break;
 		}
 
 		// opcode: 6b sput-byte
 		case SPUT_BYTE: {
-			result += emitStaticPut(codeAddress, curTrace, instruction, "char");
+			result += emitStaticPut(codeAddress, curTrace, instruction, "signed char");
 			break;
 		}
 
 		// opcode: 6c sput-char
 		case SPUT_CHAR: {
-			result += emitStaticPut(codeAddress, curTrace, instruction, "char");
+			result += emitStaticPut(codeAddress, curTrace, instruction, "unsigned short");
 			break;
 		}
 
@@ -951,12 +1073,20 @@ public class BytecodeToCConverter {
 		// opcode: 6f invoke-super
 		// opcode: 70 invoke-direct
 		case INVOKE_DIRECT: {
+			if (currentIR != null && currentIR.inlinedCallee != null) {
+				result += emitInlinedInvoke(context, codeAddress, instruction);
+				break;
+			}
 			result += emitInvokeSingleton(codeAddress, true);
 			break;
 		}
 
 		// opcode: 71 invoke-static
 		case INVOKE_STATIC: {
+			if (currentIR != null && currentIR.inlinedCallee != null) {
+				result += emitInlinedInvoke(context, codeAddress, instruction);
+				break;
+			}
 			result += emitInvokeSingleton(codeAddress, false);
 			break;
 		}
@@ -971,12 +1101,20 @@ public class BytecodeToCConverter {
 		// opcode: 75 invoke-super/range
 		// opcode: 76 invoke-direct/range
 		case INVOKE_DIRECT_RANGE: {
+			if (currentIR != null && currentIR.inlinedCallee != null) {
+				result += emitInlinedInvoke(context, codeAddress, instruction);
+				break;
+			}
 			result += emitInvokeSingleton(codeAddress, true);
 			break;
 		}
 
 		// opcode: 77 invoke-static/range
 		case INVOKE_STATIC_RANGE: {
+			if (currentIR != null && currentIR.inlinedCallee != null) {
+				result += emitInlinedInvoke(context, codeAddress, instruction);
+				break;
+			}
 			result += emitInvokeSingleton(codeAddress, false);
 			break;
 		}
@@ -1178,7 +1316,7 @@ public class BytecodeToCConverter {
 
 		// opcode: 93 div-int
 		case DIV_INT: {
-			result += emitIntArith(codeAddress, curTrace, instruction, "*");
+			result += emitIntArith(codeAddress, curTrace, instruction, "/");
 			break;
 		}
 
@@ -1748,10 +1886,15 @@ public class BytecodeToCConverter {
 			int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 			int offset = ((OdexedFieldAccess) instruction).getFieldOffset();
 
+			ScalarObject object = getScalarObject(vB);
+			if (object != null) {
+				result += String.format("  v[%d] = %s;", vA, object.getWordName(offset));
+				break;
+			}
+			result += emitNullCheck(String.format("v[%d]", vB), codeAddress, "  ");
 			result += String
-					.format("  if (v[%2$d] == 0) TRACE_EXCEPTION(%4$#x)\n"
-							+ "  v[%1$d] = *((int*) (((char*)v[%2$d]) + %3$#x));",
-							vA, vB, offset, codeAddress);
+					.format("  v[%1$d] = *((int*) (((char*)v[%2$d]) + %3$#x));",
+							vA, vB, offset);
 			break;
 		}
 
@@ -1761,11 +1904,17 @@ public class BytecodeToCConverter {
 			int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 			int offset = ((OdexedFieldAccess) instruction).getFieldOffset();
 
+			ScalarObject object = getScalarObject(vB);
+			if (object != null) {
+				result += String.format("  v[%d] = %s;\n  v[%d] = %s;", vA, object.getWordName(offset),
+						vA + 1, object.getWordName(offset + 4));
+				break;
+			}
+			result += emitNullCheck(String.format("v[%d]", vB), codeAddress, "  ");
 			result += String
-					.format("  if (v[%3$d] == 0) TRACE_EXCEPTION(%6$#x)\n"
-							+ "  v[%1$d] = *((int*) (((char*)v[%3$d]) + %4$#x));\n"
+					.format("  v[%1$d] = *((int*) (((char*)v[%3$d]) + %4$#x));\n"
 							+ "  v[%2$d] = *((int*) (((char*)v[%3$d]) + %5$#x));",
-							vA, vA + 1, vB, offset, offset + 4, codeAddress);
+							vA, vA + 1, vB, offset, offset + 4);
 			break;
 		}
 
@@ -1775,10 +1924,10 @@ public class BytecodeToCConverter {
 			int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 			int offset = ((OdexedFieldAccess) instruction).getFieldOffset();
 
+			result += emitNullCheck(String.format("v[%d]", vB), codeAddress, "  ");
 			result += String
-					.format("  if (v[%2$d] == 0) TRACE_EXCEPTION(%4$#x)\n"
-							+ "  v[%1$d] = *((int*) (((char*)v[%2$d]) + %3$#x));",
-							vA, vB, offset, codeAddress);
+					.format("  v[%1$d] = *((int*) (((char*)v[%2$d]) + %3$#x));",
+							vA, vB, offset);
 			break;
 		}
 
@@ -1788,10 +1937,15 @@ public class BytecodeToCConverter {
 			int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 			int offset = ((OdexedFieldAccess) instruction).getFieldOffset();
 
+			ScalarObject object = getScalarObject(vB);
+			if (object != null) {
+				result += String.format("  %s = v[%d];", object.getWordName(offset), vA);
+				break;
+			}
+			result += emitNullCheck(String.format("v[%d]", vB), codeAddress, "  ");
 			result += String
-					.format("  if (v[%2$d] == 0) TRACE_EXCEPTION(%4$#x)\n"
-							+ "  *((int*) (((char*)v[%2$d]) + %3$#x)) = v[%1$d];",
-							vA, vB, offset, codeAddress);
+					.format("  *((int*) (((char*)v[%2$d]) + %3$#x)) = v[%1$d];",
+							vA, vB, offset);
 			break;
 		}
 
@@ -1801,11 +1955,17 @@ public class BytecodeToCConverter {
 			int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 			int offset = ((OdexedFieldAccess) instruction).getFieldOffset();
 
+			ScalarObject object = getScalarObject(vB);
+			if (object != null) {
+				result += String.format("  %s = v[%d];\n  %s = v[%d];", object.getWordName(offset), vA,
+						object.getWordName(offset + 4), vA + 1);
+				break;
+			}
+			result += emitNullCheck(String.format("v[%d]", vB), codeAddress, "  ");
 			result += String
-					.format("  if (v[%3$d] == 0) TRACE_EXCEPTION(%6$#x)\n"
-							+ "  *((int*) (((char*)v[%3$d]) + %4$#x)) = v[%1$d];\n"
+					.format("  *((int*) (((char*)v[%3$d]) + %4$#x)) = v[%1$d];\n"
 							+ "  *((int*) (((char*)v[%3$d]) + %5$#x)) = v[%2$d];",
-							vA, vA + 1, vB, offset, offset + 4, codeAddress);
+							vA, vA + 1, vB, offset, offset + 4);
 			break;
 		}
 
@@ -1815,21 +1975,30 @@ public class BytecodeToCConverter {
 			int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 			int offset = ((OdexedFieldAccess) instruction).getFieldOffset();
 
+			result += emitNullCheck(String.format("v[%d]", vB), codeAddress, "  ");
+			result += emitCardMark(String.format("v[%d]", vB), String.format("v[%d]", vA), "  ");
 			result += String
-					.format("  if (v[%2$d] == 0) TRACE_EXCEPTION(%4$#x)\n"
-							+ "  *((int*) (((char*)v[%2$d]) + %3$#x)) = v[%1$d];",
-							vA, vB, offset, codeAddress);
+					.format("  *((int*) (((char*)v[%2$d]) + %3$#x)) = v[%1$d];",
+							vA, vB, offset);
 			break;
 		}
 
 		// opcode: f8 +invoke-virtual-quick
 		case INVOKE_VIRTUAL_QUICK: {
+			if (currentIR != null && currentIR.inlinedCallee != null) {
+				result += emitGuardedInlinedInvoke(context, codeAddress, instruction);
+				break;
+			}
 			result += emitInvokeVirtualQuick(codeAddress);
 			break;
 		}
 
 		// opcode: f9 +invoke-virtual-quick/range
 		case INVOKE_VIRTUAL_QUICK_RANGE: {
+			if (currentIR != null && currentIR.inlinedCallee != null) {
+				result += emitGuardedInlinedInvoke(context, codeAddress, instruction);
+				break;
+			}
 			result += emitInvokeVirtualQuick(codeAddress);
 			break;
 		}
@@ -1861,163 +2030,303 @@ public class BytecodeToCConverter {
 		return result + "\n\n";
 	}
 
-	private String emitExecuteInline(int codeAddress, Trace curTrace, Instruction instruction, boolean range) {
+	/*
+	 * Does emitExecuteInline null check the first argument of this intrinsic (and leave
+	 * the trace if it's null)? The NullCheckEliminationPass relies on these checks.
+	 */
+	public static boolean isNullCheckingInline(int inlineIndex) {
+		switch (inlineIndex) {
+		case INLINE_STRING_CHARAT:
+		case INLINE_STRING_COMPARETO:
+		case INLINE_STRING_EQUALS:
+		case INLINE_STRING_FASTINDEXOF_II:
+		case INLINE_STRING_IS_EMPTY:
+		case INLINE_STRING_LENGTH:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private String emitExecuteInline(int codeAddress, Trace curTrace, Instruction instruction, boolean range)
+			throws UnimplementedInstructionException {
 		String result = "";
 		int inlineIndex = ((OdexedInvokeInline) instruction)
 				.getInlineIndex();
+		int[] args = getInlineArguments(instruction, range);
 
 		switch (inlineIndex) {
 		case INLINE_EMPTYINLINEMETHOD:
 			result += "// NOP";
 			break;
 		case INLINE_STRING_CHARAT: {
-			int vA = ((FiveRegisterInstruction) instruction).getRegisterD();
-			int vB = ((FiveRegisterInstruction) instruction).getRegisterE();
-
 			result += String
 					.format("  {\n"
 							+ "    // inlined: java.lang.String.charAt()\n"
 							+ "    char *string = (char*) v[%1$d];\n"
-							+ "    if (string == 0) TRACE_EXCEPTION(%3$#x)\n"
+							+ "%5$s"
 							+ "    int offset = *((int*) (string + 16));\n"
 							+ "    int count = *((int*) (string + 20));\n"
 							+ "    if (((unsigned int) v[%2$d]) >= count) TRACE_EXCEPTION(%3$#x)\n"
-							+ "    char *char_array = *((char*) (string + 8));\n"
-							+ "    short int *char_array_contents = (short int*) (char_array + 16 + (2 * v[%2$d]));\n"
-							+ "    *((short int*)(self + %4$d)) = *char_array_contents;\n"
-							+ "  }", vA, vB, codeAddress,
-							offsetThreadReturn);
+							+ "    char *char_array = *((char**) (string + 8));\n"
+							+ "    short int *char_array_contents = (short int*) (char_array + 16 + (2 * (offset + v[%2$d])));\n"
+							+ "    *((int*)(self + %4$d)) = (unsigned short) *char_array_contents;\n"
+							+ "  }", args[0], args[1], codeAddress,
+							offsetThreadReturn, emitNullCheck("string", codeAddress, "    "));
 			break;
 		}
-		case INLINE_STRING_COMPARETO:
-			break;
-		case INLINE_STRING_EQUALS:
-			break;
-		case INLINE_STRING_FASTINDEXOF_II:
-			break;
-		case INLINE_STRING_IS_EMPTY:
+		case INLINE_STRING_COMPARETO: {
+			// Compares two chars at a time while both strings are word aligned
+			result += String
+					.format("  {\n"
+							+ "    // inlined: java.lang.String.compareTo()\n"
+							+ "    char *string = (char*) v[%1$d];\n"
+							+ "%4$s"
+							+ "    char *other = (char*) v[%2$d];\n"
+							+ "    if (other == 0) TRACE_EXCEPTION(%3$#x)\n"
+							+ "    int count = *((int*) (string + 20));\n"
+							+ "    int other_count = *((int*) (other + 20));\n"
+							+ "    int diff = count - other_count;\n"
+							+ "    if (string != other) {\n"
+							+ "      unsigned short *chars = ((unsigned short*) (*((char**) (string + 8)) + 16)) + *((int*) (string + 16));\n"
+							+ "      unsigned short *other_chars = ((unsigned short*) (*((char**) (other + 8)) + 16)) + *((int*) (other + 16));\n"
+							+ "      int min = (count < other_count) ? count : other_count;\n"
+							+ "      int i = 0;\n"
+							+ "      if (((((int) chars) | ((int) other_chars)) & 2) == 0) {\n"
+							+ "        while (i + 2 <= min && *((unsigned int*) (chars + i)) == *((unsigned int*) (other_chars + i))) i += 2;\n"
+							+ "      }\n"
+							+ "      for (; i < min; i++) {\n"
+							+ "        if (chars[i] != other_chars[i]) {\n"
+							+ "          diff = chars[i] - other_chars[i];\n"
+							+ "          break;\n"
+							+ "        }\n"
+							+ "      }\n"
+							+ "    } else {\n"
+							+ "      diff = 0;\n"
+							+ "    }\n"
+							+ "    *((int*)(self + %5$d)) = diff;\n"
+							+ "  }", args[0], args[1], codeAddress,
+							emitNullCheck("string", codeAddress, "    "), offsetThreadReturn);
+			break;
+		}
+		case INLINE_STRING_EQUALS: {
+			// A null or non-String argument is just unequal
+			result += String
+					.format("  {\n"
+							+ "    // inlined: java.lang.String.equals()\n"
+							+ "    char *string = (char*) v[%1$d];\n"
+							+ "%3$s"
+							+ "    char *other = (char*) v[%2$d];\n"
+							+ "    int equal = (other == string);\n"
+							+ "    if (!equal && other != 0 && *((int*) other) == *((int*) string)) {\n"
+							+ "      int count = *((int*) (string + 20));\n"
+							+ "      if (count == *((int*) (other + 20))) {\n"
+							+ "        unsigned short *chars = ((unsigned short*) (*((char**) (string + 8)) + 16)) + *((int*) (string + 16));\n"
+							+ "        unsigned short *other_chars = ((unsigned short*) (*((char**) (other + 8)) + 16)) + *((int*) (other + 16));\n"
+							+ "        int i = 0;\n"
+							+ "        if (((((int) chars) | ((int) other_chars)) & 2) == 0) {\n"
+							+ "          while (i + 2 <= count && *((unsigned int*) (chars + i)) == *((unsigned int*) (other_chars + i))) i += 2;\n"
+							+ "        }\n"
+							+ "        while (i < count && chars[i] == other_chars[i]) i++;\n"
+							+ "        equal = (i == count);\n"
+							+ "      }\n"
+							+ "    }\n"
+							+ "    *((int*)(self + %4$d)) = equal;\n"
+							+ "  }", args[0], args[1],
+							emitNullCheck("string", codeAddress, "    "), offsetThreadReturn);
+			break;
+		}
+		case INLINE_STRING_FASTINDEXOF_II: {
+			// Tests two chars at a time for a match once the pointer is word aligned
+			result += String
+					.format("  {\n"
+							+ "    // inlined: java.lang.String.fastIndexOf()\n"
+							+ "    char *string = (char*) v[%1$d];\n"
+							+ "%4$s"
+							+ "    unsigned int ch = (unsigned int) v[%2$d];\n"
+							+ "    int count = *((int*) (string + 20));\n"
+							+ "    unsigned short *chars = ((unsigned short*) (*((char**) (string + 8)) + 16)) + *((int*) (string + 16));\n"
+							+ "    int found = -1;\n"
+							+ "    int i = (v[%3$d] < 0) ? 0 : v[%3$d];\n"
+							+ "    if (ch <= 0xffff) {\n"
+							+ "      if (i < count && (((int) (chars + i)) & 2) != 0) {\n"
+							+ "        if (chars[i] == ch) found = i;\n"
+							+ "        i++;\n"
+							+ "      }\n"
+							+ "      if (found == -1) {\n"
+							+ "        unsigned int pattern = ch * 0x00010001;\n"
+							+ "        for (; i + 2 <= count; i += 2) {\n"
+							+ "          unsigned int x = *((unsigned int*) (chars + i)) ^ pattern;\n"
+							+ "          if (((x - 0x00010001) & ~x & 0x80008000) != 0) break;\n"
+							+ "        }\n"
+							+ "        for (; i < count; i++) {\n"
+							+ "          if (chars[i] == ch) {\n"
+							+ "            found = i;\n"
+							+ "            break;\n"
+							+ "          }\n"
+							+ "        }\n"
+							+ "      }\n"
+							+ "    }\n"
+							+ "    *((int*)(self + %5$d)) = found;\n"
+							+ "  }", args[0], args[1], args[2],
+							emitNullCheck("string", codeAddress, "    "), offsetThreadReturn);
+			break;
+		}
+		case INLINE_STRING_IS_EMPTY: {
+			result += String.format("  {\n"
+					+ "    // inlined: java.lang.String.isEmpty()\n"
+					+ "    char *string = (char*) v[%1$d];\n"
+					+ "%3$s"
+					+ "    *((int*)(self + %2$d)) = (*((int*) (string + 20)) == 0);\n"
+					+ "  }", args[0], offsetThreadReturn,
+					emitNullCheck("string", codeAddress, "    "));
 			break;
+		}
 		case INLINE_STRING_LENGTH: {
-			int vA = ((FiveRegisterInstruction) instruction).getRegisterD();
 			result += String.format("  {\n"
 					+ "    // inlined: java.lang.String.length()\n"
 					+ "    char *string = (char*) v[%1$d];\n"
-					+ "    if (string == 0) TRACE_EXCEPTION(%2$#x)\n"
+					+ "%4$s"
 					+ "    int count = *((int*) (string + 20));\n"
-					+ "    *((int*)(self + %3$d)) = count;\n" + "  }", vA,
-					codeAddress, offsetThreadReturn);
+					+ "    *((int*)(self + %3$d)) = count;\n" + "  }", args[0],
+					codeAddress, offsetThreadReturn,
+					emitNullCheck("string", codeAddress, "    "));
 			break;
 		}
-		case INLINE_MATH_ABS_INT: {
-			int vA = ((FiveRegisterInstruction) instruction).getRegisterD();
+		case INLINE_MATH_ABS_INT:
+		case INLINE_STRICT_MATH_ABS_INT: {
 			result += String.format("  {\n"
 					+ "    // inlined: java.lang.math.abs(I)\n"
 					+ "    if (v[%1$d] < 0) {\n"
 					+ "      *((int*)(self + %2$d)) = -v[%1$d];\n"
 					+ "    } else {\n"
 					+ "      *((int*)(self + %2$d)) = v[%1$d];\n"
-					+ "    }\n" + "  }", vA, offsetThreadReturn);
+					+ "    }\n" + "  }", args[0], offsetThreadReturn);
 			break;
 		}
 		case INLINE_MATH_ABS_LONG:
+		case INLINE_STRICT_MATH_ABS_LONG: {
+			result += String.format("  {\n"
+					+ "    // inlined: java.lang.math.abs(J)\n"
+					+ "    long long value = *((long long*)(v + %1$d));\n"
+					+ "    *((long long*)(self + %2$d)) = (value < 0) ? -value : value;\n"
+					+ "  }", args[0], offsetThreadReturn);
 			break;
+		}
 		case INLINE_MATH_ABS_FLOAT:
+		case INLINE_STRICT_MATH_ABS_FLOAT: {
+			// clearing the sign bit gets -0.0f and NaN right
+			result += String.format("  *((int*)(self + %2$d)) = v[%1$d] & 0x7fffffff; // inlined: java.lang.math.abs(F)",
+					args[0], offsetThreadReturn);
 			break;
-		case INLINE_MATH_ABS_DOUBLE: {
-			int vA = 0;
-			if (range) {
-				assert(((InvokeInstruction) instruction).getRegCount() == 2);
-				vA = ((RegisterRangeInstruction) instruction).getStartRegister();
-			} else {
-				vA = ((FiveRegisterInstruction) instruction).getRegisterD();
-			}
-			result += String.format("  {\n"
-					+ "    // inlined: java.lang.math.abs(D)\n"
-					+ "    double value = *((double*)(v + %1$d));\n"
-					+ "    if (value < 0.0) {\n"
-					+ "      *((double*)(self + %2$d)) = -value;\n"
-					+ "    } else {\n"
-					+ "      *((double*)(self + %2$d)) = value;\n"
-					+ "    }\n" + "  }", vA, offsetThreadReturn);
+		}
+		case INLINE_MATH_ABS_DOUBLE:
+		case INLINE_STRICT_MATH_ABS_DOUBLE: {
+			// as for floats, clearing the sign bit gets -0.0 and NaN right
+			result += String.format("  *((long long*)(self + %2$d)) = *((long long*)(v + %1$d)) & 0x7fffffffffffffffLL; // inlined: java.lang.math.abs(D)",
+					args[0], offsetThreadReturn);
 			break;
 		}
-		case INLINE_MATH_MIN_INT: {
-			int vA = ((FiveRegisterInstruction) instruction).getRegisterD();
-			int vB = ((FiveRegisterInstruction) instruction).getRegisterE();
+		case INLINE_MATH_MIN_INT:
+		case INLINE_STRICT_MATH_MIN_INT: {
 			result += String.format("  {\n"
 					+ "    // inlined: java.lang.math.min(I)\n"
 					+ "    if (v[%1$d] < v[%2$d]) {\n"
 					+ "      *((int*)(self + %3$d)) = v[%1$d];\n"
 					+ "    } else {\n"
 					+ "      *((int*)(self + %3$d)) = v[%2$d];\n"
-					+ "    }\n" + "  }", vA, vB, offsetThreadReturn);
+					+ "    }\n" + "  }", args[0], args[1], offsetThreadReturn);
 			break;
 		}
 		case INLINE_MATH_MAX_INT:
+		case INLINE_STRICT_MATH_MAX_INT: {
+			result += String.format("  {\n"
+					+ "    // inlined: java.lang.math.max(I)\n"
+					+ "    if (v[%1$d] > v[%2$d]) {\n"
+					+ "      *((int*)(self + %3$d)) = v[%1$d];\n"
+					+ "    } else {\n"
+					+ "      *((int*)(self + %3$d)) = v[%2$d];\n"
+					+ "    }\n" + "  }", args[0], args[1], offsetThreadReturn);
 			break;
-		case INLINE_MATH_SQRT: {
-			// DEFGA
-			int vA = ((FiveRegisterInstruction) instruction).getRegisterD();
+		}
+		case INLINE_MATH_SQRT:
+		case INLINE_STRICT_MATH_SQRT: {
+			// sqrt is correctly rounded, so the strict version is the same
 			result += String
-					.format("\t*((double*) (self+%d)) = __hiya_sqrt(*((double*)(v + %1$d)), lit);",
-							offsetThreadReturn, vA);
+					.format("\t*((double*) (self+%d)) = __hiya_sqrt(*((double*)(v + %d)), lit);",
+							offsetThreadReturn, args[0]);
 			break;
 		}
 		case INLINE_MATH_COS: {
-			int vA = 0;
-			if (range) {
-				assert(((InvokeInstruction) instruction).getRegCount() == 2);
-				vA = ((RegisterRangeInstruction) instruction).getStartRegister();
-			} else {
-				vA = ((FiveRegisterInstruction) instruction).getRegisterD();
-			}
 			result += String
 					.format("\t*((double*) (self+%1$d)) = __hiya_cos(*((double*)(v + %2$d)), lit);",
-							offsetThreadReturn, vA);
+							offsetThreadReturn, args[0]);
 			break;
 		}
 		case INLINE_MATH_SIN: {
-			int vA = 0;
-			if (range) {
-				assert(((InvokeInstruction) instruction).getRegCount() == 2);
-				vA = ((RegisterRangeInstruction) instruction).getStartRegister();
-			} else {
-				vA = ((FiveRegisterInstruction) instruction).getRegisterD();
-			}
 			result += String
 					.format("\t*((double*) (self+%1$d)) = __hiya_sin(*((double*)(v + %2$d)), lit);",
-							offsetThreadReturn, vA);
+							offsetThreadReturn, args[0]);
 			break;
 		}
-		case INLINE_FLOAT_TO_INT_BITS:
+		case INLINE_FLOAT_TO_INT_BITS: {
+			// every NaN becomes the canonical one
+			result += String.format("  {\n"
+					+ "    // inlined: java.lang.Float.floatToIntBits()\n"
+					+ "    int bits = v[%1$d];\n"
+					+ "    if ((bits & 0x7fffffff) > 0x7f800000) bits = 0x7fc00000;\n"
+					+ "    *((int*)(self + %2$d)) = bits;\n"
+					+ "  }", args[0], offsetThreadReturn);
 			break;
+		}
 		case INLINE_FLOAT_TO_RAW_INT_BITS:
+		case INLINE_INT_BITS_TO_FLOAT: {
+			result += String.format("  *((int*)(self + %2$d)) = v[%1$d]; // inlined: %3$s",
+					args[0], offsetThreadReturn,
+					(inlineIndex == INLINE_INT_BITS_TO_FLOAT) ? "java.lang.Float.intBitsToFloat()" : "java.lang.Float.floatToRawIntBits()");
 			break;
-		case INLINE_INT_BITS_TO_FLOAT:
-			break;
-		case INLINE_DOUBLE_TO_LONG_BITS:
+		}
+		case INLINE_DOUBLE_TO_LONG_BITS: {
+			result += String.format("  {\n"
+					+ "    // inlined: java.lang.Double.doubleToLongBits()\n"
+					+ "    long long bits = *((long long*)(v + %1$d));\n"
+					+ "    if ((bits & 0x7fffffffffffffffLL) > 0x7ff0000000000000LL) bits = 0x7ff8000000000000LL;\n"
+					+ "    *((long long*)(self + %2$d)) = bits;\n"
+					+ "  }", args[0], offsetThreadReturn);
 			break;
+		}
 		case INLINE_DOUBLE_TO_RAW_LONG_BITS:
+		case INLINE_LONG_BITS_TO_DOUBLE: {
+			result += String.format("  *((long long*)(self + %2$d)) = *((long long*)(v + %1$d)); // inlined: %3$s",
+					args[0], offsetThreadReturn,
+					(inlineIndex == INLINE_LONG_BITS_TO_DOUBLE) ? "java.lang.Double.longBitsToDouble()" : "java.lang.Double.doubleToRawLongBits()");
 			break;
-		case INLINE_LONG_BITS_TO_DOUBLE:
-			break;
-		case INLINE_STRICT_MATH_ABS_INT:
-			break;
-		case INLINE_STRICT_MATH_ABS_LONG:
-			break;
-		case INLINE_STRICT_MATH_ABS_FLOAT:
-			break;
-		case INLINE_STRICT_MATH_ABS_DOUBLE:
-			break;
-		case INLINE_STRICT_MATH_MIN_INT:
-			break;
-		case INLINE_STRICT_MATH_MAX_INT:
-			break;
-		case INLINE_STRICT_MATH_SQRT:
-			break;
+		}
+		default:
+			throw new UnimplementedInstructionException(
+					String.format("%s (inline index %d)", instruction.opcode.name, inlineIndex), codeAddress);
 		}
 		return result;
 	}
+
+	/*
+	 * The argument registers of an execute-inline, wide arguments taking two.
+	 */
+	private int[] getInlineArguments(Instruction instruction, boolean range) {
+		int[] args = new int[((InvokeInstruction) instruction).getRegCount()];
+		if (range) {
+			int start = ((RegisterRangeInstruction) instruction).getStartRegister();
+			for (int i = 0; i < args.length; i++) {
+				args[i] = start + i;
+			}
+		} else {
+			FiveRegisterInstruction invoke = (FiveRegisterInstruction) instruction;
+			int[] regs = { invoke.getRegisterD(), invoke.getRegisterE(), invoke.getRegisterF(),
+					invoke.getRegisterG(), invoke.getRegisterA() };
+			System.arraycopy(regs, 0, args, 0, args.length);
+		}
+		return args;
+	}
 	
 	private String emitSingleStep(int codeAddress, Trace curTrace,
 			Instruction instruction) {
@@ -2025,20 +2334,546 @@ public class BytecodeToCConverter {
 				.println("Single step is now disabled. Offending instruction: "
 						+ instruction.opcode.toString());
 		System.exit(1);
-		return String.format("  single_step_%1$#x_%2$#x(lit, v, self);",
+		return String.format("  single_step_%1$#x_%2$#x(lit, fp, self);",
 				codeAddress, codeAddress + instruction.getSize(codeAddress));
 	}
 	
+	/*
+	 * Emit the null check of object, unless a pass has shown that it's redundant.
+	 */
+	private String emitNullCheck(String object, int codeAddress, String indent) {
+		// Inlined callees only dereference their receiver, checked at the call
+		if (inlineSite != -1 || (currentIR != null && !currentIR.needsNullCheck)) {
+			return indent + "// null check eliminated\n";
+		}
+		return String.format("%sif (%s == 0) %s\n", indent, object,
+				emitThrow(TraceIRBuilder.nullPointerException, "0, 0", codeAddress));
+	}
+
+	/*
+	 * Emit the range check of v[vIndex] against array_size, unless a pass has shown that
+	 * it's redundant here.
+	 */
+	private String emitRangeCheck(int vIndex, int codeAddress) {
+		if (currentIR != null && (!currentIR.needsRangeCheck || (fastLoop != null && currentIR.rangeCheckVersioned))) {
+			return "    // range check eliminated\n";
+		}
+		return String.format("    if (((unsigned int) v[%d]) >= array_size) %s\n", vIndex,
+				emitThrow(TraceIRBuilder.arrayIndexOutOfBoundsException, String.format("array_size, v[%d]", vIndex), codeAddress));
+	}
+
+	/*
+	 * Emit the C that throws exception, which the instruction at codeAddress raises itself.
+	 * If the trace holds the method's catch handler for it, the VM's helper makes the
+	 * exception (filling in its stack trace from the frame, so the frame's pc is set
+	 * first) and we go to the handler, whose move-exception picks it up. Otherwise the
+	 * interpreter re-executes the instruction and throws it. args are the helper's.
+	 */
+	private String emitThrow(String exception, String args, int codeAddress) {
+		Integer handler = (inlineSite != -1 || currentIR == null) ? null : currentIR.catchHandlers.get(exception);
+		if (handler == null) {
+			return String.format("TRACE_EXCEPTION(%#x)", codeAddress);
+		}
+		String helper = "null_pointer";
+		if (exception.equals(TraceIRBuilder.arrayIndexOutOfBoundsException)) {
+			helper = "array_index";
+		} else if (exception.equals(TraceIRBuilder.arithmeticException)) {
+			helper = "arithmetic";
+		}
+		String result = String.format("{ TRACE_FLUSH_CALL(%#x) *((int**) (self+%d)) = fp; ", codeAddress, offsetThreadCurFrame);
+		result += String.format("__hiya_throw_%s_%#x(%s, lit, fp); TRACE_RELOAD_STATICS ", helper, codeAddress, args);
+		// The interpreter only leaves the exception pending for a move-exception
+		if (region.getInstructionAtCodeAddress(handler).opcode != Opcode.MOVE_EXCEPTION) {
+			result += String.format("*((int*) (self+%d)) = 0; ", offsetThreadException);
+		}
+		return result + getGotoLabel(region.trace, handler) + "; }";
+	}
+
+	/*
+	 * Emit the test of an integer division's divisor, which Dalvik throws on if it's 0.
+	 */
+	private String emitDivisorCheck(String divisor, int codeAddress) {
+		String message = "0";
+		if (currentIR != null && currentIR.catchHandlers.containsKey(TraceIRBuilder.arithmeticException)) {
+			message = String.format("(int) (((char*) lit) - %d)",
+					region.trace.meta.addArrayData(divideByZeroMessageKey, getCString("divide by zero")));
+		}
+		return String.format("  if (%s == 0) %s\n", divisor,
+				emitThrow(TraceIRBuilder.arithmeticException, message + ", 0", codeAddress));
+	}
+
+	private byte[] getCString(String string) {
+		byte[] bytes = new byte[string.length() + 1];
+		for (int i = 0; i < string.length(); i++) {
+			bytes[i] = (byte) string.charAt(i);
+		}
+		return bytes;
+	}
+
+	/*
+	 * Emit the C that sets up array_size and array_data for an access to the array in v[vB].
+	 * Arrays the ArrayCachePass picked keep them in locals, which are only loaded (and the
+	 * array null checked) at accesses that no earlier access dominates.
+	 */
+	private String emitArrayLoad(int vB, int codeAddress) {
+		IRValue cachedArray = (currentIR != null) ? currentIR.cachedArray : null;
+		if (cachedArray == null) {
+			return String.format("    char *array = (char*) v[%d];\n", vB)
+					+ emitNullCheck("array", codeAddress, "    ")
+					+ String.format("    int array_size = *((int*) (array + %d));\n", offsetArrayObjectLength)
+					+ "    char *array_data = array + 16;\n";
+		}
+		
+		String data = ArrayCachePass.getDataName(cachedArray);
+		String length = ArrayCachePass.getLengthName(cachedArray);
+		String result = "";
+		if (currentIR.arrayCacheLoaded) {
+			result += String.format("    // v%d's length and data already loaded\n", vB);
+		} else {
+			result += String.format("    char *array = (char*) v[%d];\n", vB);
+			result += emitNullCheck("array", codeAddress, "    ");
+			result += String.format("    %s = *((int*) (array + %d));\n", length, offsetArrayObjectLength);
+			result += String.format("    %s = array + 16;\n", data);
+		}
+		result += String.format("    int array_size = %s;\n", length);
+		result += String.format("    char *array_data = %s;\n", data);
+		return result;
+	}
+
+	/*
+	 * Emit the code that runs on the way into a loop from outside: the loads the
+	 * LoopInvariantCodeMotionPass hoisted, then the versioning guard. The null check that
+	 * lets a hoisted load go may be further into the loop, so the preheader checks the
+	 * object itself unless it's known to be non-null on the way in.
+	 */
+	public String emitLoopPreheader(Trace curTrace, IRLoop loop) {
+		String result = "";
+		for (IRInstruction inst : loop.hoisted) {
+			Instruction instruction = inst.instruction;
+			String local = LoopInvariantCodeMotionPass.getHoistedName(inst);
+			switch (instruction.opcode) {
+			case CONST_STRING:
+			case CONST_STRING_JUMBO: {
+				int stringIndex = ((InstructionWithReference) instruction).getReferencedItem().getIndex();
+				int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(LiteralPoolType.STRING_POINTER, stringIndex);
+				result += String.format("  %s = lit[%d];\n", local, literalPoolLoc);
+				break;
+			}
+			case CONST_CLASS: {
+				int classIndex = ((InstructionWithReference) instruction).getReferencedItem().getIndex();
+				int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(LiteralPoolType.CLASS_POINTER, classIndex);
+				result += String.format("  %s = lit[%d];\n", local, literalPoolLoc);
+				break;
+			}
+			case ARRAY_LENGTH: {
+				int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
+				if (!loop.nonNullOnEntry.contains(inst.getUse(vB))) {
+					result += String.format("  if (v[%d] == 0) TRACE_EXCEPTION(%#x)\n", vB, loop.getStartAddress());
+				}
+				result += String.format("  %s = *((int*) (((char*) v[%d]) + %d));\n", local, vB, offsetArrayObjectLength);
+				break;
+			}
+			default: {
+				// iget-quick, iget-object-quick
+				int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
+				int offset = ((OdexedFieldAccess) instruction).getFieldOffset();
+				if (!loop.nonNullOnEntry.contains(inst.getUse(vB))) {
+					result += String.format("  if (v[%d] == 0) TRACE_EXCEPTION(%#x)\n", vB, loop.getStartAddress());
+				}
+				result += String.format("  %s = *((int*) (((char*) v[%d]) + %#x));\n", local, vB, offset);
+				break;
+			}
+			}
+		}
+		if (!result.isEmpty()) {
+			result = "  // Loop-invariant loads\n" + result;
+		}
+		if (loop.versioned) {
+			result += emitLoopVersionGuard(loop);
+		}
+		return result;
+	}
+
+	/*
+	 * Emit the prefetches of the arrays a loop walks, at the top of its header.
+	 */
+	public String emitPrefetches(IRLoop loop) {
+		String result = "";
+		for (Prefetch prefetch : loop.prefetches) {
+			result += String.format("  __builtin_prefetch(((char*) v[%d]) + %d + v[%d] * %d, %d);\n",
+					prefetch.arrayRegister, 16 + prefetch.ahead * prefetch.elementSize, prefetch.indexRegister,
+					prefetch.elementSize, prefetch.write ? 1 : 0);
+		}
+		return result;
+	}
+
+	/*
+	 * Emit the check-free copy of a loop the KernelLoopPass picked, as a counted C loop
+	 * over locals and restrict pointers that clang can vectorize. It's entered from the
+	 * versioning guard, goes back to the checked loop if two arrays of the same type it
+	 * writes through are the same array, and writes back the vregs the loop changes on
+	 * the way out. If the loop has to test the suspend flags, it does so every
+	 * kernelChunkSize iterations.
+	 */
+	public String emitKernelLoop(CodeGenContext context, IRLoop loop) {
+		Trace trace = context.currentRegion.trace;
+		IRInstruction test = loop.kernelTest;
+		IRBasicBlock body = test.block.successors.get(0);
+		for (IRBasicBlock block : loop.blocks) {
+			if (block != loop.header) {
+				body = block;
+			}
+		}
+
+		Set<IRValue> bodyValues = new HashSet<IRValue>();
+		for (IRInstruction inst : body.instructions) {
+			bodyValues.addAll(inst.defValues.values());
+		}
+		List<IRPhi> phis = new ArrayList<IRPhi>();
+		for (IRPhi phi : loop.header.phis) {
+			if (phi.result.type != VregType.HIGH_HALF) {
+				phis.add(phi);
+				bodyValues.add(phi.result);
+			}
+		}
+		Set<IRValue> invariants = new LinkedHashSet<IRValue>();
+		invariants.add(test.getUse(((TwoRegisterInstruction) test.instruction).getRegisterB()));
+		Map<IRValue,String> arrays = new LinkedHashMap<IRValue,String>();
+		Set<IRValue> writtenArrays = new HashSet<IRValue>();
+		for (IRInstruction inst : body.instructions) {
+			for (IRValue value : inst.useValues.values()) {
+				if (!bodyValues.contains(value) && value.type != VregType.HIGH_HALF) {
+					invariants.add(value);
+				}
+			}
+			if (RangeCheckEliminationPass.isArrayAccess(inst.instruction) && inst.hoistedTo == null) {
+				IRValue array = inst.getUse(((TwoRegisterInstruction) inst.instruction).getRegisterB());
+				arrays.put(array, KernelLoopPass.getElementType(inst));
+				if (inst.instruction.opcode.name.startsWith("aput")) {
+					writtenArrays.add(array);
+				}
+			}
+		}
+
+		String result = String.format("  __F%#x: {\n", loop.getStartAddress());
+		for (IRValue value : invariants) {
+			String type = KernelLoopPass.getCType(value, value.type.isWide());
+			result += String.format("    %s %s = %s;\n", type, getKernelLocal(value), getKernelRegister(value.register, type));
+		}
+		for (IRPhi phi : phis) {
+			String type = KernelLoopPass.getCType(phi.result, phi.result.type.isWide());
+			result += String.format("    %s %s = %s;\n", type, getKernelLocal(phi.result), getKernelRegister(phi.register, type));
+		}
+		List<IRValue> arrayList = new ArrayList<IRValue>(arrays.keySet());
+		for (int i = 0; i < arrayList.size(); i++) {
+			for (int j = i + 1; j < arrayList.size(); j++) {
+				IRValue a = arrayList.get(i);
+				IRValue b = arrayList.get(j);
+				// one array can be reached through values of different element types too
+				if (writtenArrays.contains(a) || writtenArrays.contains(b)) {
+					result += String.format("    if (%s == %s) goto __L%#x;\n", getKernelLocal(a), getKernelLocal(b), loop.getStartAddress());
+				}
+			}
+		}
+		for (Map.Entry<IRValue,String> entry : arrays.entrySet()) {
+			result += String.format("    %1$s * restrict %2$s_data = (%1$s*) (((char*) %2$s) + 16);\n",
+					entry.getValue(), getKernelLocal(entry.getKey()));
+		}
+
+		String iv = getKernelLocal(loop.kernelInductionVariable.result);
+		String bound = getKernelLocal(test.getUse(((TwoRegisterInstruction) test.instruction).getRegisterB()));
+		String loopBody = "";
+		for (IRInstruction inst : body.instructions) {
+			loopBody += emitKernelInstruction(inst, iv);
+		}
+		for (IRPhi phi : phis) {
+			loopBody += String.format("  %s = %s;\n", getKernelLocal(phi.result), getKernelLocal(phi.getOperandFrom(body)));
+		}
+		String writeBack = "";
+		for (IRPhi phi : phis) {
+			String type = KernelLoopPass.getCType(phi.result, phi.result.type.isWide());
+			writeBack += String.format("  %s = %s;\n", getKernelRegister(phi.register, type), getKernelLocal(phi.result));
+		}
+
+		if (loop.suspendCheck) {
+			result += String.format("    while (%s < %s) {\n", iv, bound);
+			result += String.format("      int kernel_end = (%2$s - %1$s > %3$d) ? %1$s + %3$d : %2$s;\n", iv, bound, kernelChunkSize);
+			result += String.format("      for (; %s < kernel_end; ) {\n", iv);
+			result += indent(loopBody, "      ");
+			result += "      }\n";
+			result += String.format("      if ( %s != 0 ) {\n", getSuspendFlags(test.callFlagsPending));
+			result += indent(writeBack, "      ");
+			result += String.format("        TRACE_EXCEPTION(%#x)\n", loop.getStartAddress());
+			result += "      }\n";
+			result += "    }\n";
+		} else {
+			result += String.format("    for (; %s < %s; ) {\n", iv, bound);
+			result += indent(loopBody, "    ");
+			result += "    }\n";
+		}
+		result += indent(writeBack, "  ");
+		int exitAddress = test.codeAddress + ((OffsetInstruction) test.instruction).getTargetAddressOffset();
+		result += String.format("    %s;\n", getGotoLabel(trace, test, exitAddress));
+		return result + "  }\n";
+	}
+
+	/*
+	 * Emit one body instruction of a kernel loop, with ivLocal as the array index.
+	 */
+	private String emitKernelInstruction(IRInstruction inst, String ivLocal) {
+		Instruction instruction = inst.instruction;
+		String name = instruction.opcode.name;
+		if (name.startsWith("goto") || name.equals("nop")) {
+			return "";
+		}
+		int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
+		IRValue def = inst.definesRegister(vA) ? inst.getDef(vA) : null;
+		String type = KernelLoopPass.getCType(def, name.contains("-wide"));
+		Matcher opType = Pattern.compile(".*-(int|long|float|double)(/.*)?").matcher(name);
+		if (opType.matches()) {
+			// arithmetic says what it produces
+			type = opType.group(1).equals("long") ? "long long" : opType.group(1);
+		}
+		String local = (def == null) ? null : getKernelLocal(def);
+
+		if (inst.hoistedTo != null) {
+			return String.format("  %s %s = %s;\n", type, local,
+					getKernelBits(LoopInvariantCodeMotionPass.getHoistedName(inst), type));
+		}
+		if (inst.foldedConstant != null) {
+			return String.format("  %s %s = %d;\n", type, local, inst.foldedConstant);
+		}
+		if (RangeCheckEliminationPass.isArrayAccess(instruction)) {
+			IRValue array = inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB());
+			String element = String.format("%s_data[%s]", getKernelLocal(array), ivLocal);
+			if (name.startsWith("aget")) {
+				return String.format("  %s %s = %s;\n", type, local, element);
+			}
+			return String.format("  %s = %s;\n", element, getKernelLocal(inst.getUse(vA)));
+		}
+		if (name.startsWith("const-wide")) {
+			long literal = ((LiteralInstruction) instruction).getLiteral();
+			if (name.endsWith("/high16")) {
+				literal <<= 48;
+			}
+			return String.format("  %s %s = %s;\n", type, local, getKernelBits(literal + "LL", type));
+		}
+		if (name.startsWith("const")) {
+			long literal = ((LiteralInstruction) instruction).getLiteral();
+			if (name.endsWith("/high16")) {
+				literal <<= 16;
+			}
+			return String.format("  %s %s = %s;\n", type, local, getKernelBits(Integer.toString((int) literal), type));
+		}
+		if (name.startsWith("move")) {
+			IRValue source = inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB());
+			return String.format("  %s %s = %s;\n", type, local, getKernelLocal(source));
+		}
+
+		String expression;
+		Matcher conversion = Pattern.compile("(int|long|float|double)-to-(int|long|float|double|byte|char|short)").matcher(name);
+		if (conversion.matches()) {
+			String source = getKernelLocal(inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB()));
+			String to = conversion.group(2);
+			if (to.equals("byte")) {
+				expression = String.format("(int) (signed char) %s", source);
+			} else if (to.equals("char")) {
+				expression = String.format("(int) (unsigned short) %s", source);
+			} else if (to.equals("short")) {
+				expression = String.format("(int) (short) %s", source);
+			} else {
+				expression = String.format("(%s) %s", type, source);
+			}
+		} else if (name.startsWith("neg-") || name.startsWith("not-")) {
+			String source = getKernelLocal(inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB()));
+			expression = (name.startsWith("neg-") ? "-" : "~") + source;
+		} else {
+			String a, b;
+			if (name.endsWith("/lit8") || name.endsWith("/lit16") || name.equals("rsub-int")) {
+				a = getKernelLocal(inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB()));
+				b = Long.toString(((LiteralInstruction) instruction).getLiteral());
+			} else if (name.endsWith("/2addr")) {
+				a = getKernelLocal(inst.getUse(vA));
+				b = getKernelLocal(inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB()));
+			} else {
+				a = getKernelLocal(inst.getUse(((ThreeRegisterInstruction) instruction).getRegisterB()));
+				b = getKernelLocal(inst.getUse(((ThreeRegisterInstruction) instruction).getRegisterC()));
+			}
+			String op = name.substring(0, name.indexOf('-'));
+			boolean isLong = name.contains("-long");
+			String mask = isLong ? "63" : "31";
+			if (op.equals("rsub")) {
+				expression = String.format("%s - %s", b, a);
+			} else if (op.equals("shl")) {
+				expression = String.format("%s << (%s & %s)", a, b, mask);
+			} else if (op.equals("shr")) {
+				expression = String.format("%s >> (%s & %s)", a, b, mask);
+			} else if (op.equals("ushr")) {
+				String unsigned = isLong ? "unsigned long long" : "unsigned int";
+				expression = String.format("(%s) (((%s) %s) >> (%s & %s))", type, unsigned, a, b, mask);
+			} else {
+				String symbol = op.equals("add") ? "+" : op.equals("sub") ? "-" : op.equals("mul") ? "*" :
+						op.equals("div") ? "/" : op.equals("and") ? "&" : op.equals("or") ? "|" : "^";
+				expression = String.format("%s %s %s", a, symbol, b);
+			}
+		}
+		return String.format("  %s %s = %s;\n", type, local, expression);
+	}
+
+	private String getKernelLocal(IRValue value) {
+		return "k" + value.getName();
+	}
+
+	/*
+	 * Read or write vreg reg as the given C type.
+	 */
+	private String getKernelRegister(int reg, String type) {
+		if (type.equals("int")) {
+			return String.format("v[%d]", reg);
+		}
+		return String.format("*((%s*) (v + %d))", type, reg);
+	}
+
+	/*
+	 * Reinterpret the bits of an int or long long expression as the given type.
+	 */
+	private String getKernelBits(String expression, String type) {
+		if (type.equals("float")) {
+			return String.format("((union { int i; float f; }) { .i = %s }).f", expression);
+		}
+		if (type.equals("double")) {
+			return String.format("((union { long long l; double d; }) { .l = %s }).d", expression);
+		}
+		return expression;
+	}
+
+	private String indent(String code, String indent) {
+		return code.replaceAll("(?m)^(?=.)", indent);
+	}
+
+	private String emitLoopVersionGuard(IRLoop loop) {
+		String condition = "";
+		for (RangeGuard guard : loop.versionGuards) {
+			String length = String.format("*((int*) (((char*) v[%d]) + %d))", guard.arrayRegister, offsetArrayObjectLength);
+			String bound = (guard.boundRegister == -1) ? "0" : String.format("v[%d]", guard.boundRegister);
+			if (!condition.isEmpty()) {
+				condition += "\n      && ";
+			}
+			condition += String.format("v[%d] != 0 && ", guard.arrayRegister);
+			if (guard.increasing) {
+				condition += String.format("v[%d] >= 0 && %s %s %s", guard.indexRegister, bound,
+						guard.inclusive ? "<" : "<=", length);
+			} else {
+				condition += String.format("v[%d] < %s && %s >= %s", guard.indexRegister, length, bound,
+						guard.inclusive ? "0" : "-1");
+			}
+		}
+		return String.format("  // Loop versioning: take the copy without range checks if they can't fail\n"
+				+ "  if (%s) goto __F%#x;\n", condition, loop.getStartAddress());
+	}
+
+	/*
+	 * The thin lock fast path of dvmLockObject. The lock word is thin if bit 0 is clear,
+	 * with the owner's thread id in bits 3-18 and the recursion count in bits 19-31.
+	 * An unowned thin lock is taken with a CAS, and one we own already gets its count
+	 * bumped. Anything else (contention, a fat lock, a failed CAS or a full count) leaves
+	 * for the interpreter to do it.
+	 */
+	private String emitMonitorEnter(int codeAddress, Instruction instruction) {
+		int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
+
+		String result = "  {\n";
+		result += emitNullCheck(String.format("v[%d]", vA), codeAddress, "    ");
+		result += String.format("    volatile int *lock = (int*) (((char*) v[%d]) + %d);\n", vA, offsetObjectLock);
+		result += "    int thin = *lock;\n";
+		result += String.format("    int owner = *((int*) (self + %d)) << %d;\n", offsetThreadThreadId, lockOwnerShift);
+		result += String.format("    if ((thin & %#x) == 0) {\n", lockOwnerMask);
+		result += String.format("      if (TRACE_CAS(lock, thin, thin | owner) != 0) TRACE_EXCEPTION(%#x)\n", codeAddress);
+		result += "      TRACE_MEMBAR\n";
+		result += String.format("    } else if ((thin & %#x) == owner && (((unsigned int) thin) >> %d) != %#x) {\n",
+				lockOwnerMask, lockCountShift, lockCountMax);
+		result += String.format("      *lock = thin + (1 << %d);\n", lockCountShift);
+		result += String.format("    } else TRACE_EXCEPTION(%#x)\n", codeAddress);
+		return result + "  }";
+	}
+
+	/*
+	 * The thin lock fast path of dvmUnlockObject: drop the count, or the lock if it's the
+	 * last, keeping the hash state bits. Locks we don't own thin leave for the interpreter,
+	 * which throws if we don't own them at all.
+	 */
+	private String emitMonitorExit(int codeAddress, Instruction instruction) {
+		int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
+
+		String result = "  {\n";
+		result += emitNullCheck(String.format("v[%d]", vA), codeAddress, "    ");
+		result += String.format("    volatile int *lock = (int*) (((char*) v[%d]) + %d);\n", vA, offsetObjectLock);
+		result += "    int thin = *lock;\n";
+		result += String.format("    if ((thin & %#x) != (*((int*) (self + %d)) << %d)) TRACE_EXCEPTION(%#x)\n",
+				lockOwnerMask, offsetThreadThreadId, lockOwnerShift, codeAddress);
+		result += "    TRACE_MEMBAR\n";
+		result += String.format("    *lock = ((((unsigned int) thin) >> %d) == 0) ? (thin & %#x) : (thin - (1 << %d));\n",
+				lockCountShift, lockHashStateMask, lockCountShift);
+		return result + "  }";
+	}
+
+	/*
+	 * Like the interpreter, only int and reference arrays are filled here. The interpreter
+	 * throws for the others, so we leave for it to do that. The array goes in retval for
+	 * the move-result-object after.
+	 */
+	private String emitFilledNewArray(int codeAddress, Trace curTrace, Instruction instruction) {
+		TypeIdItem type = (TypeIdItem) ((InstructionWithReference) instruction).getReferencedItem();
+		char elementType = type.getTypeDescriptor().charAt(1);
+		if (elementType != 'I' && elementType != 'L' && elementType != '[') {
+			return String.format("  // filled-new-array of %s isn't supported by the VM\n  TRACE_EXCEPTION(%#x)",
+					type.getTypeDescriptor(), codeAddress);
+		}
+		int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(
+				LiteralPoolType.CLASS_POINTER, type.getIndex());
+
+		int length = ((InvokeInstruction) instruction).getRegCount();
+		int[] regs = new int[length];
+		if (instruction instanceof RegisterRangeInstruction) {
+			int start = ((RegisterRangeInstruction) instruction).getStartRegister();
+			for (int i = 0; i < length; i++) {
+				regs[i] = start + i;
+			}
+		} else {
+			FiveRegisterInstruction five = (FiveRegisterInstruction) instruction;
+			int[] fiveRegs = { five.getRegisterD(), five.getRegisterE(), five.getRegisterF(),
+					five.getRegisterG(), five.getRegisterA() };
+			for (int i = 0; i < length; i++) {
+				regs[i] = fiveRegs[i];
+			}
+		}
+
+		String result = "  {\n";
+		result += String.format("    TRACE_FLUSH_CALL(%#x)\n", codeAddress);
+		result += String.format("    int array_obj = new_array(lit[%d], %d, 1 /*ALLOC_DONT_TRACK*/, lit);\n",
+				literalPoolLoc, length);
+		result += String.format("    if (array_obj == 0) TRACE_EXCEPTION(%#x);\n", codeAddress);
+		result += String.format("    *((int*) (self+%d)) = array_obj;\n", offsetThreadReturn);
+		for (int i = 0; i < length; i++) {
+			result += String.format("    *((int*) (((char*) array_obj) + %d)) = v[%d];\n",
+					offsetArrayObjectContents + 4 * i, regs[i]);
+		}
+		if (elementType != 'I' && length > 0) {
+			result += "    TRACE_MARK_CARD(array_obj)\n";
+		}
+		return result + "  }";
+	}
+
 	private String emitLeaveRegion(int codeAddress, Trace curTrace, Instruction instruction) {
 		return String.format("  // Leaving on purpose...\n  TRACE_EXCEPTION(%#x)", codeAddress);
 	}
 
 	private String emitPrintVregs(int codeAddress) {
-		return String.format("  print_vregs(v, self, 0x%x, lit);", codeAddress);
+		return String.format("  TRACE_FLUSH_ALL\n  print_vregs(fp, self, 0x%x, lit);", codeAddress);
 	}
 	
 	private String emitTrail(int codeAddress) {
-		return String.format("  print_trail(v, self, 0x%x, lit);", codeAddress);
+		return String.format("  TRACE_FLUSH_ALL\n  print_trail(fp, self, 0x%x, lit);", codeAddress);
 	}
 
 	private String emitMove(int codeAddress, Trace curTrace,
@@ -2046,6 +2881,12 @@ public class BytecodeToCConverter {
 		int vA = ((TwoRegisterInstruction) instruction).getRegisterA();
 		int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 
+		// only a float local holds exactly the word being moved
+		String localA = getTypedLocal(curTrace, vA, VregType.FLOAT);
+		String localB = getTypedLocal(curTrace, vB, VregType.FLOAT);
+		if (localA != null && localB != null) {
+			return String.format("  %s = %s;", localA, localB);
+		}
 		return String.format("  v[%d] = v[%d];", vA, vB);
 	}
 
@@ -2054,15 +2895,60 @@ public class BytecodeToCConverter {
 		int vA = ((TwoRegisterInstruction) instruction).getRegisterA();
 		int vB = ((TwoRegisterInstruction) instruction).getRegisterB();
 
+		String localA = getTypedLocal(curTrace, vA, VregType.DOUBLE);
+		String localB = getTypedLocal(curTrace, vB, VregType.DOUBLE);
+		if (localA != null && localB != null) {
+			return String.format("  %s = %s;", localA, localB);
+		}
 		return String.format(
 				"  *((long long*)(v + %d)) = *((long long*)(v + %d));", vA, vB);
 	}
 
+	/*
+	 * The float/double local vreg lives in, if it's one of the given type, or null.
+	 * Inlined callees have their own vregs.
+	 */
+	private String getTypedLocal(Trace curTrace, int vreg, VregType type) {
+		if (inlineSite != -1 || curTrace.ir.registerTypes.get(vreg) != type) {
+			return null;
+		}
+		return curTrace.ir.getTypedLocal(vreg);
+	}
+
+	/*
+	 * If vA lives in a float local (for a 32-bit constant) or a double local (for a wide
+	 * one), assign the constant's bits to it as an FP literal, so clang doesn't have to
+	 * move it over from a core register. Returns null if vA is in v[] or another kind of
+	 * local, or the value has no literal form (NaN, infinity).
+	 */
+	private String emitTypedConst(Trace curTrace, int vA, long bits, boolean wide) {
+		String local = getTypedLocal(curTrace, vA, wide ? VregType.DOUBLE : VregType.FLOAT);
+		if (local == null) {
+			return null;
+		}
+		if (!wide) {
+			float value = Float.intBitsToFloat((int) bits);
+			if (Float.isNaN(value) || Float.isInfinite(value)) {
+				return null;
+			}
+			return String.format("  %s = %sf;", local, Float.toHexString(value));
+		}
+		double value = Double.longBitsToDouble(bits);
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return null;
+		}
+		return String.format("  %s = %s;", local, Double.toHexString(value));
+	}
+
 	private String emitConst(int codeAddress, Trace curTrace,
 			Instruction instruction) {
 		int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
 		long lit = ((LiteralInstruction) instruction).getLiteral();
 
+		String typed = emitTypedConst(curTrace, vA, lit, false);
+		if (typed != null) {
+			return typed;
+		}
 		return String.format("  v[%d] = %d;", vA, lit);
 	}
 
@@ -2071,6 +2957,10 @@ public class BytecodeToCConverter {
 		int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
 		long lit = ((LiteralInstruction) instruction).getLiteral();
 
+		String typed = emitTypedConst(curTrace, vA, lit, true);
+		if (typed != null) {
+			return typed;
+		}
 		return String.format("  *((long long*)(v + %d)) = %d;", vA, lit);
 	}
 
@@ -2079,6 +2969,10 @@ public class BytecodeToCConverter {
 		int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
 		long lit = ((LiteralInstruction) instruction).getLiteral();
 
+		String typed = emitTypedConst(curTrace, vA, lit << 16, false);
+		if (typed != null) {
+			return typed;
+		}
 		return String.format("  v[%d] = %d;", vA, (lit << 16));
 	}
 
@@ -2087,6 +2981,10 @@ public class BytecodeToCConverter {
 		int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
 		long lit = ((LiteralInstruction) instruction).getLiteral();
 
+		String typed = emitTypedConst(curTrace, vA, lit << 48, true);
+		if (typed != null) {
+			return typed;
+		}
 		return String.format("  *((long long*)(v + %d)) = %dLL;", vA,
 				(lit << 48));
 	}
@@ -2135,14 +3033,14 @@ public class BytecodeToCConverter {
 
 		return String
 				.format("  {\n"
-						+ "    char *array = (char*) v[%2$d];\n"
-						+ "    int array_size = *((int*) (array + 8));\n"
-						+ "    if (array == 0) TRACE_EXCEPTION(%4$#x)\n"
-						+ "    if (((unsigned int) v[%3$d]) >= array_size) TRACE_EXCEPTION(%4$#x)\n"
-						+ "    %5$s *array_contents = (%5$s*) (array + 16 + (%6$d * v[%3$d]));\n"
+						+ "%7$s"
+						+ "%8$s"
+						+ "    %5$s *array_contents = (%5$s*) (array_data + (%6$d * v[%3$d]));\n"
 						+ "    %5$s *reg_location = (%5$s*) (v + %1$d);\n"
 						+ "    *reg_location = *array_contents;\n" + "  }", vA,
-						vB, vC, codeAddress, type, size);
+						vB, vC, codeAddress, type, size,
+						emitArrayLoad(vB, codeAddress),
+						emitRangeCheck(vC, codeAddress));
 	}
 
 	private String emitArrayPut(int codeAddress, Trace curTrace,
@@ -2153,16 +3051,59 @@ public class BytecodeToCConverter {
 
 		return String
 				.format("  {\n"
-						+ "    char *array = (char*) v[%2$d];\n"
-						+ "    int array_size = *((int*) (array + 8));\n"
-						+ "    if (array == 0) TRACE_EXCEPTION(%4$#x)\n"
-						+ "    if (((unsigned int) v[%3$d]) >= array_size) TRACE_EXCEPTION(%4$#x)\n"
-						+ "    %5$s *array_contents = (%5$s*) (array + 16 + (%6$d * v[%3$d]));\n"
+						+ "%7$s"
+						+ "%8$s"
+						+ "    %5$s *array_contents = (%5$s*) (array_data + (%6$d * v[%3$d]));\n"
 						+ "    %5$s *reg_location = (%5$s*) (v + %1$d);\n"
 						+ "    *array_contents = *reg_location;\n" + "  }", vA,
-						vB, vC, codeAddress, type, size);
+						vB, vC, codeAddress, type, size,
+						emitArrayLoad(vB, codeAddress),
+						emitRangeCheck(vC, codeAddress));
+	}
+
+	/*
+	 * aput-object has to check the value can go in the array. It can if its class is the
+	 * array's element class. Otherwise a one dimensional array asks instanceof_*
+	 * (dvmInstanceofNonTrivial), and the interpreter checks any other.
+	 */
+	private String emitObjectArrayPut(int codeAddress, Trace curTrace, Instruction instruction) {
+		int vA = ((ThreeRegisterInstruction) instruction).getRegisterA();
+		int vB = ((ThreeRegisterInstruction) instruction).getRegisterB();
+		int vC = ((ThreeRegisterInstruction) instruction).getRegisterC();
+
+		String result = "  {\n";
+		result += emitArrayLoad(vB, codeAddress);
+		result += emitRangeCheck(vC, codeAddress);
+		result += String.format("    int value = v[%d];\n", vA);
+		result += "    if (value != 0) {\n";
+		result += String.format("      int array_class = *((int*) v[%d]);\n", vB);
+		result += String.format("      int element_class = *((int*) (array_class + %d));\n", offsetClassObjectElementClass);
+		result += String.format("      if (*((int*) value) != element_class && (*((int*) (array_class + %d)) != 1 || "
+				+ "!instanceof_%#x(value, element_class, lit))) TRACE_EXCEPTION(%#x)\n",
+				offsetClassObjectArrayDim, codeAddress, codeAddress);
+		result += emitCardMark(String.format("v[%d]", vB), "value", "      ");
+		result += "    }\n";
+		result += String.format("    *((int*) (array_data + (4 * v[%d]))) = value;\n", vC);
+		return result + "  }";
+	}
+
+	/*
+	 * Mark the card of the object a non-null value is stored into. With a card slot from
+	 * the CardMarkingPass that waits until we leave or call out, and is only done then if
+	 * no other object came along for the slot first.
+	 */
+	private String emitCardMark(String object, String value, String indent) {
+		if (currentIR == null || currentIR.cardSlot == null) {
+			return String.format("%sif (%s != 0) TRACE_MARK_CARD(%s)\n", indent, value, object);
+		}
+		return String.format("%1$sif (%2$s != 0 && %3$s != %4$s) { if (%3$s != 0) TRACE_MARK_CARD(%3$s) %3$s = %4$s; }\n",
+				indent, value, currentIR.cardSlot, object);
 	}
 
+	/*
+	 * Static fields are accessed through the sf<loc> local the generator loads their
+	 * address into, or the sv<loc> local the StaticFieldCachePass keeps their value in.
+	 */
 	private String emitStaticGet(int codeAddress, Trace curTrace,
 			Instruction instruction, String type) {
 		int vA = ((SingleRegisterInstruction) instruction).getRegisterA();
@@ -2171,14 +3112,16 @@ public class BytecodeToCConverter {
 
 		int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(
 				LiteralPoolType.STATIC_FIELD, field);
+		String value = String.format("*((%s*) sf%d)", type, literalPoolLoc);
+		if (curTrace.ir != null && curTrace.ir.cachedStatics.containsKey(field)) {
+			value = String.format("sv%d", literalPoolLoc);
+		}
 
 		if (type.equals("long long")) {
 			return String.format(
-					"  *((long long*) (v + %d)) = *((%s*) lit[%d]);", vA, type,
-					literalPoolLoc);
+					"  *((long long*) (v + %d)) = %s;", vA, value);
 		}
-		return String.format("  v[%d] = (int) *((%s*) lit[%d]);", vA, type,
-				literalPoolLoc);
+		return String.format("  v[%d] = (int) %s;", vA, value);
 	}
 
 	private String emitStaticPut(int codeAddress, Trace curTrace,
@@ -2189,14 +3132,16 @@ public class BytecodeToCConverter {
 
 		int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(
 				LiteralPoolType.STATIC_FIELD, field);
+		String destination = String.format("*((%s*) sf%d)", type, literalPoolLoc);
+		if (curTrace.ir != null && curTrace.ir.cachedStatics.containsKey(field)) {
+			destination = String.format("sv%d", literalPoolLoc);
+		}
 
 		if (type.equals("long long")) {
 			return String.format(
-					"  *((%s*) lit[%d]) = *((long long*) (v + %d));", type,
-					literalPoolLoc, vA);
+					"  %s = *((long long*) (v + %d));", destination, vA);
 		}
-		return String.format("  *((%1$s*) lit[%2$d]) = ((%1$s) v[%3$d]);",
-				type, literalPoolLoc, vA);
+		return String.format("  %s = ((%s) v[%d]);", destination, type, vA);
 	}
 
 	private String emitIntArith(int codeAddress, Trace curTrace,
@@ -2273,10 +3218,37 @@ public class BytecodeToCConverter {
 			}
 		} else if (op.equals("rsub")) {
 			return String.format("  v[%d] = %s - v[%d];", vA, vC, vB);
+		} else if (op.equals("/") || op.equals("%")) {
+			if (vC.equals("0")) {
+				return emitDivisorCheck(vC, codeAddress);
+			}
+			String quotient = getDivision(String.format("v[%d]", vB), vC, op, false);
+			if (!needsLiteral) {
+				return emitDivisorCheck(vC, codeAddress) + String.format("  v[%d] = %s;", vA, quotient);
+			}
+			return String.format("  v[%d] = %s;", vA, quotient);
 		}
 		return String.format("  v[%d] = v[%d] %s %s;", vA, vB, op, vC);
 	}
 
+	/*
+	 * Divide (or take the remainder of) a by a non-zero b. C leaves MIN_VALUE / -1 undefined,
+	 * Dalvik gives MIN_VALUE (and a remainder of 0), so a divisor of -1 is done as a
+	 * wrapping negation instead, the way the interpreter does it.
+	 */
+	private String getDivision(String a, String b, String op, boolean wide) {
+		String unsigned = wide ? "unsigned long long" : "unsigned int";
+		String type = wide ? "long long" : "int";
+		String byMinusOne = op.equals("/") ? String.format("(%s) (0 - (%s) %s)", type, unsigned, a) : "0";
+		if (b.equals("-1")) {
+			return byMinusOne;
+		}
+		if (b.matches("-?[0-9]+")) {
+			return String.format("%s %s %s", a, op, b);
+		}
+		return String.format("(%s == -1) ? %s : %s %s %s", b, byMinusOne, a, op, b);
+	}
+
 	/* FLOAT */
 
 	private String emitFloatArith(int codeAddress, Trace curTrace,
@@ -2418,11 +3390,18 @@ public class BytecodeToCConverter {
 								+ "  }", vA, vB, vC, op);
 			}
 		}
+		String check = "";
+		String result = "a " + op + " b";
+		if (op.equals("/") || op.equals("%")) {
+			check = "  " + emitDivisorCheck("b", codeAddress);
+			result = getDivision("a", "b", op, true);
+		}
 		return String.format("  {\n"
 				+ "    long long a = *((long long*) (v + %2$d));\n"
 				+ "    long long b = *((long long*) (v + %3$d));\n"
-				+ "    *(((long long*) (v + %1$d))) = a %4$s b;\n" + "  }", vA,
-				vB, vC, op);
+				+ "%5$s"
+				+ "    *(((long long*) (v + %1$d))) = %4$s;\n" + "  }", vA,
+				vB, vC, result, check);
 	}
 
 	private String emitTypeConversion(int codeAddress, Trace curTrace,
@@ -2442,32 +3421,344 @@ public class BytecodeToCConverter {
 			nullCheckString = "nullcheck";
 		}
 		return String
-				.format("  if (!invoke_singleton_%1$s_%2$#x(%2$#x, lit, v, self)) TRACE_EXCEPTION(%2$#x)\n"+
-						"  *((int*)(self+40)) &= ~0x4000;\n"+
-						"  if (*((int*)(self+40)) == 0x10000) *((int*)(self+40)) = 0x0;",
+				.format("  TRACE_FLUSH_CALL(%2$#x)\n"+
+						"  if (!invoke_singleton_%1$s_%2$#x(%2$#x, lit, fp, self)) TRACE_EXCEPTION(%2$#x)\n"+
+						"  TRACE_RELOAD_STATICS",
 						nullCheckString, codeAddress);
 	}
 
 	private String emitInvokeInterface(int codeAddress) {
 		return String
-				.format("  if (!invoke_interface_%1$#x(lit, v, self)) TRACE_EXCEPTION(%1$#x)\n"+
-						"  *((int*)(self+40)) &= ~0x4000;\n"+
-						"  if (*((int*)(self+40)) == 0x10000) *((int*)(self+40)) = 0x0;",
+				.format("  TRACE_FLUSH_CALL(%1$#x)\n"+
+						"  if (!invoke_interface_%1$#x(lit, fp, self)) TRACE_EXCEPTION(%1$#x)\n"+
+						"  TRACE_RELOAD_STATICS",
 						codeAddress);
 	}
 
 	private String emitInvokeVirtualQuick(int codeAddress) {
 		return String
-				.format("  if (!invoke_virtual_quick_%1$#x(lit, v, self)) TRACE_EXCEPTION(%1$#x)\n"+
-						"  *((int*)(self+40)) &= ~0x4000;\n"+
-						"  if (*((int*)(self+40)) == 0x10000) *((int*)(self+40)) = 0x0;",
+				.format("  TRACE_FLUSH_CALL(%1$#x)\n"+
+						"  if (!invoke_virtual_quick_%1$#x(lit, fp, self)) TRACE_EXCEPTION(%1$#x)\n"+
+						"  TRACE_RELOAD_STATICS",
 						codeAddress);
 	}
 
+	/*
+	 * Emit the callee of the invoke at codeAddress in place of the call. The callee's
+	 * vregs live in a C array named after the call site, its arguments are copied in,
+	 * and its returns store to the thread's return value, where move-result expects it.
+	 */
+	private String emitInlinedInvoke(CodeGenContext context, int codeAddress, Instruction instruction)
+			throws UnimplementedInstructionException {
+		return emitInlinedInvoke(context, codeAddress, instruction, true);
+	}
+
+	private String emitInlinedInvoke(CodeGenContext context, int codeAddress, Instruction instruction,
+			boolean checkReceiver) throws UnimplementedInstructionException {
+		EncodedMethod callee = currentIR.inlinedCallee;
+		CodeItem codeItem = callee.codeItem;
+		int calleeRegisters = codeItem.getRegisterCount();
+		int firstIn = calleeRegisters - codeItem.getInWords();
+		String frame = String.format("inl%x", codeAddress);
+
+		int[] args = new int[codeItem.getInWords()];
+		if (instruction instanceof RegisterRangeInstruction) {
+			int start = ((RegisterRangeInstruction) instruction).getStartRegister();
+			for (int i = 0; i < args.length; i++) {
+				args[i] = start + i;
+			}
+		} else {
+			FiveRegisterInstruction invoke = (FiveRegisterInstruction) instruction;
+			int[] regs = { invoke.getRegisterD(), invoke.getRegisterE(), invoke.getRegisterF(),
+					invoke.getRegisterG(), invoke.getRegisterA() };
+			for (int i = 0; i < args.length; i++) {
+				args[i] = regs[i];
+			}
+		}
+
+		String result = String.format("  // Inlined %s\n", callee.method.getMethodString());
+		result += "  {\n";
+		// a scalar replaced receiver is never null, and its vreg doesn't point at it
+		boolean scalar = currentIR.scalarObject != null;
+		if ((callee.accessFlags & 0x8) == 0 /* not static */ && checkReceiver && !scalar) {
+			result += emitNullCheck(String.format("v[%d]", args[0]), codeAddress, "    ");
+		}
+		result += String.format("    int %s[%d];\n", frame, Math.max(calleeRegisters, 1));
+		for (int i = 0; i < args.length; i++) {
+			result += String.format("    %s[%d] = v[%d];\n", frame, firstIn + i, args[i]);
+		}
+
+		inlineSite = codeAddress;
+		inlineLabelPrefix = String.format("%s%x_", (fastLoop != null) ? "__J" : "__I", codeAddress);
+		scalarReceiver = scalar ? firstIn : -1;
+		String calleeBody = "";
+		try {
+			int calleeAddress = 0;
+			for (Instruction calleeInstruction : codeItem.getInstructions()) {
+				calleeBody += String.format("  %s%x:\n", inlineLabelPrefix, calleeAddress);
+				calleeBody += convert(context, calleeAddress, calleeInstruction);
+				calleeBody += "\n";
+				calleeAddress += calleeInstruction.getSize(calleeAddress);
+			}
+			calleeBody += String.format("  %sdone: ;\n", inlineLabelPrefix);
+		} finally {
+			inlineSite = -1;
+			scalarReceiver = -1;
+		}
+
+		// The callee's vregs are in its own array, not v
+		calleeBody = calleeBody.replaceAll("\\bv\\[", frame + "[").replace("(v + ", "(" + frame + " + ");
+		return result + calleeBody + "  }";
+	}
+
+	/*
+	 * The ScalarObject an iget-quick/iput-quick on vB accesses, if it has been replaced.
+	 */
+	private ScalarObject getScalarObject(int vB) {
+		if (currentIR == null || currentIR.scalarObject == null) {
+			return null;
+		}
+		if (inlineSite != -1 && vB != scalarReceiver) {
+			return null;
+		}
+		return currentIR.scalarObject;
+	}
+
+	/*
+	 * A new-instance the ScalarReplacementPass replaced only has to clear the locals.
+	 * Its vreg holds null, so the GC never sees a stale value there.
+	 */
+	private String emitScalarAllocation(ScalarObject object, int vA) {
+		String result = "  // scalar replaced, allocated at the exits that need it\n";
+		result += String.format("  v[%d] = 0;", vA);
+		for (int offset : object.words) {
+			result += String.format("\n  %s = 0;", object.getWordName(offset));
+		}
+		return result;
+	}
+
+	/*
+	 * Make the exits in code, the C emitted for inst, allocate the scalar replaced objects
+	 * the interpreter will see there first, and point the vregs that refer to them at them.
+	 * An exit that re-executes inst gets the objects live before it, the rest those live
+	 * after it. If an allocation fails we leave with the exception pending at inst.
+	 */
+	public String emitMaterializations(Trace curTrace, IRInstruction inst, String code) {
+		if (inst.materializeBefore.isEmpty() && inst.materializeAfter.isEmpty()) {
+			return code;
+		}
+		Pattern pattern = Pattern.compile("TRACE_(EXIT|EXCEPTION)\\((0x[0-9a-f]+|[0-9]+)\\)|TRACE_FLUSH_ALL (TRACE_CLEAR_CALL_FLAGS )?return switch_exit;");
+		Matcher matcher = pattern.matcher(code);
+		StringBuffer result = new StringBuffer();
+		while (matcher.find()) {
+			boolean reexecutes = "EXCEPTION".equals(matcher.group(1)) && Integer.decode(matcher.group(2)) == inst.codeAddress;
+			Map<ScalarObject,Set<Integer>> objects = reexecutes ? inst.materializeBefore : inst.materializeAfter;
+			String exit = matcher.group();
+			if (!objects.isEmpty()) {
+				exit = "{ " + emitMaterialization(curTrace, inst, objects) + exit + " }";
+			}
+			matcher.appendReplacement(result, Matcher.quoteReplacement(exit));
+		}
+		matcher.appendTail(result);
+		return result.toString();
+	}
+
+	private String emitMaterialization(Trace curTrace, IRInstruction inst, Map<ScalarObject,Set<Integer>> objects) {
+		String result = "";
+		for (Map.Entry<ScalarObject,Set<Integer>> entry : objects.entrySet()) {
+			ScalarObject object = entry.getKey();
+			IRInstruction allocation = object.allocation;
+			int classIndex = ((InstructionWithReference) allocation.instruction).getReferencedItem().getIndex();
+			int literalPoolLoc = curTrace.meta.addLiteralPoolTypeAndValue(LiteralPoolType.CLASS_POINTER, classIndex);
+
+			// the objects allocated so far have to be in the frame for the GC
+			result += String.format("TRACE_FLUSH_ALL { int obj = new_instance_%#x(lit[%d], 1 /*ALLOC_DONT_TRACK*/, lit); "
+					+ "if (obj == 0) TRACE_EXCEPTION(%#x) ", allocation.codeAddress, literalPoolLoc, inst.codeAddress);
+			for (int offset : object.words) {
+				result += String.format("*((int*) (((char*)obj) + %#x)) = %s; ", offset, object.getWordName(offset));
+			}
+			for (int reg : entry.getValue()) {
+				result += String.format("v[%d] = obj; ", reg);
+			}
+			result += "} ";
+		}
+		return result;
+	}
+
+	/*
+	 * Emit a switch on v[vA] over the sorted keys. Keys covering at least half their range
+	 * become a C switch, which clang turns into a table branch, and the rest a balanced
+	 * binary search. If cases leave the trace to more than one place, they share one exit
+	 * that returns the exit id they put in switch_exit. That exit isn't a TRACE_EXIT, so it
+	 * clears the marks a call may have left in the suspend flags itself.
+	 */
+	private String emitSwitch(int codeAddress, Trace curTrace, int vA, List<Integer> keys,
+			List<Integer> targets, int fallthroughAddress) {
+		String exitLabel = String.format("%s%x_exit", (fastLoop != null) ? "__T" : "__S", codeAddress);
+		Set<Integer> offTrace = new HashSet<Integer>();
+		for (int target : targets) {
+			if (!curTrace.containsCodeAddress(target)) {
+				offTrace.add(target);
+			}
+		}
+		if (!curTrace.containsCodeAddress(fallthroughAddress)) {
+			offTrace.add(fallthroughAddress);
+		}
+		boolean sharedExit = offTrace.size() > 1;
+
+		String[] jumps = new String[keys.size()];
+		for (int i = 0; i < jumps.length; i++) {
+			jumps[i] = getSwitchJump(curTrace, targets.get(i), sharedExit, exitLabel);
+		}
+		String defaultJump = getSwitchJump(curTrace, fallthroughAddress, sharedExit, exitLabel);
+
+		String result = String.format("  {\n    int key = v[%d];\n", vA);
+		if (sharedExit) {
+			result += "    int switch_exit;\n";
+		}
+		long range = keys.isEmpty() ? 0 : (long) keys.get(keys.size() - 1) - keys.get(0) + 1;
+		if (keys.size() >= minJumpTableCases && 2 * keys.size() >= range) {
+			result += "    switch (key) {\n";
+			for (int i = 0; i < jumps.length; i++) {
+				result += String.format("      case %d: %s;\n", keys.get(i), jumps[i]);
+			}
+			result += String.format("      default: %s;\n", defaultJump);
+			result += "    }\n";
+		} else {
+			result += emitSwitchSearch(keys, jumps, 0, jumps.length - 1, defaultJump, "    ");
+		}
+		if (sharedExit) {
+			boolean callFlagsPending = SuspendCheckPlacementPass.isCallFlagsPendingAfter(curTrace.ir.getInstructionAtCodeAddress(codeAddress));
+			result += String.format("  %s: TRACE_FLUSH_ALL %sreturn switch_exit;\n", exitLabel,
+					callFlagsPending ? "TRACE_CLEAR_CALL_FLAGS " : "");
+		}
+		return result + "  }";
+	}
+
+	private String getSwitchJump(Trace curTrace, int targetAddress, boolean sharedExit, String exitLabel) {
+		if (sharedExit && !curTrace.containsCodeAddress(targetAddress)) {
+			return String.format("{ switch_exit = TRACE_EXIT_ID(%#x); goto %s; }", targetAddress, exitLabel);
+		}
+		return getGotoLabel(curTrace, targetAddress);
+	}
+
+	/*
+	 * Binary search keys[lo..hi], testing the last few keys in turn.
+	 */
+	private String emitSwitchSearch(List<Integer> keys, String[] jumps, int lo, int hi, String defaultJump, String indent) {
+		if (hi - lo < 3) {
+			String result = "";
+			for (int i = lo; i <= hi; i++) {
+				result += String.format("%sif (key == %d) %s;\n", indent, keys.get(i), jumps[i]);
+			}
+			return result + String.format("%s%s;\n", indent, defaultJump);
+		}
+		int mid = (lo + hi + 1) / 2;
+		return String.format("%sif (key < %d) {\n", indent, keys.get(mid))
+				+ emitSwitchSearch(keys, jumps, lo, mid - 1, defaultJump, indent + "  ")
+				+ indent + "} else {\n"
+				+ emitSwitchSearch(keys, jumps, mid, hi, defaultJump, indent + "  ")
+				+ indent + "}\n";
+	}
+
+	/*
+	 * Emit a devirtualized invoke-virtual-quick: the inlined callee if the receiver's
+	 * class is the one the DevirtualizationPass guarded on, the virtual call otherwise.
+	 */
+	private String emitGuardedInlinedInvoke(CodeGenContext context, int codeAddress, Instruction instruction)
+			throws UnimplementedInstructionException {
+		int receiver = DevirtualizationPass.getReceiverRegister(instruction);
+		int literalPoolLoc = context.currentRegion.trace.meta.addLiteralPoolTypeAndValue(
+				LiteralPoolType.CLASS_POINTER, currentIR.guardClass.getIndex());
+
+		String result = emitNullCheck(String.format("v[%d]", receiver), codeAddress, "  ");
+		result += String.format("  if (*((int*) v[%d]) == lit[%d]) {\n", receiver, literalPoolLoc);
+		result += emitInlinedInvoke(context, codeAddress, instruction, false);
+		result += "\n  } else {\n";
+		result += emitInvokeVirtualQuick(codeAddress);
+		return result + "\n  }";
+	}
+
+	private String emitInlinedReturn(Instruction instruction) {
+		String result = "";
+		switch (instruction.opcode) {
+		case RETURN:
+		case RETURN_OBJECT:
+			result += String.format("  *((int*) (self+%d)) = v[%d];\n", offsetThreadReturn,
+					((SingleRegisterInstruction) instruction).getRegisterA());
+			break;
+		case RETURN_WIDE:
+			result += String.format("  *((long long*) (self+%d)) = *((long long*)(v + %d));\n", offsetThreadReturn,
+					((SingleRegisterInstruction) instruction).getRegisterA());
+			break;
+		case RETURN_VOID_BARRIER:
+			result += "  barrier();\n";
+			break;
+		default:
+			break;
+		}
+		return result + String.format("  goto %sdone;", inlineLabelPrefix);
+	}
+
 	public String getGotoLabel(Trace trace, int codeAddress) {
+		return getGotoLabel(trace, currentIR, codeAddress);
+	}
+
+	/*
+	 * Get the jump from the instruction 'from' to codeAddress. Jumps into a loop with
+	 * a preheader go through it, and jumps inside the versioned copy stay in it.
+	 */
+	public String getGotoLabel(Trace trace, IRInstruction from, int codeAddress) {
+		if (inlineSite != -1) {
+			return String.format("goto %s%x", inlineLabelPrefix, codeAddress);
+		}
 		if (!trace.containsCodeAddress(codeAddress)) {
 			return String.format("TRACE_EXIT(%#x)", codeAddress);
 		}
+		if (trace.ir != null) {
+			IRLoop loop = trace.ir.getLoopWithHeader(codeAddress);
+			if (loop != null && loop.suspendCheck && loop.contains(from)) {
+				return emitSuspendCheck(trace.ir, codeAddress, SuspendCheckPlacementPass.isCallFlagsPendingAfter(from)) + " " +
+						getJump(trace, from, codeAddress);
+			}
+		}
+		return getJump(trace, from, codeAddress);
+	}
+
+	/*
+	 * Test the suspend flags on a loop back-edge. If they're set we leave to the
+	 * interpreter at the loop header.
+	 */
+	private String emitSuspendCheck(TraceIR ir, int headerAddress, boolean callFlagsPending) {
+		if (ir.suspendPollInterval > 0) {
+			return String.format("{ if (--suspendCountdown == 0) { suspendCountdown = %d; "
+					+ "if ( %s != 0 ) TRACE_EXCEPTION(%#x) } }",
+					ir.suspendPollInterval, getSuspendFlags(callFlagsPending), headerAddress);
+		}
+		return String.format("{ if ( %s != 0 ) TRACE_EXCEPTION(%#x) }", getSuspendFlags(callFlagsPending), headerAddress);
+	}
+
+	/*
+	 * The suspend flags, seen past the marks calls leave in them if there may have been
+	 * one (see SuspendCheckPlacementPass).
+	 */
+	public static String getSuspendFlags(boolean callFlagsPending) {
+		return callFlagsPending ? "TRACE_FLAGS_AFTER_CALLS" : "*((int*)(self+40))";
+	}
+
+	private String getJump(Trace trace, IRInstruction from, int codeAddress) {
+		if (trace.ir != null) {
+			if (fastLoop != null && fastLoop.containsCodeAddress(trace.ir, codeAddress)) {
+				return String.format("goto __F%#x", codeAddress);
+			}
+			if (fastLoop == null && openLoop != null && openLoop.getStartAddress() == codeAddress) {
+				return "continue";
+			}
+			IRLoop loop = trace.ir.getLoopWithPreheader(codeAddress);
+			if (loop != null && !loop.contains(from)) {
+				return String.format("goto __P%#x", codeAddress);
+			}
+		}
 		return String.format("goto __L%#x", codeAddress);
 	}
 }
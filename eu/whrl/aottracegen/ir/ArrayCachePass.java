@@ -0,0 +1,103 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Finds arrays that are accessed more than once through the same SSA value, so the
+ * converter can load their length and data pointer into C locals at the first access
+ * and reuse them at every access that access dominates.
+ *
+ * A Dalvik array never moves or changes length, so the cached values stay good for
+ * as long as the register holds the same definition.
+ */
+public class ArrayCachePass implements IPass {
+
+	public String getName() {
+		return "array base/length caching";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		Map<IRValue,List<IRInstruction>> accesses = new LinkedHashMap<IRValue,List<IRInstruction>>();
+		for (IRInstruction inst : ir.instructions) {
+			int arrayRegister = getArrayRegister(inst.instruction);
+			if (arrayRegister == -1 || !inst.block.reachable) {
+				continue;
+			}
+			IRValue array = inst.getUse(arrayRegister);
+			if (array == null) {
+				continue;
+			}
+			List<IRInstruction> list = accesses.get(array);
+			if (list == null) {
+				list = new ArrayList<IRInstruction>();
+				accesses.put(array, list);
+			}
+			list.add(inst);
+		}
+
+		for (Map.Entry<IRValue,List<IRInstruction>> entry : accesses.entrySet()) {
+			List<IRInstruction> list = entry.getValue();
+			boolean anyReused = false;
+			for (IRInstruction inst : list) {
+				for (IRInstruction other : list) {
+					// an access that can go to a catch handler may not have loaded them
+					if (other != inst && other.catchHandlers.isEmpty() && dominates(other, inst)) {
+						inst.arrayCacheLoaded = true;
+						anyReused = true;
+						break;
+					}
+				}
+			}
+			if (!anyReused) {
+				continue;
+			}
+			for (IRInstruction inst : list) {
+				inst.cachedArray = entry.getKey();
+			}
+			ir.cachedArrays.add(entry.getKey());
+		}
+	}
+
+	/*
+	 * The register holding the array for aget/aput/array-length, or -1.
+	 */
+	public static int getArrayRegister(Instruction instruction) {
+		if (instruction.opcode == Opcode.ARRAY_LENGTH) {
+			return ((TwoRegisterInstruction) instruction).getRegisterB();
+		}
+		if (RangeCheckEliminationPass.isArrayAccess(instruction)) {
+			return ((TwoRegisterInstruction) instruction).getRegisterB();
+		}
+		return -1;
+	}
+
+	/*
+	 * The C locals holding the cached data pointer and length of array.
+	 */
+	public static String getDataName(IRValue array) {
+		return "a" + array.getName() + "_data";
+	}
+
+	public static String getLengthName(IRValue array) {
+		return "a" + array.getName() + "_len";
+	}
+
+	/*
+	 * Does a execute before b on every path to b?
+	 */
+	private boolean dominates(IRInstruction a, IRInstruction b) {
+		if (a.block == b.block) {
+			return a.block.instructions.indexOf(a) < b.block.instructions.indexOf(b);
+		}
+		return a.block.dominates(b.block);
+	}
+}
@@ -0,0 +1,78 @@
+package eu.whrl.aottracegen.ir;
+
+import org.jf.dexlib.CodeItem;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.InstructionWithReference;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.ThreeRegisterInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Gives every reference store in the trace (aput-object, iput-object-quick, sput-object,
+ * and inlined callees that iput-object-quick to their receiver) a card slot: a C local
+ * holding the object whose card the store still has to mark, or 0.
+ *
+ * A store only marks the card of the object that was pending in its slot when the object
+ * it stores to is a different one, so a loop storing to the same object or array marks
+ * its card once. The pending cards are marked whenever the trace leaves or makes a call,
+ * which is the only time the GC can look at the card table, since only then can this
+ * thread be suspended. Stores to the same SSA value share a slot, as do stores to the
+ * same static field, whose card is its class's.
+ */
+public class CardMarkingPass implements IPass {
+
+	public String getName() {
+		return "card marking";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		for (IRInstruction inst : ir.instructions) {
+			if (!inst.executable) {
+				continue;
+			}
+			Instruction instruction = inst.instruction;
+			IRValue object;
+			switch (instruction.opcode) {
+			case APUT_OBJECT:
+				object = inst.getUse(((ThreeRegisterInstruction) instruction).getRegisterB());
+				break;
+			case IPUT_OBJECT_QUICK:
+				object = inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB());
+				break;
+			case SPUT_OBJECT: {
+				int field = ((InstructionWithReference) instruction).getReferencedItem().getIndex();
+				setSlot(ir, inst, String.format("card_f%x", field));
+				continue;
+			}
+			default:
+				if (inst.inlinedCallee == null || !storesReference(inst.inlinedCallee.codeItem)) {
+					continue;
+				}
+				object = inst.getUse(DevirtualizationPass.getReceiverRegister(instruction));
+				break;
+			}
+			if (object == null) {
+				// nothing else stores through this slot
+				setSlot(ir, inst, String.format("card_%x", inst.codeAddress));
+			} else {
+				setSlot(ir, inst, "card_" + object.getName());
+			}
+		}
+	}
+
+	private void setSlot(TraceIR ir, IRInstruction inst, String slot) {
+		inst.cardSlot = slot;
+		ir.cardSlots.add(slot);
+	}
+
+	private boolean storesReference(CodeItem codeItem) {
+		for (Instruction instruction : codeItem.getInstructions()) {
+			if (instruction.opcode == Opcode.IPUT_OBJECT_QUICK) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,355 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.LiteralInstruction;
+import org.jf.dexlib.Code.OffsetInstruction;
+import org.jf.dexlib.Code.SingleRegisterInstruction;
+import org.jf.dexlib.Code.ThreeRegisterInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Sparse conditional constant propagation over the 32-bit values of the trace.
+ *
+ * A value is unknown until something defines it, then either one constant or anything.
+ * Blocks only become executable once an executable branch can go to them, so a branch
+ * on a constant leaves its other arm (and anything only it reaches) unexecuted. Phis
+ * only look at operands from executable predecessors.
+ *
+ * The converter then emits folded instructions as a store of their result, branches on
+ * constants as a plain jump, reads of constant registers as the constant, and nothing
+ * for unexecuted instructions. Wide values are left alone.
+ */
+public class ConstantPropagationPass implements IPass {
+	// the lattice: no entry is unknown, BOTTOM is not a constant
+	private static final Object BOTTOM = new Object();
+	private Map<IRValue,Object> lattice;
+	private Set<IRBasicBlock> executable;
+	private Set<String> executableEdges;
+	private boolean changed;
+
+	public String getName() {
+		return "constant propagation";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		lattice = new HashMap<IRValue,Object>();
+		executable = new HashSet<IRBasicBlock>();
+		executableEdges = new HashSet<String>();
+		executable.add(ir.entryBlock);
+
+		changed = true;
+		while (changed) {
+			changed = false;
+			for (IRBasicBlock block : ir.rpo) {
+				if (!executable.contains(block)) {
+					continue;
+				}
+				for (IRPhi phi : block.phis) {
+					visitPhi(phi);
+				}
+				for (IRInstruction inst : block.instructions) {
+					visitInstruction(inst);
+				}
+				markSuccessors(block);
+			}
+		}
+
+		for (IRBasicBlock block : ir.blocks) {
+			boolean blockExecutable = executable.contains(block);
+			for (IRInstruction inst : block.instructions) {
+				inst.executable = blockExecutable;
+				if (!blockExecutable) {
+					continue;
+				}
+				for (IRValue value : inst.defValues.values()) {
+					Object constant = lattice.get(value);
+					if (constant instanceof Integer) {
+						value.constant = (Integer) constant;
+					}
+				}
+				if (isFoldable(inst.instruction) && inst.defs.length == 1) {
+					inst.foldedConstant = inst.getDef(inst.defs[0]).constant;
+				}
+				Boolean taken = evaluateBranch(inst);
+				if (taken != null) {
+					inst.constantBranchTarget = taken ? getBranchTarget(inst) : inst.nextAddress;
+				}
+			}
+		}
+		for (IRBasicBlock block : ir.blocks) {
+			for (IRPhi phi : block.phis) {
+				Object constant = lattice.get(phi.result);
+				if (executable.contains(block) && constant instanceof Integer) {
+					phi.result.constant = (Integer) constant;
+				}
+			}
+		}
+	}
+
+	private void visitPhi(IRPhi phi) {
+		Object result = null;
+		if (phi.entryOperand != null) {
+			result = meet(result, getLattice(phi.entryOperand));
+		}
+		for (IRBasicBlock pred : phi.block.predecessors) {
+			if (!executableEdges.contains(getEdgeName(pred, phi.block))) {
+				continue;
+			}
+			IRValue operand = phi.getOperandFrom(pred);
+			result = meet(result, (operand == null) ? BOTTOM : getLattice(operand));
+		}
+		update(phi.result, result);
+	}
+
+	private void visitInstruction(IRInstruction inst) {
+		if (inst.defs.length == 0) {
+			return;
+		}
+		Object result = BOTTOM;
+		if (inst.defs.length == 1 && inst.understood) {
+			result = evaluate(inst);
+		}
+		for (int reg : inst.defs) {
+			update(inst.getDef(reg), result);
+		}
+	}
+
+	/*
+	 * Mark the edges out of block that can be taken, and the blocks they go to.
+	 */
+	private void markSuccessors(IRBasicBlock block) {
+		IRInstruction last = block.getLast();
+		Boolean taken = evaluateBranch(last);
+		for (IRBasicBlock successor : block.successors) {
+			if (taken != null) {
+				int liveAddress = taken ? getBranchTarget(last) : last.nextAddress;
+				if (successor.getStartAddress() != liveAddress) {
+					continue;
+				}
+			}
+			if (executableEdges.add(getEdgeName(block, successor))) {
+				changed = true;
+			}
+			if (executable.add(successor)) {
+				changed = true;
+			}
+		}
+	}
+
+	private String getEdgeName(IRBasicBlock from, IRBasicBlock to) {
+		return from.id + "->" + to.id;
+	}
+
+	private Object getLattice(IRValue value) {
+		if (value.isEntryValue()) {
+			return BOTTOM;
+		}
+		return lattice.get(value);
+	}
+
+	private void update(IRValue value, Object result) {
+		if (value == null) {
+			return;
+		}
+		Object old = lattice.get(value);
+		Object merged = meet(old, result);
+		if (merged != old && (merged == null || !merged.equals(old))) {
+			lattice.put(value, merged);
+			changed = true;
+		}
+	}
+
+	private Object meet(Object a, Object b) {
+		if (a == null) {
+			return b;
+		}
+		if (b == null) {
+			return a;
+		}
+		if (a == BOTTOM || b == BOTTOM || !a.equals(b)) {
+			return BOTTOM;
+		}
+		return a;
+	}
+
+	/*
+	 * Get the constant operand in register, null if it isn't known yet, or BOTTOM.
+	 */
+	private Object getOperand(IRInstruction inst, int register) {
+		IRValue value = inst.getUse(register);
+		return (value == null) ? BOTTOM : getLattice(value);
+	}
+
+	/*
+	 * Work out the value the instruction defines, from what we know about its operands.
+	 */
+	private Object evaluate(IRInstruction inst) {
+		Instruction instruction = inst.instruction;
+		switch (instruction.opcode) {
+		case CONST_4:
+		case CONST_16:
+		case CONST:
+			return (int) ((LiteralInstruction) instruction).getLiteral();
+		case CONST_HIGH16:
+			return (int) (((LiteralInstruction) instruction).getLiteral() << 16);
+		case MOVE:
+		case MOVE_FROM16:
+		case MOVE_16:
+			return getOperand(inst, ((TwoRegisterInstruction) instruction).getRegisterB());
+		default:
+			break;
+		}
+		if (!isFoldable(instruction)) {
+			return BOTTOM;
+		}
+
+		String name = instruction.opcode.name;
+		Object a, b;
+		if (name.endsWith("/lit8") || name.endsWith("/lit16") || name.equals("rsub-int")) {
+			a = getOperand(inst, ((TwoRegisterInstruction) instruction).getRegisterB());
+			b = (int) ((LiteralInstruction) instruction).getLiteral();
+		} else if (name.endsWith("/2addr")) {
+			a = getOperand(inst, ((TwoRegisterInstruction) instruction).getRegisterA());
+			b = getOperand(inst, ((TwoRegisterInstruction) instruction).getRegisterB());
+		} else if (instruction instanceof ThreeRegisterInstruction) {
+			a = getOperand(inst, ((ThreeRegisterInstruction) instruction).getRegisterB());
+			b = getOperand(inst, ((ThreeRegisterInstruction) instruction).getRegisterC());
+		} else {
+			// unary
+			a = getOperand(inst, ((TwoRegisterInstruction) instruction).getRegisterB());
+			b = 0;
+		}
+		if (a == BOTTOM || b == BOTTOM) {
+			return BOTTOM;
+		}
+		if (a == null || b == null) {
+			return null;
+		}
+		return fold(name, (Integer) a, (Integer) b);
+	}
+
+	/*
+	 * Compute an int operation the way Dalvik does, or BOTTOM if it would throw.
+	 */
+	private Object fold(String name, int a, int b) {
+		String op = name.replaceAll("-int.*", "");
+		if (op.equals("add")) {
+			return a + b;
+		}
+		if (op.equals("sub")) {
+			return a - b;
+		}
+		if (op.equals("rsub")) {
+			return b - a;
+		}
+		if (op.equals("mul")) {
+			return a * b;
+		}
+		if (op.equals("and")) {
+			return a & b;
+		}
+		if (op.equals("or")) {
+			return a | b;
+		}
+		if (op.equals("xor")) {
+			return a ^ b;
+		}
+		if (op.equals("shl")) {
+			return a << (b & 0x1f);
+		}
+		if (op.equals("shr")) {
+			return a >> (b & 0x1f);
+		}
+		if (op.equals("ushr")) {
+			return a >>> (b & 0x1f);
+		}
+		if (op.equals("neg")) {
+			return -a;
+		}
+		if (op.equals("not")) {
+			return ~a;
+		}
+		if (name.equals("int-to-byte")) {
+			return (int) (byte) a;
+		}
+		if (name.equals("int-to-char")) {
+			return (int) (char) a;
+		}
+		if (name.equals("int-to-short")) {
+			return (int) (short) a;
+		}
+		if (b == 0) {
+			return BOTTOM;
+		}
+		if (op.equals("div")) {
+			return a / b;
+		}
+		if (op.equals("rem")) {
+			return a % b;
+		}
+		return BOTTOM;
+	}
+
+	/*
+	 * Is this an int operation whose result we can compute?
+	 */
+	public static boolean isFoldable(Instruction instruction) {
+		String name = instruction.opcode.name;
+		return name.matches("(r?sub|add|mul|div|rem|and|or|xor|shl|shr|ushr)-int(/2addr|/lit8|/lit16)?")
+				|| name.equals("rsub-int") || name.matches("(neg|not)-int")
+				|| name.matches("int-to-(byte|char|short)");
+	}
+
+	/*
+	 * Does the if at the end of inst go to its target? Null if it isn't an if, or we
+	 * can't tell.
+	 */
+	private Boolean evaluateBranch(IRInstruction inst) {
+		Instruction instruction = inst.instruction;
+		String name = instruction.opcode.name;
+		if (!name.startsWith("if-")) {
+			return null;
+		}
+		Object a = getOperand(inst, ((SingleRegisterInstruction) instruction).getRegisterA());
+		Object b = 0;
+		if (!name.endsWith("z")) {
+			b = getOperand(inst, ((TwoRegisterInstruction) instruction).getRegisterB());
+		}
+		if (!(a instanceof Integer) || !(b instanceof Integer)) {
+			return null;
+		}
+		int x = (Integer) a;
+		int y = (Integer) b;
+		String test = name.substring(3, 5);
+		if (test.equals("eq")) {
+			return x == y;
+		}
+		if (test.equals("ne")) {
+			return x != y;
+		}
+		if (test.equals("lt")) {
+			return x < y;
+		}
+		if (test.equals("ge")) {
+			return x >= y;
+		}
+		if (test.equals("gt")) {
+			return x > y;
+		}
+		if (test.equals("le")) {
+			return x <= y;
+		}
+		return null;
+	}
+
+	private int getBranchTarget(IRInstruction inst) {
+		return inst.codeAddress + ((OffsetInstruction) inst.instruction).getTargetAddressOffset();
+	}
+}
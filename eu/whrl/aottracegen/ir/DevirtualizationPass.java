@@ -0,0 +1,247 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jf.dexlib.CodeItem;
+import org.jf.dexlib.MethodIdItem;
+import org.jf.dexlib.TypeIdItem;
+import org.jf.dexlib.TypeListItem;
+import org.jf.dexlib.ClassDataItem.EncodedMethod;
+import org.jf.dexlib.Code.FiveRegisterInstruction;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.InstructionWithReference;
+import org.jf.dexlib.Code.OdexedInvokeVirtual;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.RegisterRangeInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+import org.jf.dexlib.Code.Analysis.ClassPath;
+
+import eu.whrl.aottracegen.CodeGenContext;
+import eu.whrl.aottracegen.MethodLookup;
+import eu.whrl.aottracegen.OpcodeParser;
+import eu.whrl.aottracegen.Region;
+
+/*
+ * Finds invoke-virtual-quick calls whose vtable slot has only one implementation for
+ * the receiver, using the class path MethodLookup loaded and the classes of the app and
+ * framework dex files. The receiver's type comes from its SSA definition: new-instance,
+ * 'this', a parameter the method never overwrites, or the result of a static or direct
+ * call.
+ *
+ * The converter tests the receiver's class against that type before running the callee,
+ * and falls back to the virtual call if it differs, so a class we haven't seen (or a
+ * subclass that doesn't override the method) only costs the test. Only receivers of
+ * exactly the guarded class take the fast path, so a type with overriding subclasses
+ * among the loaded classes isn't worth guarding on, unless new-instance made the object.
+ */
+public class DevirtualizationPass implements IPass {
+	private CodeGenContext context;
+	// descriptors of the never-written parameter registers, 'this' included
+	private Map<Integer,String> parameterTypes;
+
+	public String getName() {
+		return "devirtualization";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		this.context = context;
+		parameterTypes = getParameterTypes(context.currentRegion);
+
+		for (IRInstruction inst : ir.instructions) {
+			Opcode opcode = inst.instruction.opcode;
+			if (opcode != Opcode.INVOKE_VIRTUAL_QUICK && opcode != Opcode.INVOKE_VIRTUAL_QUICK_RANGE) {
+				continue;
+			}
+
+			IRValue receiver = inst.getUse(getReceiverRegister(inst.instruction));
+			if (receiver == null) {
+				continue;
+			}
+			boolean[] exact = new boolean[1];
+			String type = getStaticType(ir, receiver, exact, new HashSet<IRValue>());
+			if (type == null) {
+				continue;
+			}
+			TypeIdItem guardClass = TypeIdItem.lookupTypeIdItem(context.dexFile, type);
+			if (guardClass == null) {
+				// no literal pool entry can name it
+				continue;
+			}
+			EncodedMethod callee = getSingleImplementation(type, exact[0],
+					((OdexedInvokeVirtual) inst.instruction).getVtableIndex());
+			if (callee != null) {
+				inst.devirtualizedCallee = callee;
+				inst.guardClass = guardClass;
+			}
+		}
+	}
+
+	public static int getReceiverRegister(Instruction instruction) {
+		if (instruction instanceof RegisterRangeInstruction) {
+			return ((RegisterRangeInstruction) instruction).getStartRegister();
+		}
+		return ((FiveRegisterInstruction) instruction).getRegisterD();
+	}
+
+	/*
+	 * Get the method that a call through vtableIndex on an object of the given type runs,
+	 * or null if we can't tell or (unless exact) a loaded subclass overrides it.
+	 */
+	private EncodedMethod getSingleImplementation(String type, boolean exact, int vtableIndex) {
+		ClassPath.ClassDef classDef = getClassDef(type);
+		if (classDef == null || classDef.isInterface()) {
+			return null;
+		}
+		String method;
+		try {
+			method = classDef.getVirtualMethod(vtableIndex);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		if (method == null) {
+			return null;
+		}
+
+		MethodLookup lookup = MethodLookup.getMethodLookup();
+		EncodedMethod implementation = null;
+		for (ClassPath.ClassDef c = classDef; c != null && implementation == null; c = c.getSuperclass()) {
+			implementation = lookup.findMethod(c.getClassType() + "->" + method);
+		}
+		if (implementation == null || exact) {
+			return implementation;
+		}
+
+		for (String loaded : lookup.getLoadedClasses()) {
+			if (loaded.equals(type) || lookup.findMethod(loaded + "->" + method) == null) {
+				continue;
+			}
+			ClassPath.ClassDef subclass = getClassDef(loaded);
+			if (subclass == null || subclass.extendsClass(classDef)) {
+				return null;
+			}
+		}
+		return implementation;
+	}
+
+	private ClassPath.ClassDef getClassDef(String type) {
+		try {
+			return ClassPath.getClassDef(type);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Get the type descriptor the value is known to have, or null. exact[0] is set if
+	 * the value's class is exactly that type, not a subclass of it.
+	 */
+	private String getStaticType(TraceIR ir, IRValue value, boolean[] exact, Set<IRValue> visiting) {
+		if (!visiting.add(value)) {
+			return null;
+		}
+		if (value.isEntryValue()) {
+			exact[0] = false;
+			return parameterTypes.get(value.register);
+		}
+		if (value.phi != null) {
+			IRPhi phi = value.phi;
+			String type = null;
+			boolean allExact = true;
+			IRValue[] operands = new IRValue[phi.operands.length + 1];
+			System.arraycopy(phi.operands, 0, operands, 0, phi.operands.length);
+			operands[phi.operands.length] = phi.entryOperand;
+			for (IRValue operand : operands) {
+				if (operand == null || visiting.contains(operand)) {
+					continue;
+				}
+				String operandType = getStaticType(ir, operand, exact, visiting);
+				if (operandType == null || (type != null && !type.equals(operandType))) {
+					return null;
+				}
+				type = operandType;
+				allExact &= exact[0];
+			}
+			exact[0] = allExact;
+			return type;
+		}
+
+		Instruction instruction = value.definition.instruction;
+		switch (instruction.opcode) {
+		case NEW_INSTANCE:
+			exact[0] = true;
+			return ((TypeIdItem) ((InstructionWithReference) instruction).getReferencedItem()).getTypeDescriptor();
+		case MOVE_OBJECT:
+		case MOVE_OBJECT_FROM16:
+		case MOVE_OBJECT_16: {
+			IRValue source = value.definition.getUse(((TwoRegisterInstruction) instruction).getRegisterB());
+			return (source == null) ? null : getStaticType(ir, source, exact, visiting);
+		}
+		case MOVE_RESULT_OBJECT:
+			exact[0] = false;
+			return getReturnType(ir, value.definition);
+		default:
+			return null;
+		}
+	}
+
+	/*
+	 * The declared return type of the static or direct call whose result moveResult
+	 * collects, if the call is in the trace.
+	 */
+	private String getReturnType(TraceIR ir, IRInstruction moveResult) {
+		for (IRInstruction inst : ir.instructions) {
+			if (inst.nextAddress != moveResult.codeAddress) {
+				continue;
+			}
+			switch (inst.instruction.opcode) {
+			case INVOKE_STATIC:
+			case INVOKE_STATIC_RANGE:
+			case INVOKE_DIRECT:
+			case INVOKE_DIRECT_RANGE:
+				MethodIdItem method = (MethodIdItem) ((InstructionWithReference) inst.instruction).getReferencedItem();
+				return method.getPrototype().getReturnType().getTypeDescriptor();
+			default:
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Map each object parameter register (and 'this') that the method never writes to
+	 * its declared type. Entry values of any other register could hold anything.
+	 */
+	private Map<Integer,String> getParameterTypes(Region region) {
+		Map<Integer,String> types = new HashMap<Integer,String>();
+		EncodedMethod method = region.encodedMethod;
+		CodeItem codeItem = method.codeItem;
+		int reg = codeItem.getRegisterCount() - codeItem.getInWords();
+		if ((method.accessFlags & 0x8) == 0 /* not static */) {
+			types.put(reg++, method.method.getContainingClass().getTypeDescriptor());
+		}
+		TypeListItem parameters = method.method.getPrototype().getParameters();
+		if (parameters != null) {
+			for (TypeIdItem type : parameters.getTypes()) {
+				String descriptor = type.getTypeDescriptor();
+				if (descriptor.startsWith("L")) {
+					types.put(reg, descriptor);
+				}
+				reg += type.getRegisterCount();
+			}
+		}
+
+		for (Instruction instruction : region.instructions) {
+			if (!OpcodeParser.isUnderstood(instruction)) {
+				types.clear();
+				break;
+			}
+			for (int written : OpcodeParser.getWrittenRegisters(instruction)) {
+				types.remove(written);
+			}
+		}
+		return types;
+	}
+}
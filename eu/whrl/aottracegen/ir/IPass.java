@@ -0,0 +1,12 @@
+package eu.whrl.aottracegen.ir;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * An analysis or transformation over the trace IR. Passes annotate the
+ * IRInstructions, and the C converter reads those annotations.
+ */
+public interface IPass {
+	public String getName();
+	public void run(CodeGenContext context, TraceIR ir);
+}
@@ -0,0 +1,85 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * A straight-line run of trace instructions with a single entry and a single exit.
+ */
+public class IRBasicBlock {
+	public int id;
+	
+	public List<IRInstruction> instructions;
+	public List<IRPhi> phis;
+	
+	public List<IRBasicBlock> predecessors;
+	public List<IRBasicBlock> successors;
+	
+	// Successor code addresses that leave the trace
+	public Set<Integer> exits;
+	
+	// Dominator info, only valid if reachable
+	public boolean reachable;
+	public int rpoIndex;
+	public IRBasicBlock idom;
+	public List<IRBasicBlock> dominated;
+	public Set<IRBasicBlock> dominanceFrontier;
+	
+	public IRBasicBlock(int id) {
+		this.id = id;
+		instructions = new ArrayList<IRInstruction>();
+		phis = new ArrayList<IRPhi>();
+		predecessors = new ArrayList<IRBasicBlock>();
+		successors = new ArrayList<IRBasicBlock>();
+		exits = new TreeSet<Integer>();
+		reachable = false;
+		rpoIndex = -1;
+		idom = null;
+		dominated = new ArrayList<IRBasicBlock>();
+		dominanceFrontier = new LinkedHashSet<IRBasicBlock>();
+	}
+	
+	public IRInstruction getFirst() {
+		return instructions.get(0);
+	}
+	
+	public IRInstruction getLast() {
+		return instructions.get(instructions.size() - 1);
+	}
+	
+	public int getStartAddress() {
+		return getFirst().codeAddress;
+	}
+	
+	/*
+	 * Does this block dominate the other block? (A block dominates itself.)
+	 */
+	public boolean dominates(IRBasicBlock other) {
+		if (!reachable || !other.reachable) {
+			return false;
+		}
+		IRBasicBlock runner = other;
+		while (runner != null) {
+			if (runner == this) {
+				return true;
+			}
+			if (runner.idom == runner) {
+				return false;
+			}
+			runner = runner.idom;
+		}
+		return false;
+	}
+	
+	public IRPhi getPhiFor(int register) {
+		for (IRPhi phi : phis) {
+			if (phi.register == register) {
+				return phi;
+			}
+		}
+		return null;
+	}
+}
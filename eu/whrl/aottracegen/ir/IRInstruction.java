@@ -0,0 +1,157 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jf.dexlib.TypeIdItem;
+import org.jf.dexlib.ClassDataItem.EncodedMethod;
+import org.jf.dexlib.Code.Instruction;
+
+/*
+ * One Dalvik instruction in the trace, with its SSA operands.
+ */
+public class IRInstruction {
+	// position in emission order (i.e. Trace.addresses order)
+	public int index;
+	public int codeAddress;
+	public Instruction instruction;
+	public IRBasicBlock block;
+	
+	// registers read and written, wide values count as two registers
+	public int[] uses;
+	public int[] defs;
+	public Map<Integer,IRValue> useValues;
+	public Map<Integer,IRValue> defValues;
+	
+	// every code address control can go to next, in or out of the trace
+	public List<Integer> successors;
+	// where the converter's getNextCodeAddress() goes, -1 if nowhere
+	public int nextAddress;
+	
+	public boolean canThrow;
+	// the in-trace catch handler for each exception the trace throws here itself (by the
+	// exception's type descriptor), which are in successors as well
+	public Map<String,Integer> catchHandlers;
+	// false if OpcodeParser couldn't tell us exactly which registers are touched
+	public boolean understood;
+
+	// set by the ConstantPropagationPass: executable is cleared if no path from the trace
+	// entry reaches this, foldedConstant set if it computes a constant, and
+	// constantBranchTarget set to where an if always goes (-1 if we don't know)
+	public boolean executable;
+	public Integer foldedConstant;
+	public int constantBranchTarget;
+
+	// cleared by the NullCheckEliminationPass if the object is known to be non-null here
+	public boolean needsNullCheck;
+	// cleared by the RangeCheckEliminationPass if the index is known to be in bounds
+	public boolean needsRangeCheck;
+	// set if the index is only known to be in bounds in the versioned copy of its loop
+	public boolean rangeCheckVersioned;
+	// set by the ArrayCachePass if the array's length and data pointer live in C locals,
+	// arrayCacheLoaded if they've already been loaded by an access that dominates this one
+	public IRValue cachedArray;
+	public boolean arrayCacheLoaded;
+	// set by the DevirtualizationPass if this virtual invoke only calls devirtualizedCallee
+	// when the receiver's class is guardClass
+	public EncodedMethod devirtualizedCallee;
+	public TypeIdItem guardClass;
+	// set by the InliningPass if this invoke's callee is emitted in place of the call
+	public EncodedMethod inlinedCallee;
+	// set by the LoopInvariantCodeMotionPass if the loop's preheader loads this value
+	public IRLoop hoistedTo;
+	// set by the ScalarReplacementPass on the new-instance of an object it keeps in locals,
+	// and the field accesses and inlined constructors that use it
+	public ScalarObject scalarObject;
+	// the vregs to point at each object we allocate when leaving the trace: at exits that
+	// re-execute this instruction (materializeBefore) and at those after it (materializeAfter)
+	public Map<ScalarObject,Set<Integer>> materializeBefore;
+	public Map<ScalarObject,Set<Integer>> materializeAfter;
+	// set by the CardMarkingPass on reference stores: the C local of the pending card mark
+	public String cardSlot;
+	// set by the SuspendCheckPlacementPass if a call may have left its marks in the
+	// suspend flags by the time we get here
+	public boolean callFlagsPending;
+	
+	public IRInstruction(int index, int codeAddress, Instruction instruction) {
+		this.index = index;
+		this.codeAddress = codeAddress;
+		this.instruction = instruction;
+		block = null;
+		uses = new int[0];
+		defs = new int[0];
+		useValues = new HashMap<Integer,IRValue>();
+		defValues = new HashMap<Integer,IRValue>();
+		successors = new LinkedList<Integer>();
+		nextAddress = -1;
+		canThrow = false;
+		catchHandlers = new LinkedHashMap<String,Integer>();
+		understood = true;
+		executable = true;
+		foldedConstant = null;
+		constantBranchTarget = -1;
+		needsNullCheck = true;
+		needsRangeCheck = true;
+		rangeCheckVersioned = false;
+		cachedArray = null;
+		arrayCacheLoaded = false;
+		devirtualizedCallee = null;
+		guardClass = null;
+		inlinedCallee = null;
+		hoistedTo = null;
+		scalarObject = null;
+		materializeBefore = new LinkedHashMap<ScalarObject,Set<Integer>>();
+		materializeAfter = new LinkedHashMap<ScalarObject,Set<Integer>>();
+		cardSlot = null;
+		callFlagsPending = false;
+	}
+	
+	/*
+	 * Get the SSA value read from the given register, or null if we don't know it.
+	 */
+	public IRValue getUse(int register) {
+		return useValues.get(register);
+	}
+	
+	public IRValue getDef(int register) {
+		return defValues.get(register);
+	}
+	
+	public boolean usesRegister(int register) {
+		for (int reg : uses) {
+			if (reg == register) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public boolean definesRegister(int register) {
+		for (int reg : defs) {
+			if (reg == register) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public String toString() {
+		String result = String.format("%#x: %s", codeAddress, instruction.opcode.name);
+		String defString = "";
+		for (int reg : defs) {
+			defString += (defString.isEmpty() ? " " : ", ") + defValues.get(reg);
+		}
+		String useString = "";
+		for (int reg : uses) {
+			useString += (useString.isEmpty() ? " " : ", ") + useValues.get(reg);
+		}
+		if (!defString.isEmpty()) {
+			result += defString + " <-";
+		}
+		return result + useString;
+	}
+}
@@ -0,0 +1,121 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * A natural loop in the trace: a header that dominates every block in the loop,
+ * and the latches whose back-edges go to it.
+ */
+public class IRLoop {
+	public IRBasicBlock header;
+	public Set<IRBasicBlock> blocks;
+	public List<IRBasicBlock> latches;
+
+	// Set if the generator should emit a check-free copy of the loop, which is
+	// entered when all the guards hold on the way into the header.
+	public boolean versioned;
+	public List<RangeGuard> versionGuards;
+
+	// Set by the LoopStructuringPass if the loop is emitted as a C for loop, which
+	// covers ir.instructions from firstIndex to lastIndex.
+	public boolean structured;
+	public int firstIndex;
+	public int lastIndex;
+
+	// Set by the SuspendCheckPlacementPass if back-edges to the header test the suspend flags
+	public boolean suspendCheck;
+
+	// Set by the NullCheckEliminationPass: values known to be non-null on the way in
+	public Set<IRValue> nonNullOnEntry;
+
+	// Set by the LoopInvariantCodeMotionPass: instructions whose value the preheader
+	// loads, in the order it loads them
+	public List<IRInstruction> hoisted;
+
+	// Set by the KernelLoopPass if the versioned copy is emitted as a counted C loop:
+	// the if at the top of the loop, and the induction variable it tests
+	public IRInstruction kernelTest;
+	public IRPhi kernelInductionVariable;
+
+	// Set by the PrefetchPass: arrays the header prefetches ahead of the loop's accesses
+	public List<Prefetch> prefetches;
+
+	public IRLoop(IRBasicBlock header) {
+		this.header = header;
+		blocks = new LinkedHashSet<IRBasicBlock>();
+		blocks.add(header);
+		latches = new ArrayList<IRBasicBlock>();
+		versioned = false;
+		versionGuards = new ArrayList<RangeGuard>();
+		structured = false;
+		firstIndex = -1;
+		lastIndex = -1;
+		suspendCheck = false;
+		nonNullOnEntry = new HashSet<IRValue>();
+		hoisted = new ArrayList<IRInstruction>();
+		kernelTest = null;
+		kernelInductionVariable = null;
+		prefetches = new ArrayList<Prefetch>();
+	}
+
+	public boolean contains(IRBasicBlock block) {
+		return blocks.contains(block);
+	}
+
+	public boolean contains(IRInstruction inst) {
+		return inst != null && blocks.contains(inst.block);
+	}
+
+	public boolean containsCodeAddress(TraceIR ir, int codeAddress) {
+		return contains(ir.getInstructionAtCodeAddress(codeAddress));
+	}
+
+	/*
+	 * Is the value the same on every iteration of the loop?
+	 */
+	public boolean isInvariant(IRValue value) {
+		if (value.definition != null) {
+			return !contains(value.definition.block);
+		}
+		if (value.phi != null) {
+			return !contains(value.phi.block);
+		}
+		return true;
+	}
+
+	/*
+	 * Is there code to run on the way into the header from outside the loop? Jumps from
+	 * outside then go to the preheader, which falls into the header.
+	 */
+	public boolean hasPreheader() {
+		return versioned || !hoisted.isEmpty();
+	}
+
+	/*
+	 * Does this loop contain any other loop?
+	 */
+	public boolean isInnermost(List<IRLoop> loops) {
+		for (IRLoop loop : loops) {
+			if (loop != this && contains(loop.header)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getStartAddress() {
+		return header.getStartAddress();
+	}
+
+	public String toString() {
+		String result = "Loop B" + header.id + " {";
+		for (IRBasicBlock block : blocks) {
+			result += " B" + block.id;
+		}
+		return result + " }" + (versioned ? " versioned" : "") + (structured ? " structured" : "");
+	}
+}
@@ -0,0 +1,44 @@
+package eu.whrl.aottracegen.ir;
+
+/*
+ * A phi node at the start of a basic block. operands[i] is the value flowing in
+ * from block.predecessors.get(i). Phis in the trace's entry block also merge
+ * entryOperand, the value the register held when the trace was entered.
+ */
+public class IRPhi {
+	public int register;
+	public IRBasicBlock block;
+	public IRValue result;
+	public IRValue[] operands;
+	public IRValue entryOperand;
+	
+	public IRPhi(int register, IRBasicBlock block) {
+		this.register = register;
+		this.block = block;
+		result = null;
+		operands = new IRValue[block.predecessors.size()];
+		entryOperand = null;
+	}
+	
+	public IRValue getOperandFrom(IRBasicBlock predecessor) {
+		int idx = block.predecessors.indexOf(predecessor);
+		if (idx == -1) {
+			return null;
+		}
+		return operands[idx];
+	}
+	
+	public String toString() {
+		String result = this.result + " = phi(";
+		if (entryOperand != null) {
+			result += entryOperand + " [entry]" + (operands.length > 0 ? ", " : "");
+		}
+		for (int i = 0; i < operands.length; i++) {
+			if (i != 0) {
+				result += ", ";
+			}
+			result += operands[i] + " [B" + block.predecessors.get(i).id + "]";
+		}
+		return result + ")";
+	}
+}
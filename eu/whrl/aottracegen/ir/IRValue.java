@@ -0,0 +1,48 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * An SSA value: one particular definition of a virtual register.
+ * Version 0 of each register is the value it held when the trace was entered.
+ */
+public class IRValue {
+	public int register;
+	public int version;
+	
+	// Exactly one of these is set, unless this is an entry value
+	public IRInstruction definition;
+	public IRPhi phi;
+	
+	public List<IRInstruction> users;
+	public List<IRPhi> phiUsers;
+	
+	// filled in by the TypeInferencePass
+	public VregType type;
+	// set by the ConstantPropagationPass if this is always the same 32-bit value
+	public Integer constant;
+	
+	public IRValue(int register, int version) {
+		this.register = register;
+		this.version = version;
+		definition = null;
+		phi = null;
+		users = new LinkedList<IRInstruction>();
+		phiUsers = new LinkedList<IRPhi>();
+		type = VregType.UNKNOWN;
+		constant = null;
+	}
+	
+	public boolean isEntryValue() {
+		return definition == null && phi == null;
+	}
+	
+	public String getName() {
+		return String.format("v%d_%d", register, version);
+	}
+	
+	public String toString() {
+		return getName();
+	}
+}
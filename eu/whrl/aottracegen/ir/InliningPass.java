@@ -0,0 +1,157 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jf.dexlib.CodeItem;
+import org.jf.dexlib.ClassDataItem.EncodedMethod;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.InvokeInstruction;
+import org.jf.dexlib.Code.OffsetInstruction;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+import eu.whrl.aottracegen.MethodLookup;
+import eu.whrl.aottracegen.OpcodeParser;
+
+/*
+ * Picks invoke-static, invoke-direct and devirtualized invoke-virtual-quick calls whose
+ * callee the converter can emit in place of the call, with the callee's vregs in a C
+ * array of their own.
+ *
+ * The callee has to be small (Config.inlineMaxSize code units), a leaf and unable to
+ * throw, since there's nowhere inside it to hand over to the interpreter. It can't
+ * branch backwards either, as nothing in it would test the suspend flags. Field accesses
+ * are allowed on the receiver only, which is null checked at the call site, where the
+ * interpreter can re-execute the invoke. The callees of a trace share a budget of
+ * Config.inlineBudget code units, and a method is never inlined into itself.
+ *
+ * A static call is where the interpreter would initialize the callee's class, so only
+ * static callees of the trace's own class, which is initialized by the time it runs,
+ * are inlined.
+ */
+public class InliningPass implements IPass {
+	private static final int ACC_STATIC = 0x8;
+	private static final int ACC_SYNCHRONIZED = 0x20;
+	private static final int ACC_NATIVE = 0x100;
+	private static final int ACC_DECLARED_SYNCHRONIZED = 0x20000;
+
+	public String getName() {
+		return "inlining";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		int budget = context.config.inlineBudget;
+		// Methods we're inside, which mustn't be inlined again
+		Set<EncodedMethod> inlineStack = new HashSet<EncodedMethod>();
+		inlineStack.add(context.currentRegion.encodedMethod);
+
+		for (IRInstruction inst : ir.instructions) {
+			Opcode opcode = inst.instruction.opcode;
+			boolean isStatic = (opcode == Opcode.INVOKE_STATIC || opcode == Opcode.INVOKE_STATIC_RANGE);
+			boolean isDirect = (opcode == Opcode.INVOKE_DIRECT || opcode == Opcode.INVOKE_DIRECT_RANGE);
+			EncodedMethod callee;
+			if (inst.devirtualizedCallee != null) {
+				callee = inst.devirtualizedCallee;
+			} else if (isStatic || isDirect) {
+				callee = MethodLookup.getMethodLookup().getCalleeMethodFromInstruction(inst.instruction, context);
+			} else {
+				continue;
+			}
+			if (callee == null || inlineStack.contains(callee)) {
+				continue;
+			}
+			if (isStatic &&
+					callee.method.getContainingClass() != context.currentRegion.encodedMethod.method.getContainingClass()) {
+				continue;
+			}
+			int size = getInlinableSize(callee, isStatic, context.config.inlineMaxSize);
+			if (size == -1 || size > budget ||
+					((InvokeInstruction) inst.instruction).getRegCount() != callee.codeItem.getInWords()) {
+				continue;
+			}
+			inst.inlinedCallee = callee;
+			budget -= size;
+		}
+	}
+
+	/*
+	 * Get the size of callee in code units if it can be inlined, or -1 if not.
+	 */
+	public static int getInlinableSize(EncodedMethod callee, boolean isStatic, int maxSize) {
+		CodeItem codeItem = callee.codeItem;
+		if (codeItem == null || (callee.accessFlags & ACC_NATIVE) != 0 ||
+				(callee.accessFlags & (ACC_SYNCHRONIZED | ACC_DECLARED_SYNCHRONIZED)) != 0 ||
+				((callee.accessFlags & ACC_STATIC) != 0) != isStatic) {
+			return -1;
+		}
+		if (codeItem.getTries() != null && codeItem.getTries().length > 0) {
+			return -1;
+		}
+
+		int thisRegister = isStatic ? -1 : codeItem.getRegisterCount() - codeItem.getInWords();
+		int codeAddress = 0;
+		for (Instruction instruction : codeItem.getInstructions()) {
+			if (!isInlinable(instruction, thisRegister)) {
+				return -1;
+			}
+			if (instruction instanceof OffsetInstruction && ((OffsetInstruction) instruction).getTargetAddressOffset() <= 0) {
+				return -1;
+			}
+			if (thisRegister != -1 && OpcodeParser.isUnderstood(instruction)) {
+				for (int reg : OpcodeParser.getWrittenRegisters(instruction)) {
+					if (reg == thisRegister) {
+						return -1;
+					}
+				}
+			}
+			codeAddress += instruction.getSize(codeAddress);
+			if (codeAddress > maxSize) {
+				return -1;
+			}
+		}
+		return codeAddress;
+	}
+
+	/*
+	 * Can this callee instruction be emitted without calls, literal pool entries or a
+	 * way to throw?
+	 */
+	private static boolean isInlinable(Instruction instruction, int thisRegister) {
+		switch (instruction.opcode) {
+		case IGET_QUICK:
+		case IGET_WIDE_QUICK:
+		case IGET_OBJECT_QUICK:
+		case IPUT_QUICK:
+		case IPUT_WIDE_QUICK:
+		case IPUT_OBJECT_QUICK:
+			return thisRegister != -1 && ((TwoRegisterInstruction) instruction).getRegisterB() == thisRegister;
+		case DIV_INT:
+		case REM_INT:
+		case DIV_LONG:
+		case REM_LONG:
+		case DIV_INT_2ADDR:
+		case REM_INT_2ADDR:
+		case DIV_LONG_2ADDR:
+		case REM_LONG_2ADDR:
+		case DIV_INT_LIT16:
+		case REM_INT_LIT16:
+		case DIV_INT_LIT8:
+		case REM_INT_LIT8:
+			return false;
+		case INVOKE_OBJECT_INIT_RANGE:
+		case RETURN_VOID_BARRIER:
+			return true;
+		default:
+			break;
+		}
+
+		int value = instruction.opcode.value & 0xff;
+		return (value >= 0x01 && value <= 0x09)    // move, move/from16 ... move-object/16
+			|| (value >= 0x0e && value <= 0x19)    // return-void ... const-wide/high16
+			|| (value >= 0x28 && value <= 0x2a)    // goto, goto/16, goto/32
+			|| (value >= 0x2d && value <= 0x3d)    // cmp*, if-*
+			|| (value >= 0x7b && value <= 0xe2);   // unary ops, conversions, binary ops
+	}
+}
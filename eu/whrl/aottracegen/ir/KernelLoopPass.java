@@ -0,0 +1,228 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.LiteralInstruction;
+import org.jf.dexlib.Code.OffsetInstruction;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.SingleRegisterInstruction;
+import org.jf.dexlib.Code.ThreeRegisterInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Picks the versioned loops that are simple counted array kernels, so the generator can
+ * emit their check-free copy as a C for loop that clang's vectorizers understand:
+ *
+ *   header:  if-ge i, n, exit
+ *   body:    aget/aput at [i], arithmetic, consts and moves, ..., add-int/lit i, i, 1, goto header
+ *
+ * In the kernel every SSA value is a C local of its type rather than a v[] slot, and
+ * every array is a restrict pointer to its elements. The range guards that got the loop
+ * versioned have already shown every access is in bounds (and the array isn't null), so
+ * nothing in the body can throw: division, remainder and float-to-int conversions, which
+ * C and Java disagree on, aren't allowed. Arrays of objects need store checks, so they
+ * aren't either.
+ */
+public class KernelLoopPass implements IPass {
+
+	public String getName() {
+		return "array kernel recognition";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		for (IRLoop loop : ir.loops) {
+			if (!loop.versioned || loop.blocks.size() != 2) {
+				continue;
+			}
+			IRInstruction test = loop.header.getLast();
+			if (loop.header.instructions.size() != 1 || test.instruction.opcode != Opcode.IF_GE || !test.executable ||
+					test.constantBranchTarget != -1) {
+				continue;
+			}
+			int exitAddress = test.codeAddress + ((OffsetInstruction) test.instruction).getTargetAddressOffset();
+			if (loop.containsCodeAddress(ir, exitAddress)) {
+				continue;
+			}
+
+			IRBasicBlock body = null;
+			for (IRBasicBlock block : loop.blocks) {
+				if (block != loop.header) {
+					body = block;
+				}
+			}
+			if (body.getStartAddress() != test.nextAddress || body.successors.size() != 1 ||
+					body.successors.get(0) != loop.header || !body.getLast().instruction.opcode.name.startsWith("goto")) {
+				continue;
+			}
+
+			IRPhi iv = getInductionVariable(loop, test, body);
+			IRValue bound = test.getUse(((TwoRegisterInstruction) test.instruction).getRegisterB());
+			if (iv == null || bound == null || !loop.isInvariant(bound) || !isKernelBody(loop, body, iv)) {
+				continue;
+			}
+			if (!hasKnownTypes(loop, body)) {
+				continue;
+			}
+			loop.kernelTest = test;
+			loop.kernelInductionVariable = iv;
+		}
+	}
+
+	/*
+	 * The header phi the test compares against the bound, if it steps by 1 every iteration.
+	 */
+	private IRPhi getInductionVariable(IRLoop loop, IRInstruction test, IRBasicBlock body) {
+		IRValue value = test.getUse(((TwoRegisterInstruction) test.instruction).getRegisterA());
+		if (value == null || value.phi == null || value.phi.block != loop.header) {
+			return null;
+		}
+		IRValue next = value.phi.getOperandFrom(body);
+		if (next == null || next.definition == null) {
+			return null;
+		}
+		Instruction increment = next.definition.instruction;
+		if ((increment.opcode != Opcode.ADD_INT_LIT8 && increment.opcode != Opcode.ADD_INT_LIT16) ||
+				((LiteralInstruction) increment).getLiteral() != 1 ||
+				next.definition.getUse(((TwoRegisterInstruction) increment).getRegisterB()) != value) {
+			return null;
+		}
+		return value.phi;
+	}
+
+	private boolean isKernelBody(IRLoop loop, IRBasicBlock body, IRPhi iv) {
+		// each array is accessed through one pointer type
+		Map<IRValue,String> arrayTypes = new HashMap<IRValue,String>();
+		for (IRInstruction inst : body.instructions) {
+			if (!inst.executable || !inst.understood) {
+				return false;
+			}
+			if (inst.hoistedTo != null || inst.foldedConstant != null) {
+				continue;
+			}
+			Instruction instruction = inst.instruction;
+			if (RangeCheckEliminationPass.isArrayAccess(instruction)) {
+				ThreeRegisterInstruction access = (ThreeRegisterInstruction) instruction;
+				IRValue array = inst.getUse(access.getRegisterB());
+				if (instruction.opcode == Opcode.AGET_OBJECT || instruction.opcode == Opcode.APUT_OBJECT ||
+						array == null || !loop.isInvariant(array) || inst.getUse(access.getRegisterC()) != iv.result ||
+						(inst.needsRangeCheck && !inst.rangeCheckVersioned)) {
+					return false;
+				}
+				String elementType = getElementType(inst);
+				String previous = arrayTypes.put(array, elementType);
+				if (previous != null && !previous.equals(elementType)) {
+					return false;
+				}
+			} else if (!isKernelInstruction(instruction)) {
+				return false;
+			}
+		}
+
+		// Every vreg the body writes has to go round the loop through a header phi, so
+		// the kernel can write them back on the way out.
+		for (IRInstruction inst : body.instructions) {
+			for (int reg : inst.defs) {
+				if (loop.header.getPhiFor(reg) == null) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean isKernelInstruction(Instruction instruction) {
+		String name = instruction.opcode.name;
+		if (name.startsWith("goto") || name.equals("nop")) {
+			return true;
+		}
+		if (name.matches("move(-wide)?(/from16|/16)?") || name.matches("const(/4|/16|/high16)?") ||
+				name.matches("const-wide(/16|/32|/high16)?")) {
+			return true;
+		}
+		if (name.matches("(add|sub|mul|and|or|xor|shl|shr|ushr)-(int|long)(/2addr)?") ||
+				name.matches("(add|sub|mul|div)-(float|double)(/2addr)?") ||
+				name.matches("(add|rsub|mul|and|or|xor|shl|shr|ushr)-int(/lit8|/lit16)?")) {
+			return true;
+		}
+		return name.matches("(neg|not)-(int|long)") || name.matches("neg-(float|double)") ||
+				name.matches("int-to-(long|float|double|byte|char|short)") || name.matches("long-to-(int|float|double)") ||
+				name.equals("float-to-double") || name.equals("double-to-float");
+	}
+
+	/*
+	 * Every value in the kernel is a C local, so each must have one type.
+	 */
+	private boolean hasKnownTypes(IRLoop loop, IRBasicBlock body) {
+		for (IRPhi phi : loop.header.phis) {
+			if (phi.result.type == VregType.CONFLICT) {
+				return false;
+			}
+		}
+		for (IRInstruction inst : body.instructions) {
+			for (IRValue value : inst.defValues.values()) {
+				if (value.type == VregType.CONFLICT) {
+					return false;
+				}
+			}
+			for (IRValue value : inst.useValues.values()) {
+				if (value == null || value.type == VregType.CONFLICT) {
+					return false;
+				}
+			}
+			// A wide value only the moves know about would lose its high half
+			if (inst.instruction.opcode.name.contains("-wide")) {
+				SingleRegisterInstruction wide = (SingleRegisterInstruction) inst.instruction;
+				IRValue a = inst.definesRegister(wide.getRegisterA()) ? inst.getDef(wide.getRegisterA()) : inst.getUse(wide.getRegisterA());
+				if (a == null || !a.type.isWide()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * The C type of the elements an aget/aput in a kernel reads or writes.
+	 */
+	public static String getElementType(IRInstruction inst) {
+		String name = inst.instruction.opcode.name;
+		if (name.endsWith("-boolean")) {
+			return "unsigned char";
+		}
+		if (name.endsWith("-byte")) {
+			return "signed char";
+		}
+		if (name.endsWith("-char")) {
+			return "unsigned short";
+		}
+		if (name.endsWith("-short")) {
+			return "short";
+		}
+		IRValue value = inst.getUse(((TwoRegisterInstruction) inst.instruction).getRegisterA());
+		if (name.startsWith("aget")) {
+			value = inst.getDef(((TwoRegisterInstruction) inst.instruction).getRegisterA());
+		}
+		return getCType(value, name.endsWith("-wide"));
+	}
+
+	/*
+	 * The C type of the local that holds value in a kernel.
+	 */
+	public static String getCType(IRValue value, boolean wide) {
+		VregType type = (value == null) ? VregType.UNKNOWN : value.type;
+		if (type == VregType.FLOAT) {
+			return "float";
+		}
+		if (type == VregType.DOUBLE) {
+			return "double";
+		}
+		if (type == VregType.LONG || (wide && type != VregType.DOUBLE)) {
+			return "long long";
+		}
+		return "int";
+	}
+}
@@ -0,0 +1,133 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.OdexedFieldAccess;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Moves loads that give the same value on every iteration of a loop into its preheader,
+ * the code that runs on the way into the header from outside the loop (see IRLoop.hoisted).
+ * The loads in the loop become a copy from the C local the preheader loaded.
+ *
+ * That's iget-quick and iget-object-quick of a field of an invariant object, as long as
+ * nothing in the loop can store to a field at that offset (an iput-quick of any object at
+ * the same offset, or a store or call we can't see the offset of), array-length of an
+ * invariant array, and const-string/const-class. The object is null checked in the
+ * preheader, which leaves to the interpreter at the loop header if it's null, so the
+ * interpreter throws where it should if the loop gets to the load.
+ *
+ * clang can't do this itself because the loads go through char* casts that may alias v[].
+ */
+public class LoopInvariantCodeMotionPass implements IPass {
+
+	public String getName() {
+		return "loop-invariant code motion";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		for (IRLoop loop : ir.loops) {
+			if (!hasOneWayIn(ir, loop)) {
+				continue;
+			}
+
+			Set<Integer> storedOffsets = new HashSet<Integer>();
+			boolean storesAnywhere = false;
+			for (IRBasicBlock block : loop.blocks) {
+				for (IRInstruction inst : block.instructions) {
+					if (!inst.executable) {
+						continue;
+					}
+					String name = inst.instruction.opcode.name;
+					if (name.startsWith("iput") && name.endsWith("-quick")) {
+						int offset = ((OdexedFieldAccess) inst.instruction).getFieldOffset();
+						storedOffsets.add(offset);
+						if (name.startsWith("iput-wide")) {
+							storedOffsets.add(offset + 4);
+						}
+					} else if (name.startsWith("iput") || name.startsWith("invoke") ||
+							name.startsWith("monitor") || name.contains("volatile")) {
+						storesAnywhere = true;
+					}
+				}
+			}
+
+			for (IRBasicBlock block : loop.blocks) {
+				for (IRInstruction inst : block.instructions) {
+					if (inst.executable && getInnermostLoop(ir, inst) == loop &&
+							isHoistable(inst, loop, storedOffsets, storesAnywhere)) {
+						inst.hoistedTo = loop;
+						loop.hoisted.add(inst);
+					}
+				}
+			}
+			Collections.sort(loop.hoisted, new Comparator<IRInstruction>() {
+				public int compare(IRInstruction a, IRInstruction b) {
+					return a.index - b.index;
+				}
+			});
+		}
+	}
+
+	private boolean isHoistable(IRInstruction inst, IRLoop loop, Set<Integer> storedOffsets, boolean storesAnywhere) {
+		Instruction instruction = inst.instruction;
+		switch (instruction.opcode) {
+		case CONST_STRING:
+		case CONST_STRING_JUMBO:
+		case CONST_CLASS:
+			return true;
+		case ARRAY_LENGTH: {
+			// the ArrayCachePass loads its locals at the first access
+			IRValue array = inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB());
+			return inst.cachedArray == null && array != null && loop.isInvariant(array);
+		}
+		case IGET_QUICK:
+		case IGET_OBJECT_QUICK: {
+			IRValue object = inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB());
+			int offset = ((OdexedFieldAccess) instruction).getFieldOffset();
+			return inst.scalarObject == null && object != null && loop.isInvariant(object) && !storesAnywhere &&
+					!storedOffsets.contains(offset);
+		}
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * Is the loop only entered from outside by a jump to its header, or by falling into
+	 * it from the code before it? Then the preheader can go in front of the header's label.
+	 * A block of the loop that falls through into the header would run it every iteration.
+	 */
+	private boolean hasOneWayIn(TraceIR ir, IRLoop loop) {
+		IRInstruction header = loop.header.instructions.get(0);
+		if (header.index == 0) {
+			return true;
+		}
+		IRInstruction before = ir.instructions.get(header.index - 1);
+		return !loop.contains(before) || before.nextAddress != header.codeAddress ||
+				!before.executable || before.instruction.opcode.name.startsWith("goto");
+	}
+
+	private IRLoop getInnermostLoop(TraceIR ir, IRInstruction inst) {
+		IRLoop innermost = null;
+		for (IRLoop loop : ir.loops) {
+			if (loop.contains(inst) && (innermost == null || loop.blocks.size() < innermost.blocks.size())) {
+				innermost = loop;
+			}
+		}
+		return innermost;
+	}
+
+	/*
+	 * The C local the preheader loads a hoisted instruction's value into.
+	 */
+	public static String getHoistedName(IRInstruction inst) {
+		return String.format("h%x", inst.codeAddress);
+	}
+}
@@ -0,0 +1,85 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jf.dexlib.Code.Opcode;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Picks the natural loops that the generator can emit as for (;;) { ... } around their
+ * instructions, with back-edges to the header as continue, rather than as a label and
+ * gotos. That needs the loop's instructions to be one run in emission order starting
+ * at the header, and loops that overlap to nest.
+ */
+public class LoopStructuringPass implements IPass {
+
+	public String getName() {
+		return "loop structuring";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		List<IRLoop> candidates = new ArrayList<IRLoop>();
+		for (IRLoop loop : ir.loops) {
+			if (findRange(ir, loop)) {
+				candidates.add(loop);
+			}
+		}
+
+		// Outer loops first, so an inner loop that doesn't nest properly is the one dropped
+		Collections.sort(candidates, new Comparator<IRLoop>() {
+			public int compare(IRLoop a, IRLoop b) {
+				if (a.firstIndex != b.firstIndex) {
+					return a.firstIndex - b.firstIndex;
+				}
+				return b.lastIndex - a.lastIndex;
+			}
+		});
+		List<IRLoop> structured = new ArrayList<IRLoop>();
+		for (IRLoop loop : candidates) {
+			boolean nests = true;
+			for (IRLoop other : structured) {
+				boolean disjoint = loop.firstIndex > other.lastIndex || loop.lastIndex < other.firstIndex;
+				boolean inside = loop.firstIndex >= other.firstIndex && loop.lastIndex <= other.lastIndex;
+				if (!disjoint && (!inside || loop.firstIndex == other.firstIndex)) {
+					nests = false;
+				}
+			}
+			if (nests) {
+				loop.structured = true;
+				structured.add(loop);
+			}
+		}
+	}
+
+	/*
+	 * Fill in the loop's first and last instruction indices, if its instructions are
+	 * contiguous and start with a real instruction of its header.
+	 */
+	private boolean findRange(TraceIR ir, IRLoop loop) {
+		IRInstruction first = loop.header.getFirst();
+		if (first.instruction.opcode == Opcode.NOP) {
+			return false;
+		}
+		int count = 0;
+		int last = first.index;
+		for (IRBasicBlock block : loop.blocks) {
+			for (IRInstruction inst : block.instructions) {
+				if (inst.index < first.index) {
+					return false;
+				}
+				last = Math.max(last, inst.index);
+				count++;
+			}
+		}
+		if (last - first.index + 1 != count) {
+			return false;
+		}
+		loop.firstIndex = first.index;
+		loop.lastIndex = last;
+		return true;
+	}
+}
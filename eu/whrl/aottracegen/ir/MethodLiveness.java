@@ -0,0 +1,172 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.jf.dexlib.CodeItem;
+import org.jf.dexlib.CodeItem.EncodedTypeAddrPair;
+import org.jf.dexlib.CodeItem.TryItem;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.Format.ArrayDataPseudoInstruction;
+import org.jf.dexlib.Code.Format.PackedSwitchDataPseudoInstruction;
+import org.jf.dexlib.Code.Format.SparseSwitchDataPseudoInstruction;
+
+import eu.whrl.aottracegen.OpcodeParser;
+import eu.whrl.aottracegen.Region;
+
+/*
+ * Virtual register liveness over the whole method that a region comes from.
+ * This tells us which vregs the interpreter (or another trace) may read once
+ * we leave the trace at a given code address.
+ *
+ * Exception edges go from every throwing instruction in a try block to its handlers,
+ * and the handler's live-ins don't get killed by the throwing instruction's defs.
+ */
+public class MethodLiveness {
+	private Region region;
+	private int numRegisters;
+
+	private List<Integer> codeAddresses;
+	private Map<Integer,BitSet> liveIn;
+	private Map<Integer,BitSet> liveOut;
+
+	public MethodLiveness(Region region) {
+		this.region = region;
+		numRegisters = region.encodedMethod.codeItem.getRegisterCount();
+		codeAddresses = new LinkedList<Integer>();
+		liveIn = new HashMap<Integer,BitSet>();
+		liveOut = new HashMap<Integer,BitSet>();
+		compute();
+	}
+
+	/*
+	 * Registers that may be read at or after codeAddress, before being written.
+	 */
+	public BitSet getLiveIn(int codeAddress) {
+		BitSet result = liveIn.get(codeAddress);
+		if (result == null) {
+			return getAll();
+		}
+		return result;
+	}
+
+	/*
+	 * Registers that may be read after the instruction at codeAddress completes.
+	 */
+	public BitSet getLiveOut(int codeAddress) {
+		BitSet result = liveOut.get(codeAddress);
+		if (result == null) {
+			return getAll();
+		}
+		return result;
+	}
+
+	private BitSet getAll() {
+		BitSet all = new BitSet(numRegisters);
+		all.set(0, numRegisters);
+		return all;
+	}
+
+	private boolean isPayload(Instruction instruction) {
+		return instruction instanceof PackedSwitchDataPseudoInstruction ||
+				instruction instanceof SparseSwitchDataPseudoInstruction ||
+				instruction instanceof ArrayDataPseudoInstruction;
+	}
+
+	private List<Integer> getHandlers(int codeAddress) {
+		List<Integer> handlers = new LinkedList<Integer>();
+		CodeItem.TryItem[] tries = region.encodedMethod.codeItem.getTries();
+		if (tries == null) {
+			return handlers;
+		}
+		for (TryItem tryItem : tries) {
+			int start = tryItem.getStartCodeAddress();
+			if (codeAddress < start || codeAddress >= start + tryItem.getTryLength()) {
+				continue;
+			}
+			for (EncodedTypeAddrPair handler : tryItem.encodedCatchHandler.handlers) {
+				handlers.add(handler.getHandlerAddress());
+			}
+			if (tryItem.encodedCatchHandler.getCatchAllHandlerAddress() != -1) {
+				handlers.add(tryItem.encodedCatchHandler.getCatchAllHandlerAddress());
+			}
+		}
+		return handlers;
+	}
+
+	private void compute() {
+		Map<Integer,BitSet> use = new HashMap<Integer,BitSet>();
+		Map<Integer,BitSet> def = new HashMap<Integer,BitSet>();
+		Map<Integer,List<Integer>> successors = new HashMap<Integer,List<Integer>>();
+		Map<Integer,List<Integer>> handlers = new HashMap<Integer,List<Integer>>();
+
+		int codeAddress = 0;
+		for (Instruction instruction : region.instructions) {
+			codeAddresses.add(0, codeAddress);
+
+			BitSet uses = new BitSet(numRegisters);
+			BitSet defs = new BitSet(numRegisters);
+			if (isPayload(instruction)) {
+				successors.put(codeAddress, new LinkedList<Integer>());
+			} else {
+				if (OpcodeParser.isUnderstood(instruction)) {
+					for (int reg : OpcodeParser.getReadRegisters(instruction)) {
+						uses.set(reg);
+					}
+					for (int reg : OpcodeParser.getWrittenRegisters(instruction)) {
+						defs.set(reg);
+					}
+				} else {
+					uses.set(0, numRegisters);
+				}
+				successors.put(codeAddress, TraceIRBuilder.getSuccessors(region, codeAddress, instruction));
+			}
+			if (!isPayload(instruction) && instruction.opcode.canThrow()) {
+				handlers.put(codeAddress, getHandlers(codeAddress));
+			} else {
+				handlers.put(codeAddress, new LinkedList<Integer>());
+			}
+			use.put(codeAddress, uses);
+			def.put(codeAddress, defs);
+			liveIn.put(codeAddress, new BitSet(numRegisters));
+			liveOut.put(codeAddress, new BitSet(numRegisters));
+
+			codeAddress += instruction.getSize(codeAddress);
+		}
+
+		// Iterate backwards over the method until nothing changes.
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int addr : codeAddresses) {
+				BitSet out = new BitSet(numRegisters);
+				for (int successor : successors.get(addr)) {
+					BitSet successorIn = liveIn.get(successor);
+					if (successorIn != null) {
+						out.or(successorIn);
+					}
+				}
+
+				BitSet in = (BitSet) out.clone();
+				in.andNot(def.get(addr));
+				in.or(use.get(addr));
+				for (int handler : handlers.get(addr)) {
+					BitSet handlerIn = liveIn.get(handler);
+					if (handlerIn != null) {
+						in.or(handlerIn);
+						out.or(handlerIn);
+					}
+				}
+
+				if (!in.equals(liveIn.get(addr))) {
+					liveIn.put(addr, in);
+					changed = true;
+				}
+				liveOut.put(addr, out);
+			}
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jf.dexlib.CodeItem;
+import org.jf.dexlib.Code.FiveRegisterInstruction;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.OdexedInvokeInline;
+import org.jf.dexlib.Code.OffsetInstruction;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.RegisterRangeInstruction;
+import org.jf.dexlib.Code.SingleRegisterInstruction;
+import org.jf.dexlib.Code.ThreeRegisterInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+import eu.whrl.aottracegen.OpcodeParser;
+import eu.whrl.aottracegen.Region;
+import eu.whrl.aottracegen.converters.BytecodeToCConverter;
+
+/*
+ * Forward dataflow over the trace that finds which SSA values are known to be
+ * non-null, and clears IRInstruction.needsNullCheck where the checked value is one of them.
+ *
+ * Values become non-null by surviving a null check (we leave the trace if they're null),
+ * by being allocated or loaded from the literal pool, by being copied from a non-null value,
+ * or by taking the non-null side of an if-eqz/if-nez. Merges intersect, and loop
+ * back-edges are handled by iterating optimistically until nothing changes.
+ */
+public class NullCheckEliminationPass implements IPass {
+	private TraceIR ir;
+	private Set<IRValue> entryFacts;
+	// State at the end of each block, null until the block has been visited
+	private Map<IRBasicBlock,Set<IRValue>> blockOut;
+
+	public String getName() {
+		return "null check elimination";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		this.ir = ir;
+		entryFacts = new HashSet<IRValue>();
+		blockOut = new HashMap<IRBasicBlock,Set<IRValue>>();
+
+		int thisRegister = getThisRegister(context.currentRegion);
+		if (thisRegister != -1) {
+			entryFacts.add(ir.getEntryValue(thisRegister));
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (IRBasicBlock block : ir.rpo) {
+				Set<IRValue> state = getBlockIn(block);
+				for (IRInstruction inst : block.instructions) {
+					transfer(inst, state);
+				}
+				if (!state.equals(blockOut.get(block))) {
+					blockOut.put(block, state);
+					changed = true;
+				}
+			}
+		}
+
+		for (IRLoop loop : ir.loops) {
+			loop.nonNullOnEntry = getEntryState(loop);
+		}
+	}
+
+	/*
+	 * The values known to be non-null on every way into the loop from outside it.
+	 */
+	private Set<IRValue> getEntryState(IRLoop loop) {
+		Set<IRValue> in = null;
+		if (loop.header == ir.entryBlock) {
+			in = new HashSet<IRValue>(entryFacts);
+		}
+		for (IRBasicBlock pred : loop.header.predecessors) {
+			Set<IRValue> edge = getEdgeState(pred, loop.header);
+			if (loop.contains(pred) || edge == null) {
+				continue;
+			}
+			if (in == null) {
+				in = new HashSet<IRValue>(edge);
+			} else {
+				in.retainAll(edge);
+			}
+		}
+		return (in == null) ? new HashSet<IRValue>() : in;
+	}
+
+	/*
+	 * Which register's value does this instruction null check (and leave the trace on)?
+	 * Returns -1 if it doesn't.
+	 */
+	public static int getNullCheckedRegister(Instruction instruction) {
+		switch (instruction.opcode) {
+		case IGET_QUICK:
+		case IGET_WIDE_QUICK:
+		case IGET_OBJECT_QUICK:
+		case IPUT_QUICK:
+		case IPUT_WIDE_QUICK:
+		case IPUT_OBJECT_QUICK:
+		case ARRAY_LENGTH:
+			return ((TwoRegisterInstruction) instruction).getRegisterB();
+		case AGET:
+		case AGET_WIDE:
+		case AGET_OBJECT:
+		case AGET_BOOLEAN:
+		case AGET_BYTE:
+		case AGET_CHAR:
+		case AGET_SHORT:
+		case APUT:
+		case APUT_WIDE:
+		case APUT_OBJECT:
+		case APUT_BOOLEAN:
+		case APUT_BYTE:
+		case APUT_CHAR:
+		case APUT_SHORT:
+			return ((ThreeRegisterInstruction) instruction).getRegisterB();
+		case MONITOR_ENTER:
+		case MONITOR_EXIT:
+			return ((SingleRegisterInstruction) instruction).getRegisterA();
+		case INVOKE_VIRTUAL_QUICK:
+		case INVOKE_VIRTUAL_QUICK_RANGE:
+		case INVOKE_INTERFACE:
+		case INVOKE_INTERFACE_RANGE:
+			return getFirstArgumentRegister(instruction);
+		case EXECUTE_INLINE:
+		case EXECUTE_INLINE_RANGE: {
+			if (BytecodeToCConverter.isNullCheckingInline(((OdexedInvokeInline) instruction).getInlineIndex())) {
+				return getFirstArgumentRegister(instruction);
+			}
+			return -1;
+		}
+		default:
+			return -1;
+		}
+	}
+
+	private static int getFirstArgumentRegister(Instruction instruction) {
+		if (instruction instanceof RegisterRangeInstruction) {
+			return ((RegisterRangeInstruction) instruction).getStartRegister();
+		}
+		return ((FiveRegisterInstruction) instruction).getRegisterD();
+	}
+
+	/*
+	 * The register holding 'this', if the method is virtual and never overwrites it.
+	 */
+	private int getThisRegister(Region region) {
+		if ((region.encodedMethod.accessFlags & 0x8) != 0 /* static? */) {
+			return -1;
+		}
+		CodeItem codeItem = region.encodedMethod.codeItem;
+		int thisRegister = codeItem.getRegisterCount() - codeItem.getInWords();
+		for (Instruction instruction : region.instructions) {
+			if (!OpcodeParser.isUnderstood(instruction)) {
+				return -1;
+			}
+			for (int reg : OpcodeParser.getWrittenRegisters(instruction)) {
+				if (reg == thisRegister) {
+					return -1;
+				}
+			}
+		}
+		return thisRegister;
+	}
+
+	private Set<IRValue> getEdgeState(IRBasicBlock pred, IRBasicBlock block) {
+		Set<IRValue> out = blockOut.get(pred);
+		if (out == null) {
+			return null;
+		}
+
+		// An if-eqz/if-nez tells us the value is non-null on one of its edges.
+		IRInstruction last = pred.getLast();
+
+		// A null check's catch handler is where the value goes when it is null
+		if (last.catchHandlers.containsValue(block.getStartAddress()) && last.needsNullCheck) {
+			IRValue value = last.getUse(getNullCheckedRegister(last.instruction));
+			if (value != null && out.contains(value)) {
+				out = new HashSet<IRValue>(out);
+				out.remove(value);
+			}
+		}
+
+		Opcode opcode = last.instruction.opcode;
+		if (opcode == Opcode.IF_EQZ || opcode == Opcode.IF_NEZ) {
+			int target = last.codeAddress + ((OffsetInstruction) last.instruction).getTargetAddressOffset();
+			int fallthrough = last.codeAddress + last.instruction.getSize(last.codeAddress);
+			if (target != fallthrough) {
+				boolean takenEdge = (block.getStartAddress() == target);
+				if (takenEdge == (opcode == Opcode.IF_NEZ)) {
+					IRValue value = last.getUse(((SingleRegisterInstruction) last.instruction).getRegisterA());
+					if (value != null && !out.contains(value)) {
+						out = new HashSet<IRValue>(out);
+						out.add(value);
+					}
+				}
+			}
+		}
+		return out;
+	}
+
+	private Set<IRValue> getBlockIn(IRBasicBlock block) {
+		Set<IRValue> in = null;
+		if (block == ir.entryBlock) {
+			in = new HashSet<IRValue>(entryFacts);
+		}
+		for (IRBasicBlock pred : block.predecessors) {
+			Set<IRValue> edge = getEdgeState(pred, block);
+			if (edge == null) {
+				continue;
+			}
+			if (in == null) {
+				in = new HashSet<IRValue>(edge);
+			} else {
+				in.retainAll(edge);
+			}
+		}
+		if (in == null) {
+			in = new HashSet<IRValue>();
+		}
+
+		for (IRPhi phi : block.phis) {
+			boolean nonNull = true;
+			if (phi.entryOperand != null && !entryFacts.contains(phi.entryOperand)) {
+				nonNull = false;
+			}
+			for (int i = 0; i < phi.operands.length && nonNull; i++) {
+				Set<IRValue> edge = getEdgeState(block.predecessors.get(i), block);
+				if (edge != null && !edge.contains(phi.operands[i])) {
+					nonNull = false;
+				}
+			}
+			if (nonNull) {
+				in.add(phi.result);
+			}
+		}
+		return in;
+	}
+
+	private void transfer(IRInstruction inst, Set<IRValue> state) {
+		Instruction instruction = inst.instruction;
+
+		int checkedRegister = getNullCheckedRegister(instruction);
+		if (checkedRegister != -1) {
+			IRValue value = inst.getUse(checkedRegister);
+			inst.needsNullCheck = (value == null || !state.contains(value));
+			if (value != null) {
+				state.add(value);
+			}
+		}
+
+		switch (instruction.opcode) {
+		case NEW_INSTANCE:
+		case NEW_ARRAY:
+		case CONST_STRING:
+		case CONST_STRING_JUMBO:
+		case CONST_CLASS: {
+			IRValue def = inst.getDef(((SingleRegisterInstruction) instruction).getRegisterA());
+			if (def != null) {
+				state.add(def);
+			}
+			break;
+		}
+		case MOVE_OBJECT:
+		case MOVE_OBJECT_FROM16:
+		case MOVE_OBJECT_16: {
+			IRValue use = inst.getUse(((TwoRegisterInstruction) instruction).getRegisterB());
+			IRValue def = inst.getDef(((TwoRegisterInstruction) instruction).getRegisterA());
+			if (use != null && def != null && state.contains(use)) {
+				state.add(def);
+			}
+			break;
+		}
+		default:
+			break;
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Runs a list of passes over a trace's IR, in the order they were added.
+ */
+public class PassManager {
+	private List<IPass> passes;
+	
+	public PassManager() {
+		passes = new LinkedList<IPass>();
+	}
+	
+	public void addPass(IPass pass) {
+		passes.add(pass);
+	}
+	
+	public void runPasses(CodeGenContext context, TraceIR ir) {
+		if (context.config.dumpIR) {
+			ir.print("as built");
+		}
+		for (IPass pass : passes) {
+			pass.run(context, ir);
+			if (context.config.dumpIR) {
+				ir.print("after " + pass.getName());
+			}
+		}
+	}
+}
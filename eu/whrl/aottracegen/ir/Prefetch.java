@@ -0,0 +1,26 @@
+package eu.whrl.aottracegen.ir;
+
+/*
+ * An array a loop walks with its induction variable, which the loop header prefetches
+ * ahead of: the element at index + ahead, elementSize bytes each.
+ */
+public class Prefetch {
+	public int arrayRegister;
+	public int indexRegister;
+	public int elementSize;
+	public int ahead;
+	// the loop stores to the array too
+	public boolean write;
+
+	public Prefetch(int arrayRegister, int indexRegister, int elementSize, int ahead) {
+		this.arrayRegister = arrayRegister;
+		this.indexRegister = indexRegister;
+		this.elementSize = elementSize;
+		this.ahead = ahead;
+		write = false;
+	}
+
+	public String toString() {
+		return String.format("v%d[v%d + %d]%s", arrayRegister, indexRegister, ahead, write ? " (write)" : "");
+	}
+}
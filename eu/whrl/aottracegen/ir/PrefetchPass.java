@@ -0,0 +1,116 @@
+package eu.whrl.aottracegen.ir;
+
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.LiteralInstruction;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.ThreeRegisterInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Finds the arrays that innermost loops walk with a constant stride, indexed by a header
+ * phi that add-int/lit steps every iteration, and has the header prefetch the element
+ * Config.getPrefetchDistance() iterations ahead of each. Running that far ahead of the
+ * loop starts each line's fetch early enough to hide the memory latency, which the
+ * hardware prefetcher only does once it has picked up the stride.
+ *
+ * A prefetch never faults, so running past the end of the array (or reading through a
+ * null one) costs nothing but the pld. The array and index registers have to hold the
+ * values the loop uses on the way into the header, which is where the prefetch reads them.
+ * Kernel loops (KernelLoopPass) don't prefetch in their vectorized copy, since a call in
+ * the body would stop clang vectorizing it.
+ */
+public class PrefetchPass implements IPass {
+
+	public String getName() {
+		return "prefetch insertion";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		int distance = context.config.getPrefetchDistance();
+		if (distance <= 0) {
+			return;
+		}
+		for (IRLoop loop : ir.loops) {
+			if (!loop.isInnermost(ir.loops)) {
+				continue;
+			}
+			IRInstruction headerStart = loop.header.getFirst();
+			for (IRBasicBlock block : loop.blocks) {
+				for (IRInstruction inst : block.instructions) {
+					if (!inst.executable || !RangeCheckEliminationPass.isArrayAccess(inst.instruction)) {
+						continue;
+					}
+					ThreeRegisterInstruction access = (ThreeRegisterInstruction) inst.instruction;
+					IRValue array = inst.getUse(access.getRegisterB());
+					IRValue index = inst.getUse(access.getRegisterC());
+					if (array == null || index == null || !loop.isInvariant(array) || index.phi == null ||
+							index.phi.block != loop.header) {
+						continue;
+					}
+					Integer step = getStep(loop, index.phi);
+					if (step == null || ir.getValueBefore(headerStart, access.getRegisterB()) != array) {
+						continue;
+					}
+					addPrefetch(loop, new Prefetch(access.getRegisterB(), access.getRegisterC(),
+							getElementSize(inst.instruction), step * distance), inst.instruction.opcode.name.startsWith("aput"));
+				}
+			}
+		}
+	}
+
+	private void addPrefetch(IRLoop loop, Prefetch prefetch, boolean write) {
+		for (Prefetch existing : loop.prefetches) {
+			if (existing.arrayRegister == prefetch.arrayRegister) {
+				existing.write |= write;
+				return;
+			}
+		}
+		prefetch.write = write;
+		loop.prefetches.add(prefetch);
+	}
+
+	/*
+	 * How much the phi goes up by every iteration, if every back-edge adds the same
+	 * constant to it.
+	 */
+	private Integer getStep(IRLoop loop, IRPhi phi) {
+		Integer step = null;
+		for (int i = 0; i < phi.operands.length; i++) {
+			IRBasicBlock pred = loop.header.predecessors.get(i);
+			if (!loop.contains(pred) || !pred.reachable) {
+				continue;
+			}
+			IRValue operand = phi.operands[i];
+			if (operand == null || operand.definition == null) {
+				return null;
+			}
+			Instruction instruction = operand.definition.instruction;
+			if ((instruction.opcode != Opcode.ADD_INT_LIT8 && instruction.opcode != Opcode.ADD_INT_LIT16) ||
+					operand.definition.getUse(((TwoRegisterInstruction) instruction).getRegisterB()) != phi.result) {
+				return null;
+			}
+			int literal = (int) ((LiteralInstruction) instruction).getLiteral();
+			if (literal == 0 || (step != null && step != literal)) {
+				return null;
+			}
+			step = literal;
+		}
+		return step;
+	}
+
+	private int getElementSize(Instruction instruction) {
+		String name = instruction.opcode.name;
+		if (name.endsWith("-wide")) {
+			return 8;
+		}
+		if (name.endsWith("-boolean") || name.endsWith("-byte")) {
+			return 1;
+		}
+		if (name.endsWith("-char") || name.endsWith("-short")) {
+			return 2;
+		}
+		return 4;
+	}
+}
@@ -0,0 +1,405 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.LiteralInstruction;
+import org.jf.dexlib.Code.OffsetInstruction;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.SingleRegisterInstruction;
+import org.jf.dexlib.Code.ThreeRegisterInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Removes array range checks in loops, using the loop's induction variables.
+ *
+ * An access array[i], where i is a header phi that steps by a constant each iteration
+ * and the access is dominated by a loop test like i < n, is in bounds if i starts >= 0
+ * and n <= array.length. The test has to dominate the loop's latches as well, so i is
+ * only stepped once it has been tested, and can't wrap around past the bound. If we can
+ * see that statically (n is the array's length and i starts at a non-negative constant),
+ * the check goes. Otherwise we record a RangeGuard on the loop, and the generator emits
+ * a check-free copy of the loop that's entered when the guards hold on the way into the
+ * header. The checked loop stays as the fallback.
+ */
+public class RangeCheckEliminationPass implements IPass {
+	// Don't duplicate loops bigger than this (in instructions).
+	private static final int MAX_VERSIONED_LOOP_SIZE = 64;
+
+	private enum Comparison { LT, LE, GT, GE }
+
+	private class InductionVariable {
+		IRPhi phi;
+		int step;
+		// the value it starts with, if every way into the loop agrees
+		IRValue init;
+	}
+
+	private class Bound {
+		Comparison comparison;
+		// null if the bound is the constant 0
+		IRValue value;
+		int register;
+	}
+
+	private TraceIR ir;
+
+	public String getName() {
+		return "range check elimination";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		this.ir = ir;
+
+		for (IRLoop loop : ir.loops) {
+			List<InductionVariable> ivs = findInductionVariables(loop);
+			if (ivs.isEmpty()) {
+				continue;
+			}
+
+			Set<IRInstruction> versionedAccesses = new HashSet<IRInstruction>();
+			int loopSize = 0;
+
+			for (IRInstruction inst : ir.instructions) {
+				if (!loop.contains(inst)) {
+					continue;
+				}
+				loopSize++;
+				if (!isArrayAccess(inst.instruction)) {
+					continue;
+				}
+
+				ThreeRegisterInstruction access = (ThreeRegisterInstruction) inst.instruction;
+				IRValue arrayValue = inst.getUse(access.getRegisterB());
+				IRValue indexValue = inst.getUse(access.getRegisterC());
+				if (arrayValue == null || indexValue == null || !loop.isInvariant(arrayValue)) {
+					continue;
+				}
+
+				InductionVariable iv = null;
+				for (InductionVariable candidate : ivs) {
+					if (candidate.phi.result == indexValue) {
+						iv = candidate;
+					}
+				}
+				if (iv == null) {
+					continue;
+				}
+
+				Bound bound = findBound(loop, iv, inst);
+				if (bound == null) {
+					continue;
+				}
+
+				if (isProvenInBounds(iv, bound, arrayValue)) {
+					inst.needsRangeCheck = false;
+					continue;
+				}
+
+				// The guard reads the registers on the way into the header, so they
+				// have to hold the values the loop uses.
+				IRInstruction headerStart = loop.header.getFirst();
+				if (ir.getValueBefore(headerStart, access.getRegisterB()) != arrayValue) {
+					continue;
+				}
+				if (bound.value != null && ir.getValueBefore(headerStart, bound.register) != bound.value) {
+					continue;
+				}
+
+				RangeGuard guard = new RangeGuard(access.getRegisterB(), iv.phi.register,
+						bound.value == null ? -1 : bound.register, iv.step > 0,
+						bound.comparison == Comparison.LE || bound.comparison == Comparison.GE);
+				if (!loop.versionGuards.contains(guard)) {
+					loop.versionGuards.add(guard);
+				}
+				versionedAccesses.add(inst);
+			}
+
+			if (!versionedAccesses.isEmpty() && loop.isInnermost(ir.loops) && loopSize <= MAX_VERSIONED_LOOP_SIZE) {
+				loop.versioned = true;
+				for (IRInstruction inst : versionedAccesses) {
+					inst.rangeCheckVersioned = true;
+				}
+			} else {
+				loop.versionGuards.clear();
+			}
+		}
+	}
+
+	public static boolean isArrayAccess(Instruction instruction) {
+		switch (instruction.opcode) {
+		case AGET:
+		case AGET_WIDE:
+		case AGET_OBJECT:
+		case AGET_BOOLEAN:
+		case AGET_BYTE:
+		case AGET_CHAR:
+		case AGET_SHORT:
+		case APUT:
+		case APUT_WIDE:
+		case APUT_OBJECT:
+		case APUT_BOOLEAN:
+		case APUT_BYTE:
+		case APUT_CHAR:
+		case APUT_SHORT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * Get the value of a constant, or null if it isn't one.
+	 */
+	public static Integer getConstant(IRValue value) {
+		if (value == null || value.definition == null) {
+			return null;
+		}
+		Instruction instruction = value.definition.instruction;
+		switch (instruction.opcode) {
+		case CONST_4:
+		case CONST_16:
+		case CONST:
+			return (int) ((LiteralInstruction) instruction).getLiteral();
+		default:
+			return null;
+		}
+	}
+
+	/*
+	 * If value is base plus a constant, return the constant.
+	 */
+	private Integer getIncrement(IRValue value, IRValue base) {
+		if (value == null || value.definition == null) {
+			return null;
+		}
+		IRInstruction def = value.definition;
+		Instruction instruction = def.instruction;
+		switch (instruction.opcode) {
+		case ADD_INT_LIT8:
+		case ADD_INT_LIT16: {
+			if (def.getUse(((TwoRegisterInstruction) instruction).getRegisterB()) != base) {
+				return null;
+			}
+			return (int) ((LiteralInstruction) instruction).getLiteral();
+		}
+		case ADD_INT_2ADDR: {
+			IRValue a = def.getUse(((TwoRegisterInstruction) instruction).getRegisterA());
+			IRValue b = def.getUse(((TwoRegisterInstruction) instruction).getRegisterB());
+			return getConstantOperand(a, b, base);
+		}
+		case ADD_INT: {
+			IRValue a = def.getUse(((ThreeRegisterInstruction) instruction).getRegisterB());
+			IRValue b = def.getUse(((ThreeRegisterInstruction) instruction).getRegisterC());
+			return getConstantOperand(a, b, base);
+		}
+		default:
+			return null;
+		}
+	}
+
+	private Integer getConstantOperand(IRValue a, IRValue b, IRValue base) {
+		Integer constant = null;
+		if (a == base) {
+			constant = getConstant(b);
+		} else if (b == base) {
+			constant = getConstant(a);
+		}
+		// big steps could wrap around past the bound
+		if (constant != null && (constant > 0xffff || constant < -0xffff)) {
+			return null;
+		}
+		return constant;
+	}
+
+	private List<InductionVariable> findInductionVariables(IRLoop loop) {
+		List<InductionVariable> ivs = new ArrayList<InductionVariable>();
+
+		for (IRPhi phi : loop.header.phis) {
+			Integer step = null;
+			Set<IRValue> inits = new HashSet<IRValue>();
+			boolean valid = true;
+
+			for (int i = 0; i < phi.operands.length && valid; i++) {
+				IRBasicBlock pred = loop.header.predecessors.get(i);
+				if (!pred.reachable) {
+					continue;
+				}
+				if (loop.contains(pred)) {
+					Integer increment = getIncrement(phi.operands[i], phi.result);
+					if (increment == null || increment == 0 || (step != null && !step.equals(increment))) {
+						valid = false;
+					}
+					step = increment;
+				} else {
+					inits.add(phi.operands[i]);
+				}
+			}
+			if (phi.entryOperand != null) {
+				inits.add(phi.entryOperand);
+			}
+
+			if (valid && step != null) {
+				InductionVariable iv = new InductionVariable();
+				iv.phi = phi;
+				iv.step = step;
+				iv.init = (inits.size() == 1) ? inits.iterator().next() : null;
+				ivs.add(iv);
+			}
+		}
+
+		return ivs;
+	}
+
+	private Comparison getComparison(Opcode opcode) {
+		switch (opcode) {
+		case IF_LT:
+		case IF_LTZ:
+			return Comparison.LT;
+		case IF_LE:
+		case IF_LEZ:
+			return Comparison.LE;
+		case IF_GT:
+		case IF_GTZ:
+			return Comparison.GT;
+		case IF_GE:
+		case IF_GEZ:
+			return Comparison.GE;
+		default:
+			return null;
+		}
+	}
+
+	private Comparison negate(Comparison comparison) {
+		switch (comparison) {
+		case LT: return Comparison.GE;
+		case LE: return Comparison.GT;
+		case GT: return Comparison.LE;
+		default: return Comparison.LT;
+		}
+	}
+
+	private Comparison swap(Comparison comparison) {
+		switch (comparison) {
+		case LT: return Comparison.GT;
+		case LE: return Comparison.GE;
+		case GT: return Comparison.LT;
+		default: return Comparison.LE;
+		}
+	}
+
+	/*
+	 * Find a loop test, dominating the access and the latches, that keeps the induction
+	 * variable on the right side of a loop invariant bound.
+	 */
+	private Bound findBound(IRLoop loop, InductionVariable iv, IRInstruction access) {
+		for (IRBasicBlock block : loop.blocks) {
+			IRInstruction test = block.getLast();
+			Comparison comparison = getComparison(test.instruction.opcode);
+			if (comparison == null) {
+				continue;
+			}
+
+			int target = test.codeAddress + ((OffsetInstruction) test.instruction).getTargetAddressOffset();
+			int fallthrough = test.codeAddress + test.instruction.getSize(test.codeAddress);
+			if (target == fallthrough) {
+				continue;
+			}
+
+			for (IRBasicBlock successor : block.successors) {
+				if (!loop.contains(successor) || successor.predecessors.size() != 1 ||
+						!successor.dominates(access.block) || !dominatesLatches(loop, successor)) {
+					continue;
+				}
+				Comparison edgeComparison = (successor.getStartAddress() == target) ? comparison : negate(comparison);
+
+				Bound bound = new Bound();
+				IRValue a = null;
+				IRValue b = null;
+				int bRegister = -1;
+				if (test.instruction instanceof TwoRegisterInstruction) {
+					a = test.getUse(((TwoRegisterInstruction) test.instruction).getRegisterA());
+					bRegister = ((TwoRegisterInstruction) test.instruction).getRegisterB();
+					b = test.getUse(bRegister);
+					if (b == null) {
+						continue;
+					}
+				} else {
+					a = test.getUse(((SingleRegisterInstruction) test.instruction).getRegisterA());
+				}
+
+				if (a == iv.phi.result) {
+					bound.comparison = edgeComparison;
+					bound.value = b;
+					bound.register = bRegister;
+				} else if (b != null && b == iv.phi.result) {
+					bound.comparison = swap(edgeComparison);
+					bound.value = a;
+					bound.register = ((TwoRegisterInstruction) test.instruction).getRegisterA();
+				} else {
+					continue;
+				}
+
+				if (bound.value != null && !loop.isInvariant(bound.value)) {
+					continue;
+				}
+				if (iv.step > 0 && (bound.comparison == Comparison.LT || bound.comparison == Comparison.LE)) {
+					return bound;
+				}
+				if (iv.step < 0 && (bound.comparison == Comparison.GT || bound.comparison == Comparison.GE)) {
+					return bound;
+				}
+			}
+		}
+		return null;
+	}
+
+	private boolean dominatesLatches(IRLoop loop, IRBasicBlock block) {
+		for (IRBasicBlock latch : loop.latches) {
+			if (!block.dominates(latch)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isLengthOf(IRValue value, IRValue arrayValue) {
+		if (value == null || value.definition == null || value.definition.instruction.opcode != Opcode.ARRAY_LENGTH) {
+			return false;
+		}
+		IRInstruction def = value.definition;
+		return def.getUse(((TwoRegisterInstruction) def.instruction).getRegisterB()) == arrayValue;
+	}
+
+	private boolean isProvenInBounds(InductionVariable iv, Bound bound, IRValue arrayValue) {
+		if (iv.init == null) {
+			return false;
+		}
+		if (iv.step > 0) {
+			// for (i = c; i < array.length; i += step), c >= 0
+			Integer init = getConstant(iv.init);
+			return init != null && init >= 0 && bound.comparison == Comparison.LT && isLengthOf(bound.value, arrayValue);
+		}
+
+		// for (i = array.length - c; i >= 0; i -= step), c > 0
+		IRInstruction initDef = iv.init.definition;
+		if (initDef == null || (initDef.instruction.opcode != Opcode.ADD_INT_LIT8 && initDef.instruction.opcode != Opcode.ADD_INT_LIT16)) {
+			return false;
+		}
+		if (((LiteralInstruction) initDef.instruction).getLiteral() >= 0 ||
+				!isLengthOf(initDef.getUse(((TwoRegisterInstruction) initDef.instruction).getRegisterB()), arrayValue)) {
+			return false;
+		}
+		Integer boundConstant = (bound.value == null) ? Integer.valueOf(0) : getConstant(bound.value);
+		if (boundConstant == null) {
+			return false;
+		}
+		return (bound.comparison == Comparison.GE && boundConstant >= 0) ||
+				(bound.comparison == Comparison.GT && boundConstant >= -1);
+	}
+}
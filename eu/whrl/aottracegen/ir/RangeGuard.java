@@ -0,0 +1,48 @@
+package eu.whrl.aottracegen.ir;
+
+/*
+ * A condition that, if it holds on entry to a loop header, means every access
+ * array[index] made with the loop's induction variable is in bounds.
+ *
+ * Increasing index, kept below bound:     index >= 0 && bound <= length (bound < length if inclusive)
+ * Decreasing index, kept above bound:     index < length && bound >= -1 (bound >= 0 if inclusive)
+ *
+ * boundRegister is -1 when the bound is the constant 0 (if-ltz and friends).
+ */
+public class RangeGuard {
+	public int arrayRegister;
+	public int indexRegister;
+	public int boundRegister;
+	public boolean increasing;
+	public boolean inclusive;
+
+	public RangeGuard(int arrayRegister, int indexRegister, int boundRegister, boolean increasing, boolean inclusive) {
+		this.arrayRegister = arrayRegister;
+		this.indexRegister = indexRegister;
+		this.boundRegister = boundRegister;
+		this.increasing = increasing;
+		this.inclusive = inclusive;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof RangeGuard)) {
+			return false;
+		}
+		RangeGuard other = (RangeGuard) o;
+		return arrayRegister == other.arrayRegister && indexRegister == other.indexRegister &&
+				boundRegister == other.boundRegister && increasing == other.increasing &&
+				inclusive == other.inclusive;
+	}
+
+	public int hashCode() {
+		return (arrayRegister * 31 + indexRegister) * 31 + boundRegister;
+	}
+
+	public String toString() {
+		String bound = (boundRegister == -1) ? "0" : ("v" + boundRegister);
+		if (increasing) {
+			return String.format("v%d >= 0 && %s %s length(v%d)", indexRegister, bound, inclusive ? "<" : "<=", arrayRegister);
+		}
+		return String.format("v%d < length(v%d) && %s >= %s", indexRegister, arrayRegister, bound, inclusive ? "0" : "-1");
+	}
+}
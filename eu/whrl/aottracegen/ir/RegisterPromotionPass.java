@@ -0,0 +1,110 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jf.dexlib.Code.InvokeInstruction;
+import org.jf.dexlib.Code.Opcode;
+
+import eu.whrl.aottracegen.CodeGenContext;
+import eu.whrl.aottracegen.Trace;
+
+/*
+ * Works out which vregs have to be written back to the Dalvik frame when we leave the
+ * trace, so that the C can keep vregs in locals everywhere else.
+ *
+ * A vreg is written back at a departure point if the trace may have changed it on the
+ * way there (its reaching SSA value isn't the entry value) and whoever picks up from
+ * there may read it (MethodLiveness). Every vreg the trace touches is loaded into its
+ * local on entry, so writing back more than this is always safe, just slower.
+ */
+public class RegisterPromotionPass implements IPass {
+
+	public String getName() {
+		return "register promotion";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		Trace trace = context.currentRegion.trace;
+
+		for (IRInstruction inst : ir.instructions) {
+			if (!inst.understood) {
+				System.out.println(String.format("Not promoting vregs, don't understand the instruction at %#x", inst.codeAddress));
+				return;
+			}
+		}
+
+		MethodLiveness liveness = new MethodLiveness(context.currentRegion);
+
+		for (IRInstruction inst : ir.instructions) {
+			Set<Integer> dirty = getDirtyRegisters(ir, trace.meta.dirtyRegs, inst);
+
+			// Re-executed by the interpreter
+			addFlushes(ir.exceptionFlushes, inst.codeAddress, dirty, liveness.getLiveIn(inst.codeAddress));
+
+			// Leaving to a chaining cell
+			Set<Integer> dirtyAfter = new TreeSet<Integer>(dirty);
+			for (int reg : inst.defs) {
+				dirtyAfter.add(reg);
+			}
+			for (int successor : inst.successors) {
+				if (!ir.containsCodeAddress(successor)) {
+					addFlushes(ir.exitFlushes, successor, dirtyAfter, liveness.getLiveIn(successor));
+				}
+			}
+
+			// Calls read their arguments from the frame, and the GC scans it. So does
+			// throwing an exception to a catch handler in the trace.
+			if (isCall(inst) || !inst.catchHandlers.isEmpty()) {
+				BitSet needed = (BitSet) liveness.getLiveOut(inst.codeAddress).clone();
+				for (int reg : inst.uses) {
+					needed.set(reg);
+				}
+				addFlushes(ir.callFlushes, inst.codeAddress, dirty, needed);
+			}
+		}
+
+		ir.promoteRegisters = true;
+	}
+
+	/*
+	 * The vregs that the trace may have written before reaching inst, or that inst writes.
+	 */
+	private Set<Integer> getDirtyRegisters(TraceIR ir, Set<Integer> traceDirtyRegs, IRInstruction inst) {
+		Set<Integer> dirty = new TreeSet<Integer>();
+		for (int reg : traceDirtyRegs) {
+			IRValue value = ir.getValueBefore(inst, reg);
+			if (value == null || !value.isEntryValue() || inst.definesRegister(reg)) {
+				dirty.add(reg);
+			}
+		}
+		return dirty;
+	}
+
+	private void addFlushes(Map<Integer,Set<Integer>> flushes, int codeAddress, Set<Integer> dirty, BitSet live) {
+		Set<Integer> regs = flushes.get(codeAddress);
+		if (regs == null) {
+			regs = new TreeSet<Integer>();
+			flushes.put(codeAddress, regs);
+		}
+		for (int reg : dirty) {
+			if (live.get(reg)) {
+				regs.add(reg);
+			}
+		}
+	}
+
+	private boolean isCall(IRInstruction inst) {
+		Opcode opcode = inst.instruction.opcode;
+		if (opcode == Opcode.EXECUTE_INLINE || opcode == Opcode.EXECUTE_INLINE_RANGE) {
+			return false;
+		}
+		return inst.instruction instanceof InvokeInstruction ||
+				opcode == Opcode.NEW_INSTANCE ||
+				opcode == Opcode.NEW_ARRAY ||
+				opcode == Opcode.FILLED_NEW_ARRAY ||
+				opcode == Opcode.FILLED_NEW_ARRAY_RANGE;
+	}
+}
@@ -0,0 +1,35 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * An object a new-instance in the trace makes that never escapes it, so its fields live
+ * in C locals instead, one per 32-bit word. The vregs that refer to it hold null until
+ * the trace leaves while one of them is live, when it's allocated for real.
+ */
+public class ScalarObject {
+	public IRInstruction allocation;
+	// the values that refer to the object
+	public Set<IRValue> aliases;
+	// byte offsets of the words the trace reads or writes
+	public Set<Integer> words;
+
+	public ScalarObject(IRInstruction allocation) {
+		this.allocation = allocation;
+		aliases = new HashSet<IRValue>();
+		words = new TreeSet<Integer>();
+	}
+
+	/*
+	 * The C local holding the word at offset.
+	 */
+	public String getWordName(int offset) {
+		return String.format("o%x_%x", allocation.codeAddress, offset);
+	}
+
+	public String toString() {
+		return String.format("new-instance at %#x, words %s", allocation.codeAddress, words);
+	}
+}
@@ -0,0 +1,333 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jf.dexlib.CodeItem;
+import org.jf.dexlib.TypeIdItem;
+import org.jf.dexlib.ClassDataItem.EncodedMethod;
+import org.jf.dexlib.Code.FiveRegisterInstruction;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.InstructionWithReference;
+import org.jf.dexlib.Code.InvokeInstruction;
+import org.jf.dexlib.Code.OdexedFieldAccess;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.RegisterRangeInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+import org.jf.dexlib.Code.Analysis.ClassPath;
+
+import eu.whrl.aottracegen.CodeGenContext;
+import eu.whrl.aottracegen.MethodLookup;
+import eu.whrl.aottracegen.OpcodeParser;
+
+/*
+ * Escape analysis of the objects new-instance makes in the trace. An object that is only
+ * ever the object operand of iget-quick/iput-quick (wide or not), moved between vregs,
+ * or the receiver of a constructor the InliningPass inlined that does no more than that
+ * with 'this', can't be seen by anything but the trace. Its words then live in C locals
+ * (see ScalarObject), and new-instance just clears them.
+ *
+ * The interpreter can still see it once we leave the trace, if a vreg that refers to it
+ * is live where we leave to (MethodLiveness). Those exits allocate it there, copy the
+ * locals in and point the vregs at it. If a phi merges it with another value and the
+ * phi's register is live at an exit we can't tell which one to materialize, so the object
+ * is left alone.
+ *
+ * Object fields aren't replaced: a reference only held in a C local isn't a GC root.
+ * Neither are objects of classes that have a finalizer, which has to run even if the
+ * object never made it out of the trace.
+ */
+public class ScalarReplacementPass implements IPass {
+	private static final String objectType = "Ljava/lang/Object;";
+
+	private MethodLiveness liveness;
+
+	public String getName() {
+		return "scalar replacement";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		for (IRInstruction inst : ir.instructions) {
+			// every read of an object has to be in the SSA form
+			if (inst.executable && !inst.understood) {
+				return;
+			}
+		}
+
+		liveness = null;
+		for (IRInstruction inst : ir.instructions) {
+			if (inst.instruction.opcode == Opcode.NEW_INSTANCE && inst.executable &&
+					!hasFinalizer((TypeIdItem) ((InstructionWithReference) inst.instruction).getReferencedItem())) {
+				replace(context, ir, inst);
+			}
+		}
+	}
+
+	private void replace(CodeGenContext context, TraceIR ir, IRInstruction allocation) {
+		ScalarObject object = new ScalarObject(allocation);
+		List<IRInstruction> accesses = new ArrayList<IRInstruction>();
+		Set<IRValue> merged = new HashSet<IRValue>();
+		if (!findAliases(object, accesses, merged)) {
+			return;
+		}
+
+		if (liveness == null) {
+			liveness = new MethodLiveness(context.currentRegion);
+		}
+		Map<IRInstruction,Set<Integer>> before = new HashMap<IRInstruction,Set<Integer>>();
+		Map<IRInstruction,Set<Integer>> after = new HashMap<IRInstruction,Set<Integer>>();
+		if (!findMaterializations(ir, object, merged, before, after)) {
+			return;
+		}
+
+		allocation.scalarObject = object;
+		for (IRInstruction access : accesses) {
+			access.scalarObject = object;
+		}
+		for (Map.Entry<IRInstruction,Set<Integer>> entry : before.entrySet()) {
+			entry.getKey().materializeBefore.put(object, entry.getValue());
+		}
+		for (Map.Entry<IRInstruction,Set<Integer>> entry : after.entrySet()) {
+			entry.getKey().materializeAfter.put(object, entry.getValue());
+		}
+		ir.scalarObjects.add(object);
+	}
+
+	/*
+	 * Follow the object through moves and phis, checking every use. The field accesses
+	 * and constructors go in accesses, and phi results that may be it in merged.
+	 */
+	private boolean findAliases(ScalarObject object, List<IRInstruction> accesses, Set<IRValue> merged) {
+		IRValue result = object.allocation.getDef(object.allocation.defs[0]);
+		LinkedList<IRValue> worklist = new LinkedList<IRValue>();
+		object.aliases.add(result);
+		worklist.add(result);
+		while (!worklist.isEmpty()) {
+			IRValue value = worklist.removeFirst();
+			for (IRPhi phi : value.phiUsers) {
+				if (merged.add(phi.result)) {
+					worklist.add(phi.result);
+				}
+			}
+			for (IRInstruction user : value.users) {
+				if (!user.executable) {
+					continue;
+				}
+				// nothing can read a merged value, we wouldn't know what it is
+				if (merged.contains(value) || !isAllowedUse(object, user, value, accesses)) {
+					return false;
+				}
+				String name = user.instruction.opcode.name;
+				if (name.startsWith("move-object")) {
+					IRValue copy = user.getDef(((TwoRegisterInstruction) user.instruction).getRegisterA());
+					if (object.aliases.add(copy)) {
+						worklist.add(copy);
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean isAllowedUse(ScalarObject object, IRInstruction user, IRValue value, List<IRInstruction> accesses) {
+		Instruction instruction = user.instruction;
+		switch (instruction.opcode) {
+		case IGET_QUICK:
+		case IGET_WIDE_QUICK:
+		case IPUT_QUICK:
+		case IPUT_WIDE_QUICK: {
+			TwoRegisterInstruction access = (TwoRegisterInstruction) instruction;
+			boolean wide = instruction.opcode.name.contains("-wide");
+			if (user.getUse(access.getRegisterB()) != value) {
+				return false;
+			}
+			if (instruction.opcode.name.startsWith("iput") && (user.getUse(access.getRegisterA()) == value ||
+					(wide && user.getUse(access.getRegisterA() + 1) == value))) {
+				return false;
+			}
+			addWords(object, ((OdexedFieldAccess) instruction).getFieldOffset(), wide);
+			accesses.add(user);
+			return true;
+		}
+		case MOVE_OBJECT:
+		case MOVE_OBJECT_FROM16:
+		case MOVE_OBJECT_16:
+		case INVOKE_OBJECT_INIT_RANGE:
+			return true;
+		case INVOKE_DIRECT:
+		case INVOKE_DIRECT_RANGE: {
+			int[] args = getArguments(instruction);
+			if (user.inlinedCallee == null || user.getUse(args[0]) != value) {
+				return false;
+			}
+			for (int i = 1; i < args.length; i++) {
+				if (user.getUse(args[i]) == value) {
+					return false;
+				}
+			}
+			if (!addConstructorWords(object, user.inlinedCallee)) {
+				return false;
+			}
+			accesses.add(user);
+			return true;
+		}
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * Add the words an inlined constructor reads and writes, if all it does with 'this'
+	 * is use it as the object of iget-quick/iput-quick.
+	 */
+	private boolean addConstructorWords(ScalarObject object, EncodedMethod callee) {
+		CodeItem codeItem = callee.codeItem;
+		int thisRegister = codeItem.getRegisterCount() - codeItem.getInWords();
+		for (Instruction instruction : codeItem.getInstructions()) {
+			if (!OpcodeParser.isUnderstood(instruction)) {
+				return false;
+			}
+			boolean readsThis = false;
+			for (int reg : OpcodeParser.getReadRegisters(instruction)) {
+				readsThis |= (reg == thisRegister);
+			}
+			if (!readsThis) {
+				continue;
+			}
+			switch (instruction.opcode) {
+			case IGET_QUICK:
+			case IGET_WIDE_QUICK:
+			case IPUT_QUICK:
+			case IPUT_WIDE_QUICK: {
+				TwoRegisterInstruction access = (TwoRegisterInstruction) instruction;
+				boolean wide = instruction.opcode.name.contains("-wide");
+				if (access.getRegisterB() != thisRegister || (instruction.opcode.name.startsWith("iput") &&
+						(access.getRegisterA() == thisRegister || (wide && access.getRegisterA() + 1 == thisRegister)))) {
+					return false;
+				}
+				addWords(object, ((OdexedFieldAccess) instruction).getFieldOffset(), wide);
+				break;
+			}
+			case INVOKE_OBJECT_INIT_RANGE:
+				break;
+			default:
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void addWords(ScalarObject object, int offset, boolean wide) {
+		object.words.add(offset);
+		if (wide) {
+			object.words.add(offset + 4);
+		}
+	}
+
+	private int[] getArguments(Instruction instruction) {
+		int[] args = new int[((InvokeInstruction) instruction).getRegCount()];
+		if (instruction instanceof RegisterRangeInstruction) {
+			int start = ((RegisterRangeInstruction) instruction).getStartRegister();
+			for (int i = 0; i < args.length; i++) {
+				args[i] = start + i;
+			}
+		} else {
+			FiveRegisterInstruction invoke = (FiveRegisterInstruction) instruction;
+			int[] regs = { invoke.getRegisterD(), invoke.getRegisterE(), invoke.getRegisterF(),
+					invoke.getRegisterG(), invoke.getRegisterA() };
+			System.arraycopy(regs, 0, args, 0, args.length);
+		}
+		return args;
+	}
+
+	/*
+	 * Find the vregs that refer to the object and are live where the trace can leave,
+	 * before each instruction (it re-executes) and after it (its successors). False if
+	 * one of them is a merged value.
+	 */
+	private boolean findMaterializations(TraceIR ir, ScalarObject object, Set<IRValue> merged,
+			Map<IRInstruction,Set<Integer>> before, Map<IRInstruction,Set<Integer>> after) {
+		Set<Integer> registers = new TreeSet<Integer>();
+		for (IRValue value : object.aliases) {
+			registers.add(value.register);
+		}
+		for (IRValue value : merged) {
+			registers.add(value.register);
+		}
+
+		for (IRInstruction inst : ir.instructions) {
+			if (!inst.executable) {
+				continue;
+			}
+			BitSet liveBefore = liveness.getLiveIn(inst.codeAddress);
+			BitSet liveAfter = new BitSet();
+			for (int successor : inst.successors) {
+				liveAfter.or(liveness.getLiveIn(successor));
+			}
+			Set<Integer> regsBefore = new TreeSet<Integer>();
+			Set<Integer> regsAfter = new TreeSet<Integer>();
+			for (int reg : registers) {
+				IRValue valueBefore = ir.getValueBefore(inst, reg);
+				IRValue valueAfter = inst.definesRegister(reg) ? inst.getDef(reg) : valueBefore;
+				if (valueBefore != null && liveBefore.get(reg)) {
+					if (merged.contains(valueBefore)) {
+						return false;
+					}
+					if (object.aliases.contains(valueBefore)) {
+						regsBefore.add(reg);
+					}
+				}
+				if (valueAfter != null && liveAfter.get(reg)) {
+					if (merged.contains(valueAfter)) {
+						return false;
+					}
+					if (object.aliases.contains(valueAfter)) {
+						regsAfter.add(reg);
+					}
+				}
+			}
+			// A back-edge to itself leaves with the state after it, but the converter can't
+			// tell that exit from one that re-executes it
+			if (inst.successors.contains(inst.codeAddress) && !regsBefore.equals(regsAfter)) {
+				return false;
+			}
+			if (!regsBefore.isEmpty()) {
+				before.put(inst, regsBefore);
+			}
+			if (!regsAfter.isEmpty()) {
+				after.put(inst, regsAfter);
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Might objects of the class have a finalizer? Only classes we can see all the way up to
+	 * Object are known not to.
+	 */
+	private boolean hasFinalizer(TypeIdItem type) {
+		ClassPath.ClassDef classDef;
+		try {
+			classDef = ClassPath.getClassDef(type.getTypeDescriptor());
+		} catch (RuntimeException e) {
+			return true;
+		}
+		MethodLookup lookup = MethodLookup.getMethodLookup();
+		for (ClassPath.ClassDef c = classDef; c != null; c = c.getSuperclass()) {
+			if (c.getClassType().equals(objectType)) {
+				return false;
+			}
+			if (lookup.findMethod(c.getClassType() + "->finalize()V") != null) {
+				return true;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,148 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jf.dexlib.ClassDefItem;
+import org.jf.dexlib.FieldIdItem;
+import org.jf.dexlib.ClassDataItem.EncodedField;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.InstructionWithReference;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Picks the static fields whose value the trace can keep in a C local, loaded once at
+ * the trace entry (which comes before every loop in it).
+ *
+ * That's fields declared final, which nothing but <clinit> writes, and fields the trace
+ * writes itself, whose stores are flushed whenever the trace leaves or makes a call and
+ * reloaded after the call. Holding the stores back until then is only allowed for fields
+ * that aren't volatile, so a written field has to be found in the app's dex and not be
+ * declared volatile (dexopt only gives volatile fields opcodes of their own when it can
+ * resolve them, and only on SMP). Object stores always go straight to the field, so the
+ * GC sees them. In a trace that takes or releases a lock, other threads can look at the
+ * field in between, so only final fields are cached there.
+ *
+ * The address of every static field the trace uses is loaded from lit[] once as well;
+ * the generator does that itself.
+ */
+public class StaticFieldCachePass implements IPass {
+	private static final int ACC_FINAL = 0x10;
+	private static final int ACC_VOLATILE = 0x40;
+
+	public String getName() {
+		return "static field caching";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		if (context.currentRegion.method.equals("<clinit>")) {
+			return;
+		}
+
+		Map<Integer,String> types = new LinkedHashMap<Integer,String>();
+		Map<Integer,FieldIdItem> fieldItems = new HashMap<Integer,FieldIdItem>();
+		Set<Integer> mixed = new HashSet<Integer>();
+		Set<Integer> written = new HashSet<Integer>();
+		Set<Integer> objectWrites = new HashSet<Integer>();
+		boolean locks = false;
+		for (IRInstruction inst : ir.instructions) {
+			if (inst.executable && inst.instruction.opcode.name.startsWith("monitor")) {
+				locks = true;
+			}
+			String type = getStaticFieldType(inst.instruction);
+			if (type == null || !inst.executable) {
+				continue;
+			}
+			FieldIdItem fieldItem = (FieldIdItem) ((InstructionWithReference) inst.instruction).getReferencedItem();
+			int field = fieldItem.getIndex();
+			fieldItems.put(field, fieldItem);
+			String previous = types.put(field, type);
+			if (previous != null && !previous.equals(type)) {
+				mixed.add(field);
+			}
+			if (isStaticPut(inst.instruction)) {
+				written.add(field);
+				if (inst.instruction.opcode.name.equals("sput-object")) {
+					objectWrites.add(field);
+				}
+			}
+		}
+
+		for (Map.Entry<Integer,String> entry : types.entrySet()) {
+			int field = entry.getKey();
+			if (mixed.contains(field) || objectWrites.contains(field)) {
+				continue;
+			}
+			if (written.contains(field)) {
+				int accessFlags = getAccessFlags(context, fieldItems.get(field));
+				if (locks || accessFlags == -1 || (accessFlags & ACC_VOLATILE) != 0) {
+					continue;
+				}
+				ir.cachedStatics.put(field, entry.getValue());
+				ir.writtenStatics.add(field);
+			} else if (isFinal(context, fieldItems.get(field))) {
+				ir.cachedStatics.put(field, entry.getValue());
+			}
+		}
+	}
+
+	/*
+	 * The C type of the field an sget/sput accesses, or null if it isn't one.
+	 */
+	public static String getStaticFieldType(Instruction instruction) {
+		String name = instruction.opcode.name;
+		if (!name.matches("s(get|put)(-wide|-object|-boolean|-byte|-char|-short)?")) {
+			return null;
+		}
+		if (name.endsWith("-wide")) {
+			return "long long";
+		}
+		if (name.endsWith("-boolean")) {
+			return "unsigned char";
+		}
+		if (name.endsWith("-byte")) {
+			return "signed char";
+		}
+		if (name.endsWith("-char")) {
+			return "unsigned short";
+		}
+		if (name.endsWith("-short")) {
+			return "short";
+		}
+		return "int";
+	}
+
+	public static boolean isStaticPut(Instruction instruction) {
+		return getStaticFieldType(instruction) != null && instruction.opcode.name.startsWith("sput");
+	}
+
+	/*
+	 * Is the field declared final? Anything we can't look up is assumed not to be.
+	 */
+	private boolean isFinal(CodeGenContext context, FieldIdItem fieldItem) {
+		int accessFlags = getAccessFlags(context, fieldItem);
+		return accessFlags != -1 && (accessFlags & ACC_FINAL) != 0;
+	}
+
+	/*
+	 * The field's access flags, or -1 if it can't be found. Only fields of classes in the
+	 * app's dex can be looked up.
+	 */
+	private int getAccessFlags(CodeGenContext context, FieldIdItem fieldItem) {
+		for (ClassDefItem clazz : context.dexFile.ClassDefsSection.getItems()) {
+			if (clazz.getClassType() != fieldItem.getContainingClass() || clazz.getClassData() == null) {
+				continue;
+			}
+			for (EncodedField encodedField : clazz.getClassData().getStaticFields()) {
+				if (encodedField.field == fieldItem) {
+					return encodedField.accessFlags;
+				}
+			}
+		}
+		return -1;
+	}
+}
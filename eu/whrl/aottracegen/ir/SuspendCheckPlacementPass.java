@@ -0,0 +1,109 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.LinkedList;
+
+import org.jf.dexlib.Code.Opcode;
+
+import eu.whrl.aottracegen.CodeGenContext;
+
+/*
+ * Decides where breakflag mode tests the thread's suspend flags inside loops. Instead of
+ * testing at every backwards branch target, the test goes on the back-edges to a loop's
+ * header, so it isn't paid on the way into the loop.
+ *
+ * Every loop gets the test, since an inner loop can spin or run for any number of
+ * iterations, and an outer loop can go round without taking an inner loop's back-edge.
+ * With a poll interval of N, the back-edges count down a shared counter and the flags
+ * are only loaded when it hits zero, which bounds the wait to N iterations of any loop.
+ *
+ * A call through the VM's invoke helpers can come back with 0x4000 set in the flags, or
+ * with them at just 0x10000, and neither means the trace has to stop. Rather than clearing
+ * them after every call, the instructions a call can reach are marked: tests there look
+ * past the marks, and departures from there clear them before the interpreter sees them.
+ */
+public class SuspendCheckPlacementPass implements IPass {
+
+	public String getName() {
+		return "suspend check placement";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		ir.suspendPollInterval = context.config.breakFlagPollInterval;
+		for (IRLoop loop : ir.loops) {
+			loop.suspendCheck = true;
+		}
+
+		LinkedList<IRInstruction> worklist = new LinkedList<IRInstruction>();
+		for (IRInstruction inst : ir.instructions) {
+			if (isCall(inst)) {
+				worklist.add(inst);
+			}
+		}
+		while (!worklist.isEmpty()) {
+			IRInstruction inst = worklist.removeFirst();
+			for (int successor : inst.successors) {
+				IRInstruction next = ir.getInstructionAtCodeAddress(successor);
+				if (next != null && !next.callFlagsPending) {
+					next.callFlagsPending = true;
+					worklist.add(next);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Does the converter emit a call through an invoke helper for inst? Devirtualized
+	 * calls still make the virtual call when the guard fails.
+	 */
+	private static boolean isCall(IRInstruction inst) {
+		if (!inst.executable) {
+			return false;
+		}
+		Opcode opcode = inst.instruction.opcode;
+		switch (opcode) {
+		case INVOKE_DIRECT:
+		case INVOKE_DIRECT_RANGE:
+		case INVOKE_STATIC:
+		case INVOKE_STATIC_RANGE:
+			return inst.inlinedCallee == null;
+		case INVOKE_INTERFACE:
+		case INVOKE_INTERFACE_RANGE:
+		case INVOKE_VIRTUAL_QUICK:
+		case INVOKE_VIRTUAL_QUICK_RANGE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * May a call have marked the flags by the time the trace leaves from, or re-executes,
+	 * the instruction at codeAddress? Yes if we don't know it.
+	 */
+	public static boolean isCallFlagsPendingAt(TraceIR ir, int codeAddress) {
+		return isCallFlagsPendingAfter(ir.getInstructionAtCodeAddress(codeAddress));
+	}
+
+	/*
+	 * May a call have marked the flags once inst has executed (or failed to)?
+	 */
+	public static boolean isCallFlagsPendingAfter(IRInstruction inst) {
+		return inst == null || inst.callFlagsPending || isCall(inst);
+	}
+
+	/*
+	 * May a call have marked the flags when the trace exits to codeAddress, outside it?
+	 */
+	public static boolean isCallFlagsPendingAtExit(TraceIR ir, int codeAddress) {
+		boolean found = false;
+		for (IRInstruction inst : ir.instructions) {
+			if (inst.successors.contains(codeAddress)) {
+				found = true;
+				if (isCallFlagsPendingAfter(inst)) {
+					return true;
+				}
+			}
+		}
+		return !found;
+	}
+}
@@ -0,0 +1,237 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import eu.whrl.aottracegen.Util;
+
+/*
+ * SSA form of a trace. Instructions are kept in the order the C is emitted in
+ * (Trace.addresses order), blocks describe the control flow between them.
+ */
+public class TraceIR {
+	public List<IRInstruction> instructions;
+	public Map<Integer,IRInstruction> instructionMap;
+	
+	public List<IRBasicBlock> blocks;
+	public IRBasicBlock entryBlock;
+	// reachable blocks only, in reverse postorder
+	public List<IRBasicBlock> rpo;
+	public List<IRLoop> loops;
+	// arrays whose length and data pointer the ArrayCachePass keeps in C locals
+	public List<IRValue> cachedArrays;
+	// Set by the StaticFieldCachePass: static fields (by field index) whose value lives in
+	// a C local of the given type, and the ones among them the trace writes
+	public Map<Integer,String> cachedStatics;
+	public Set<Integer> writtenStatics;
+	// objects the ScalarReplacementPass keeps in C locals
+	public List<ScalarObject> scalarObjects;
+	// the CardMarkingPass's card slots
+	public Set<String> cardSlots;
+	
+	public int numRegisters;
+	public Map<Integer,IRValue> entryValues;
+	public List<IRValue> values;
+	
+	// Set by the RegisterPromotionPass if vregs live in C locals. The maps go from the
+	// argument of TRACE_EXIT/TRACE_EXCEPTION/TRACE_FLUSH_CALL to the vregs to write back.
+	public boolean promoteRegisters;
+	public Map<Integer,Set<Integer>> exitFlushes;
+	public Map<Integer,Set<Integer>> exceptionFlushes;
+	public Map<Integer,Set<Integer>> callFlushes;
+	
+	// Set by the TypeInferencePass: vregs that live in float/double locals rather than v[].
+	// A DOUBLE entry covers the register above it too.
+	public Map<Integer,VregType> registerTypes;
+	
+	// Set by the SuspendCheckPlacementPass, 0 if loops test the suspend flags every time
+	public int suspendPollInterval;
+	
+	public TraceIR(int numRegisters) {
+		this.numRegisters = numRegisters;
+		instructions = new ArrayList<IRInstruction>();
+		instructionMap = new HashMap<Integer,IRInstruction>();
+		blocks = new ArrayList<IRBasicBlock>();
+		entryBlock = null;
+		rpo = new ArrayList<IRBasicBlock>();
+		loops = new ArrayList<IRLoop>();
+		cachedArrays = new ArrayList<IRValue>();
+		cachedStatics = new LinkedHashMap<Integer,String>();
+		writtenStatics = new HashSet<Integer>();
+		scalarObjects = new ArrayList<ScalarObject>();
+		cardSlots = new LinkedHashSet<String>();
+		entryValues = new HashMap<Integer,IRValue>();
+		values = new ArrayList<IRValue>();
+		promoteRegisters = false;
+		exitFlushes = new HashMap<Integer,Set<Integer>>();
+		exceptionFlushes = new HashMap<Integer,Set<Integer>>();
+		callFlushes = new HashMap<Integer,Set<Integer>>();
+		registerTypes = new TreeMap<Integer,VregType>();
+		suspendPollInterval = 0;
+	}
+	
+	/*
+	 * Get the name of the union a float or double vreg lives in, or null if it's in v[].
+	 * Asking for the high register of a double gives null. Float vregs are a
+	 * union { float f; int w[1]; }, doubles a union { double d; long long l; int w[2]; },
+	 * so their bits can be read and written as ints without breaking strict aliasing.
+	 */
+	public String getTypedUnion(int register) {
+		VregType type = registerTypes.get(register);
+		if (type == VregType.FLOAT) {
+			return "f" + register;
+		}
+		if (type == VregType.DOUBLE) {
+			return "d" + register;
+		}
+		return null;
+	}
+	
+	/*
+	 * Get the C lvalue of the float or double a vreg holds, or null if it's in v[].
+	 */
+	public String getTypedLocal(int register) {
+		return getTypedMember(register, (registerTypes.get(register) == VregType.FLOAT) ? "float" : "double");
+	}
+	
+	/*
+	 * Get the C lvalue that reads or writes a vreg of a float/double union as the given
+	 * C type (int, float, double or long long), or null if it isn't in one or the union
+	 * has no such member there. The high register of a double is the union's second word.
+	 */
+	public String getTypedMember(int register, String type) {
+		String union = getTypedUnion(register);
+		if (union == null) {
+			if (registerTypes.get(register - 1) == VregType.DOUBLE && type.equals("int")) {
+				return getTypedUnion(register - 1) + ".w[1]";
+			}
+			return null;
+		}
+		if (type.equals("int")) {
+			return union + ".w[0]";
+		}
+		if (registerTypes.get(register) == VregType.FLOAT) {
+			return type.equals("float") ? union + ".f" : null;
+		}
+		if (type.equals("double")) {
+			return union + ".d";
+		}
+		return type.equals("long long") ? union + ".l" : null;
+	}
+	
+	/*
+	 * Get the loop with its header at codeAddress, if there is one.
+	 */
+	public IRLoop getLoopWithHeader(int codeAddress) {
+		for (IRLoop loop : loops) {
+			if (loop.getStartAddress() == codeAddress) {
+				return loop;
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Get the loop with its header at codeAddress if it has a preheader.
+	 */
+	public IRLoop getLoopWithPreheader(int codeAddress) {
+		for (IRLoop loop : loops) {
+			if (loop.hasPreheader() && loop.getStartAddress() == codeAddress) {
+				return loop;
+			}
+		}
+		return null;
+	}
+	
+	public IRInstruction getInstructionAtCodeAddress(int codeAddress) {
+		return instructionMap.get(codeAddress);
+	}
+	
+	public boolean containsCodeAddress(int codeAddress) {
+		return instructionMap.containsKey(codeAddress);
+	}
+	
+	/*
+	 * Get the value the register held on entry to the trace.
+	 */
+	public IRValue getEntryValue(int register) {
+		IRValue value = entryValues.get(register);
+		if (value == null) {
+			value = new IRValue(register, 0);
+			entryValues.put(register, value);
+			values.add(value);
+		}
+		return value;
+	}
+	
+	/*
+	 * Get the value the register holds just before inst executes, or null if
+	 * inst can't be reached from the trace entry.
+	 */
+	public IRValue getValueBefore(IRInstruction inst, int register) {
+		IRBasicBlock block = inst.block;
+		if (!block.reachable) {
+			return null;
+		}
+		int idx = block.instructions.indexOf(inst) - 1;
+		while (true) {
+			for (; idx >= 0; idx--) {
+				IRValue value = block.instructions.get(idx).getDef(register);
+				if (value != null) {
+					return value;
+				}
+			}
+			IRPhi phi = block.getPhiFor(register);
+			if (phi != null) {
+				return phi.result;
+			}
+			if (block == entryBlock) {
+				return getEntryValue(register);
+			}
+			block = block.idom;
+			idx = block.instructions.size() - 1;
+		}
+	}
+	
+	/*
+	 * Print out the IR.
+	 */
+	public void print(String title) {
+		System.out.println("IR " + title + ":");
+		for (IRBasicBlock block : blocks) {
+			String preds = "";
+			for (IRBasicBlock pred : block.predecessors) {
+				preds += (preds.isEmpty() ? "B" : ", B") + pred.id;
+			}
+			System.out.println(String.format("  B%d%s preds [%s] idom %s exits %s", block.id,
+					block.reachable ? "" : " (unreachable)", preds,
+					block.idom == null ? "-" : "B" + block.idom.id, Util.toHexString(block.exits)));
+			for (IRPhi phi : block.phis) {
+				System.out.println("    " + phi);
+			}
+			for (IRInstruction inst : block.instructions) {
+				System.out.println("    " + inst);
+			}
+		}
+		for (Map.Entry<Integer,VregType> entry : registerTypes.entrySet()) {
+			System.out.println(String.format("  v%d is %s", entry.getKey(), entry.getValue().name().toLowerCase()));
+		}
+		for (IRLoop loop : loops) {
+			System.out.println("  " + loop);
+			for (RangeGuard guard : loop.versionGuards) {
+				System.out.println("    guard: " + guard);
+			}
+		}
+		for (ScalarObject object : scalarObjects) {
+			System.out.println("  scalar: " + object);
+		}
+		System.out.println();
+	}
+}
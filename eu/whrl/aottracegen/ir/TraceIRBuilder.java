@@ -0,0 +1,567 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+import org.jf.dexlib.CodeItem.EncodedTypeAddrPair;
+import org.jf.dexlib.CodeItem.TryItem;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.LiteralInstruction;
+import org.jf.dexlib.Code.OffsetInstruction;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.Format.PackedSwitchDataPseudoInstruction;
+import org.jf.dexlib.Code.Format.SparseSwitchDataPseudoInstruction;
+
+import eu.whrl.aottracegen.CTraceGenerator;
+import eu.whrl.aottracegen.CodeGenContext;
+import eu.whrl.aottracegen.OpcodeParser;
+import eu.whrl.aottracegen.Region;
+import eu.whrl.aottracegen.Trace;
+
+/*
+ * Builds the SSA form of the current region's trace.
+ *
+ * 1. one IRInstruction per trace address, with its successors, including the in-trace
+ *    catch handlers of the exceptions it throws itself
+ * 2. split into basic blocks
+ * 3. dominators (Cooper, Harvey & Kennedy) and dominance frontiers
+ * 4. phi placement on the iterated dominance frontier, then renaming
+ * 5. natural loops, from back-edges to a dominating header
+ */
+public class TraceIRBuilder {
+	// the exceptions the trace throws itself
+	public static final String nullPointerException = "Ljava/lang/NullPointerException;";
+	public static final String arrayIndexOutOfBoundsException = "Ljava/lang/ArrayIndexOutOfBoundsException;";
+	public static final String arithmeticException = "Ljava/lang/ArithmeticException;";
+
+	private CodeGenContext context;
+	private Region region;
+	private Trace trace;
+	private TraceIR ir;
+
+	private Map<Integer,List<IRInstruction>> predecessorMap;
+	private Map<Integer,Integer> nextVersion;
+
+	public TraceIRBuilder(CodeGenContext context) {
+		this.context = context;
+		region = context.currentRegion;
+		trace = region.trace;
+	}
+
+	public TraceIR build() {
+		ir = new TraceIR(region.encodedMethod.codeItem.getRegisterCount());
+
+		createInstructions();
+		createBlocks();
+		computeReversePostorder();
+		computeDominators();
+		computeDominanceFrontiers();
+		placePhis();
+		renameRegisters();
+		findLoops();
+
+		return ir;
+	}
+
+	/*
+	 * Returns the code addresses that the instruction at codeAddress can go to next.
+	 */
+	public static List<Integer> getSuccessors(Region region, int codeAddress, Instruction instruction) {
+		List<Integer> successors = new LinkedList<Integer>();
+
+		if (CTraceGenerator.opcodesThatCanReturn.contains(instruction.opcode) || instruction.opcode == Opcode.THROW) {
+			return successors;
+		}
+
+		int fallthroughAddress = codeAddress + instruction.getSize(codeAddress);
+
+		if (instruction.opcode == Opcode.GOTO || instruction.opcode == Opcode.GOTO_16 || instruction.opcode == Opcode.GOTO_32) {
+			successors.add(codeAddress + ((OffsetInstruction) instruction).getTargetAddressOffset());
+			return successors;
+		}
+
+		successors.add(fallthroughAddress);
+
+		if (instruction.opcode == Opcode.PACKED_SWITCH || instruction.opcode == Opcode.SPARSE_SWITCH) {
+			int dataAddress = codeAddress + ((OffsetInstruction) instruction).getTargetAddressOffset();
+			int[] targets = null;
+			if (instruction.opcode == Opcode.PACKED_SWITCH) {
+				targets = ((PackedSwitchDataPseudoInstruction) region.getInstructionAtCodeAddress(dataAddress)).getTargets();
+			} else {
+				targets = ((SparseSwitchDataPseudoInstruction) region.getInstructionAtCodeAddress(dataAddress)).getTargets();
+			}
+			for (int target : targets) {
+				if (!successors.contains(codeAddress + target)) {
+					successors.add(codeAddress + target);
+				}
+			}
+		} else if (CTraceGenerator.opcodesThatCanBranch.contains(instruction.opcode)) {
+			int target = codeAddress + ((OffsetInstruction) instruction).getTargetAddressOffset();
+			if (!successors.contains(target)) {
+				successors.add(target);
+			}
+		}
+
+		return successors;
+	}
+
+	private void createInstructions() {
+		for (int i = 0; i < trace.getLength(); i++) {
+			int codeAddress = trace.addresses.get(i);
+			Instruction instruction = region.getInstructionAtCodeAddress(codeAddress);
+
+			IRInstruction inst = new IRInstruction(i, codeAddress, instruction);
+			inst.uses = OpcodeParser.getReadRegisters(instruction);
+			inst.defs = OpcodeParser.getWrittenRegisters(instruction);
+			inst.understood = OpcodeParser.isUnderstood(instruction);
+			inst.canThrow = instruction.opcode.canThrow();
+			inst.successors = getSuccessors(region, codeAddress, instruction);
+			addCatchHandlers(inst);
+			if (!CTraceGenerator.opcodesThatCanReturn.contains(instruction.opcode)) {
+				inst.nextAddress = region.getNextCodeAddress(codeAddress, instruction);
+			}
+
+			ir.instructions.add(inst);
+			ir.instructionMap.put(codeAddress, inst);
+		}
+
+		predecessorMap = new HashMap<Integer,List<IRInstruction>>();
+		for (IRInstruction inst : ir.instructions) {
+			predecessorMap.put(inst.codeAddress, new LinkedList<IRInstruction>());
+		}
+		for (IRInstruction inst : ir.instructions) {
+			for (int successor : inst.successors) {
+				if (ir.containsCodeAddress(successor)) {
+					predecessorMap.get(successor).add(inst);
+				}
+			}
+		}
+	}
+
+	/*
+	 * The exceptions the trace throws itself at this instruction rather than calling into
+	 * the VM to throw them: null objects, indexes out of bounds and division by zero.
+	 */
+	public static List<String> getThrownExceptions(Instruction instruction) {
+		List<String> exceptions = new ArrayList<String>();
+		String name = instruction.opcode.name;
+		if (instruction.opcode == Opcode.FILL_ARRAY_DATA) {
+			exceptions.add(nullPointerException);
+			exceptions.add(arrayIndexOutOfBoundsException);
+		}
+		// invokes and execute-inline leave to the interpreter when their helper fails
+		if (NullCheckEliminationPass.getNullCheckedRegister(instruction) != -1 &&
+				!name.startsWith("invoke") && !name.startsWith("execute-inline")) {
+			exceptions.add(nullPointerException);
+		}
+		if (RangeCheckEliminationPass.isArrayAccess(instruction)) {
+			exceptions.add(arrayIndexOutOfBoundsException);
+		}
+		if (name.matches("(div|rem)-(int|long)(/2addr)?") ||
+				(name.matches("(div|rem)-int/lit(8|16)") && ((LiteralInstruction) instruction).getLiteral() == 0)) {
+			exceptions.add(arithmeticException);
+		}
+		return exceptions;
+	}
+
+	/*
+	 * Give inst an edge to the catch handler for each exception it throws itself, when the
+	 * handler is in the trace. A handler that's also a normal successor is left alone, the
+	 * passes couldn't tell the two ways in apart.
+	 */
+	private void addCatchHandlers(IRInstruction inst) {
+		List<Integer> normalSuccessors = new ArrayList<Integer>(inst.successors);
+		for (String exception : getThrownExceptions(inst.instruction)) {
+			int handler = getCatchHandler(inst.codeAddress, exception);
+			if (handler == -1 || !trace.containsCodeAddress(handler) || handler == inst.codeAddress ||
+					normalSuccessors.contains(handler)) {
+				continue;
+			}
+			inst.catchHandlers.put(exception, handler);
+			if (!inst.successors.contains(handler)) {
+				inst.successors.add(handler);
+			}
+		}
+	}
+
+	/*
+	 * Get the handler the method's try items give for exception at codeAddress, or -1. Like
+	 * the VM, that's the first handler of the try covering it whose type exception is an
+	 * instance of, or else its catch-all.
+	 */
+	private int getCatchHandler(int codeAddress, String exception) {
+		TryItem[] tries = region.encodedMethod.codeItem.getTries();
+		if (tries == null) {
+			return -1;
+		}
+		for (TryItem tryItem : tries) {
+			int start = tryItem.getStartCodeAddress();
+			if (codeAddress < start || codeAddress >= start + tryItem.getTryLength()) {
+				continue;
+			}
+			for (EncodedTypeAddrPair handler : tryItem.encodedCatchHandler.handlers) {
+				if (isInstanceOf(exception, handler.exceptionType.getTypeDescriptor())) {
+					return handler.getHandlerAddress();
+				}
+			}
+			return tryItem.encodedCatchHandler.getCatchAllHandlerAddress();
+		}
+		return -1;
+	}
+
+	private static boolean isInstanceOf(String exception, String type) {
+		if (type.equals(exception) || type.equals("Ljava/lang/RuntimeException;") ||
+				type.equals("Ljava/lang/Exception;") || type.equals("Ljava/lang/Throwable;")) {
+			return true;
+		}
+		return exception.equals(arrayIndexOutOfBoundsException) && type.equals("Ljava/lang/IndexOutOfBoundsException;");
+	}
+
+	private boolean isLeader(IRInstruction inst) {
+		if (inst.index == 0) {
+			return true;
+		}
+		List<IRInstruction> preds = predecessorMap.get(inst.codeAddress);
+		if (preds.size() != 1) {
+			return true;
+		}
+		IRInstruction pred = preds.get(0);
+		return pred == inst || pred.successors.size() != 1;
+	}
+
+	private void createBlocks() {
+		Map<Integer,IRBasicBlock> blockMap = new HashMap<Integer,IRBasicBlock>();
+
+		for (IRInstruction inst : ir.instructions) {
+			if (!isLeader(inst)) {
+				continue;
+			}
+			IRBasicBlock block = new IRBasicBlock(ir.blocks.size());
+			ir.blocks.add(block);
+			blockMap.put(inst.codeAddress, block);
+
+			// follow the single successor chain until we reach another leader
+			IRInstruction current = inst;
+			while (true) {
+				current.block = block;
+				block.instructions.add(current);
+				if (current.successors.size() != 1) {
+					break;
+				}
+				IRInstruction next = ir.getInstructionAtCodeAddress(current.successors.get(0));
+				if (next == null || isLeader(next)) {
+					break;
+				}
+				current = next;
+			}
+		}
+
+		ir.entryBlock = blockMap.get(ir.instructions.get(0).codeAddress);
+
+		for (IRBasicBlock block : ir.blocks) {
+			for (int successor : block.getLast().successors) {
+				IRBasicBlock successorBlock = blockMap.get(successor);
+				if (successorBlock == null) {
+					block.exits.add(successor);
+				} else if (!block.successors.contains(successorBlock)) {
+					block.successors.add(successorBlock);
+					successorBlock.predecessors.add(block);
+				}
+			}
+		}
+	}
+
+	private void computeReversePostorder() {
+		List<IRBasicBlock> postorder = new ArrayList<IRBasicBlock>();
+		Set<IRBasicBlock> visited = new HashSet<IRBasicBlock>();
+
+		// iterative DFS, so entire-method regions don't blow the stack
+		Stack<IRBasicBlock> blockStack = new Stack<IRBasicBlock>();
+		Stack<Integer> childStack = new Stack<Integer>();
+		blockStack.push(ir.entryBlock);
+		childStack.push(0);
+		visited.add(ir.entryBlock);
+
+		while (!blockStack.isEmpty()) {
+			IRBasicBlock block = blockStack.peek();
+			int child = childStack.pop();
+			if (child < block.successors.size()) {
+				childStack.push(child + 1);
+				IRBasicBlock successor = block.successors.get(child);
+				if (!visited.contains(successor)) {
+					visited.add(successor);
+					blockStack.push(successor);
+					childStack.push(0);
+				}
+			} else {
+				blockStack.pop();
+				postorder.add(block);
+			}
+		}
+
+		Collections.reverse(postorder);
+		ir.rpo = postorder;
+		for (int i = 0; i < ir.rpo.size(); i++) {
+			ir.rpo.get(i).rpoIndex = i;
+			ir.rpo.get(i).reachable = true;
+		}
+	}
+
+	private IRBasicBlock intersect(IRBasicBlock b1, IRBasicBlock b2) {
+		while (b1 != b2) {
+			while (b1.rpoIndex > b2.rpoIndex) {
+				b1 = b1.idom;
+			}
+			while (b2.rpoIndex > b1.rpoIndex) {
+				b2 = b2.idom;
+			}
+		}
+		return b1;
+	}
+
+	private void computeDominators() {
+		ir.entryBlock.idom = ir.entryBlock;
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (IRBasicBlock block : ir.rpo) {
+				if (block == ir.entryBlock) {
+					continue;
+				}
+				IRBasicBlock newIdom = null;
+				for (IRBasicBlock pred : block.predecessors) {
+					if (pred.idom == null) {
+						continue;
+					}
+					if (newIdom == null) {
+						newIdom = pred;
+					} else {
+						newIdom = intersect(pred, newIdom);
+					}
+				}
+				if (block.idom != newIdom) {
+					block.idom = newIdom;
+					changed = true;
+				}
+			}
+		}
+
+		for (IRBasicBlock block : ir.rpo) {
+			if (block != ir.entryBlock) {
+				block.idom.dominated.add(block);
+			}
+		}
+	}
+
+	private void computeDominanceFrontiers() {
+		for (IRBasicBlock block : ir.rpo) {
+			int reachablePreds = 0;
+			for (IRBasicBlock pred : block.predecessors) {
+				if (pred.reachable) {
+					reachablePreds++;
+				}
+			}
+			if (reachablePreds < 2) {
+				continue;
+			}
+			for (IRBasicBlock pred : block.predecessors) {
+				if (!pred.reachable) {
+					continue;
+				}
+				IRBasicBlock runner = pred;
+				while (runner != block.idom) {
+					runner.dominanceFrontier.add(block);
+					runner = runner.idom;
+				}
+			}
+		}
+		// the trace entry is an implicit extra predecessor of the entry block, so
+		// anything that loops back to it has the entry block in its frontier
+		for (IRBasicBlock pred : ir.entryBlock.predecessors) {
+			IRBasicBlock runner = pred;
+			while (pred.reachable) {
+				runner.dominanceFrontier.add(ir.entryBlock);
+				if (runner == ir.entryBlock) {
+					break;
+				}
+				runner = runner.idom;
+			}
+		}
+	}
+
+	private void placePhis() {
+		Map<Integer,Set<IRBasicBlock>> defSites = new HashMap<Integer,Set<IRBasicBlock>>();
+		for (IRBasicBlock block : ir.rpo) {
+			for (IRInstruction inst : block.instructions) {
+				for (int reg : inst.defs) {
+					if (!defSites.containsKey(reg)) {
+						defSites.put(reg, new HashSet<IRBasicBlock>());
+					}
+					defSites.get(reg).add(block);
+				}
+			}
+		}
+
+		for (int reg : defSites.keySet()) {
+			Set<IRBasicBlock> hasPhi = new HashSet<IRBasicBlock>();
+			LinkedList<IRBasicBlock> worklist = new LinkedList<IRBasicBlock>(defSites.get(reg));
+			while (!worklist.isEmpty()) {
+				IRBasicBlock block = worklist.removeFirst();
+				for (IRBasicBlock frontier : block.dominanceFrontier) {
+					if (!hasPhi.contains(frontier)) {
+						hasPhi.add(frontier);
+						frontier.phis.add(new IRPhi(reg, frontier));
+						worklist.add(frontier);
+					}
+				}
+			}
+		}
+	}
+
+	private IRValue newValue(int register) {
+		Integer version = nextVersion.get(register);
+		if (version == null) {
+			version = 1;
+		}
+		nextVersion.put(register, version + 1);
+		IRValue value = new IRValue(register, version);
+		ir.values.add(value);
+		return value;
+	}
+
+	private IRValue currentValue(Map<Integer,Stack<IRValue>> stacks, int register) {
+		Stack<IRValue> stack = stacks.get(register);
+		if (stack == null || stack.isEmpty()) {
+			return ir.getEntryValue(register);
+		}
+		return stack.peek();
+	}
+
+	private void pushValue(Map<Integer,Stack<IRValue>> stacks, int register, IRValue value) {
+		if (!stacks.containsKey(register)) {
+			stacks.put(register, new Stack<IRValue>());
+		}
+		stacks.get(register).push(value);
+	}
+
+	private void renameRegisters() {
+		nextVersion = new HashMap<Integer,Integer>();
+		Map<Integer,Stack<IRValue>> stacks = new HashMap<Integer,Stack<IRValue>>();
+
+		// the entry block phis also merge in the values live on trace entry
+		for (IRPhi phi : ir.entryBlock.phis) {
+			phi.entryOperand = ir.getEntryValue(phi.register);
+			phi.entryOperand.phiUsers.add(phi);
+		}
+
+		// iterative walk down the dominator tree, for the same reason as computeReversePostorder.
+		// A block's values stay on the stacks until all the blocks it dominates are done.
+		Stack<IRBasicBlock> blockStack = new Stack<IRBasicBlock>();
+		Stack<Integer> childStack = new Stack<Integer>();
+		Stack<List<Integer>> pushedStack = new Stack<List<Integer>>();
+		blockStack.push(ir.entryBlock);
+		childStack.push(0);
+		pushedStack.push(renameBlock(ir.entryBlock, stacks));
+
+		while (!blockStack.isEmpty()) {
+			IRBasicBlock block = blockStack.peek();
+			int child = childStack.pop();
+			if (child < block.dominated.size()) {
+				childStack.push(child + 1);
+				IRBasicBlock dominated = block.dominated.get(child);
+				blockStack.push(dominated);
+				childStack.push(0);
+				pushedStack.push(renameBlock(dominated, stacks));
+			} else {
+				blockStack.pop();
+				for (int reg : pushedStack.pop()) {
+					stacks.get(reg).pop();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Name the values block defines and fill in its successors' phi operands. Returns the
+	 * registers it pushed values for.
+	 */
+	private List<Integer> renameBlock(IRBasicBlock block, Map<Integer,Stack<IRValue>> stacks) {
+		List<Integer> pushed = new LinkedList<Integer>();
+
+		for (IRPhi phi : block.phis) {
+			phi.result = newValue(phi.register);
+			phi.result.phi = phi;
+			pushValue(stacks, phi.register, phi.result);
+			pushed.add(phi.register);
+		}
+
+		for (IRInstruction inst : block.instructions) {
+			for (int reg : inst.uses) {
+				IRValue value = currentValue(stacks, reg);
+				inst.useValues.put(reg, value);
+				value.users.add(inst);
+			}
+			for (int reg : inst.defs) {
+				IRValue value = newValue(reg);
+				value.definition = inst;
+				inst.defValues.put(reg, value);
+				pushValue(stacks, reg, value);
+				pushed.add(reg);
+			}
+		}
+
+		for (IRBasicBlock successor : block.successors) {
+			int predIdx = successor.predecessors.indexOf(block);
+			for (IRPhi phi : successor.phis) {
+				IRValue value = currentValue(stacks, phi.register);
+				phi.operands[predIdx] = value;
+				value.phiUsers.add(phi);
+			}
+		}
+
+		return pushed;
+	}
+
+	private void findLoops() {
+		Map<IRBasicBlock,IRLoop> loopMap = new HashMap<IRBasicBlock,IRLoop>();
+
+		for (IRBasicBlock block : ir.rpo) {
+			for (IRBasicBlock successor : block.successors) {
+				if (!successor.dominates(block)) {
+					continue;
+				}
+				IRLoop loop = loopMap.get(successor);
+				if (loop == null) {
+					loop = new IRLoop(successor);
+					loopMap.put(successor, loop);
+					ir.loops.add(loop);
+				}
+				loop.latches.add(block);
+
+				// everything that reaches the latch without going through the header
+				LinkedList<IRBasicBlock> worklist = new LinkedList<IRBasicBlock>();
+				if (!loop.blocks.contains(block)) {
+					loop.blocks.add(block);
+					worklist.add(block);
+				}
+				while (!worklist.isEmpty()) {
+					IRBasicBlock current = worklist.removeFirst();
+					for (IRBasicBlock pred : current.predecessors) {
+						if (pred.reachable && !loop.blocks.contains(pred)) {
+							loop.blocks.add(pred);
+							worklist.add(pred);
+						}
+					}
+				}
+			}
+		}
+	}
+}
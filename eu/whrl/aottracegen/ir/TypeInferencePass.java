@@ -0,0 +1,299 @@
+package eu.whrl.aottracegen.ir;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jf.dexlib.Code.FiveRegisterInstruction;
+import org.jf.dexlib.Code.Instruction;
+import org.jf.dexlib.Code.OdexedInvokeInline;
+import org.jf.dexlib.Code.Opcode;
+import org.jf.dexlib.Code.SingleRegisterInstruction;
+import org.jf.dexlib.Code.ThreeRegisterInstruction;
+import org.jf.dexlib.Code.TwoRegisterInstruction;
+
+import eu.whrl.aottracegen.CodeGenContext;
+import eu.whrl.aottracegen.converters.BytecodeToCConverter;
+
+/*
+ * Works out the type of every SSA value from the opcodes that define and use it, and
+ * picks the vregs that only ever hold floats or doubles in this trace. The generator
+ * gives those vregs float/double locals instead of slots in the int v[] array, so clang
+ * keeps them in VFP registers rather than moving them through core registers.
+ *
+ * Moves and phis don't say anything about type, so the values they connect are put in
+ * one class and typed together. The vregs only get locals if they've been promoted, the
+ * value types are used by the KernelLoopPass either way.
+ */
+public class TypeInferencePass implements IPass {
+	private static final Pattern BINARY = Pattern.compile("(r?sub|add|mul|div|rem|and|or|xor|shl|shr|ushr)-(int|long|float|double)(/2addr|/lit8|/lit16)?");
+	private static final Pattern UNARY = Pattern.compile("(neg|not)-(int|long|float|double)");
+	private static final Pattern CONVERSION = Pattern.compile("(int|long|float|double)-to-(int|long|float|double|byte|char|short)");
+	private static final Pattern COMPARE = Pattern.compile("cmp[lg]?-(long|float|double)");
+
+	// union-find over values connected by moves and phis
+	private Map<IRValue,IRValue> parent;
+	private Map<IRValue,VregType> classTypes;
+
+	public String getName() {
+		return "type inference";
+	}
+
+	public void run(CodeGenContext context, TraceIR ir) {
+		parent = new HashMap<IRValue,IRValue>();
+		classTypes = new HashMap<IRValue,VregType>();
+
+		for (IRBasicBlock block : ir.blocks) {
+			for (IRPhi phi : block.phis) {
+				if (phi.entryOperand != null) {
+					union(phi.result, phi.entryOperand);
+				}
+				for (IRValue operand : phi.operands) {
+					if (operand != null) {
+						union(phi.result, operand);
+					}
+				}
+			}
+			for (IRInstruction inst : block.instructions) {
+				addMoves(inst);
+			}
+		}
+		for (IRInstruction inst : ir.instructions) {
+			addConstraints(inst);
+		}
+
+		for (IRValue value : ir.values) {
+			VregType type = classTypes.get(find(value));
+			value.type = (type == null) ? VregType.UNKNOWN : type;
+		}
+
+		if (ir.promoteRegisters) {
+			chooseRegisterTypes(ir);
+		}
+	}
+
+	/*
+	 * A vreg gets a float local if every value it holds in the trace is known to be a
+	 * float, and a double local if every value is known to be a double and the register
+	 * above it only ever holds their high halves. A value of unknown type could be any
+	 * width, so one of them is enough to leave the vreg in v[].
+	 */
+	private void chooseRegisterTypes(TraceIR ir) {
+		for (int reg = 0; reg < ir.numRegisters; reg++) {
+			if (ir.registerTypes.get(reg - 1) == VregType.DOUBLE) {
+				continue;
+			}
+			if (holdsOnly(ir.values, reg, VregType.FLOAT)) {
+				ir.registerTypes.put(reg, VregType.FLOAT);
+			} else if (reg + 1 < ir.numRegisters && holdsOnly(ir.values, reg, VregType.DOUBLE) &&
+					holdsOnly(ir.values, reg + 1, VregType.HIGH_HALF)) {
+				ir.registerTypes.put(reg, VregType.DOUBLE);
+			}
+		}
+	}
+
+	/*
+	 * Does reg hold at least one value, all of exactly this type?
+	 */
+	private boolean holdsOnly(List<IRValue> values, int reg, VregType type) {
+		boolean any = false;
+		for (IRValue value : values) {
+			if (value.register == reg) {
+				if (value.type != type) {
+					return false;
+				}
+				any = true;
+			}
+		}
+		return any;
+	}
+
+	private void addMoves(IRInstruction inst) {
+		switch (inst.instruction.opcode) {
+		case MOVE:
+		case MOVE_FROM16:
+		case MOVE_16:
+		case MOVE_OBJECT:
+		case MOVE_OBJECT_FROM16:
+		case MOVE_OBJECT_16: {
+			TwoRegisterInstruction move = (TwoRegisterInstruction) inst.instruction;
+			union(inst.getDef(move.getRegisterA()), inst.getUse(move.getRegisterB()));
+			break;
+		}
+		case MOVE_WIDE:
+		case MOVE_WIDE_FROM16:
+		case MOVE_WIDE_16: {
+			TwoRegisterInstruction move = (TwoRegisterInstruction) inst.instruction;
+			union(inst.getDef(move.getRegisterA()), inst.getUse(move.getRegisterB()));
+			union(inst.getDef(move.getRegisterA() + 1), inst.getUse(move.getRegisterB() + 1));
+			break;
+		}
+		default:
+			break;
+		}
+	}
+
+	private void addConstraints(IRInstruction inst) {
+		Instruction instruction = inst.instruction;
+		String name = instruction.opcode.name;
+		Matcher matcher;
+
+		if ((matcher = BINARY.matcher(name)).matches()) {
+			VregType type = getType(matcher.group(2));
+			boolean shift = matcher.group(1).matches("shl|shr|ushr");
+			String suffix = matcher.group(3);
+			TwoRegisterInstruction two = (TwoRegisterInstruction) instruction;
+			if (suffix == null) {
+				ThreeRegisterInstruction three = (ThreeRegisterInstruction) instruction;
+				def(inst, three.getRegisterA(), type);
+				use(inst, three.getRegisterB(), type);
+				use(inst, three.getRegisterC(), shift ? VregType.INT : type);
+			} else if (suffix.equals("/2addr")) {
+				def(inst, two.getRegisterA(), type);
+				use(inst, two.getRegisterA(), type);
+				use(inst, two.getRegisterB(), shift ? VregType.INT : type);
+			} else {
+				def(inst, two.getRegisterA(), type);
+				use(inst, two.getRegisterB(), type);
+			}
+		} else if ((matcher = UNARY.matcher(name)).matches()) {
+			VregType type = getType(matcher.group(2));
+			TwoRegisterInstruction two = (TwoRegisterInstruction) instruction;
+			def(inst, two.getRegisterA(), type);
+			use(inst, two.getRegisterB(), type);
+		} else if ((matcher = CONVERSION.matcher(name)).matches()) {
+			TwoRegisterInstruction two = (TwoRegisterInstruction) instruction;
+			def(inst, two.getRegisterA(), getType(matcher.group(2)));
+			use(inst, two.getRegisterB(), getType(matcher.group(1)));
+		} else if ((matcher = COMPARE.matcher(name)).matches()) {
+			ThreeRegisterInstruction three = (ThreeRegisterInstruction) instruction;
+			def(inst, three.getRegisterA(), VregType.INT);
+			use(inst, three.getRegisterB(), getType(matcher.group(1)));
+			use(inst, three.getRegisterC(), getType(matcher.group(1)));
+		} else if (RangeCheckEliminationPass.isArrayAccess(instruction)) {
+			ThreeRegisterInstruction three = (ThreeRegisterInstruction) instruction;
+			use(inst, three.getRegisterB(), VregType.REFERENCE);
+			use(inst, three.getRegisterC(), VregType.INT);
+		} else if (instruction.opcode == Opcode.ARRAY_LENGTH) {
+			TwoRegisterInstruction two = (TwoRegisterInstruction) instruction;
+			def(inst, two.getRegisterA(), VregType.INT);
+			use(inst, two.getRegisterB(), VregType.REFERENCE);
+		} else if (instruction.opcode == Opcode.EXECUTE_INLINE) {
+			addInlineConstraints(inst);
+		} else if (isOrderedIf(instruction.opcode)) {
+			if (instruction instanceof TwoRegisterInstruction) {
+				use(inst, ((TwoRegisterInstruction) instruction).getRegisterB(), VregType.INT);
+			}
+			use(inst, ((SingleRegisterInstruction) instruction).getRegisterA(), VregType.INT);
+		}
+
+		int nullChecked = NullCheckEliminationPass.getNullCheckedRegister(instruction);
+		if (nullChecked != -1) {
+			use(inst, nullChecked, VregType.REFERENCE);
+		} else if (instruction.opcode == Opcode.INSTANCE_OF) {
+			use(inst, ((TwoRegisterInstruction) instruction).getRegisterB(), VregType.REFERENCE);
+		}
+	}
+
+	/*
+	 * The FP intrinsics take their arguments in registers.
+	 */
+	private void addInlineConstraints(IRInstruction inst) {
+		FiveRegisterInstruction invoke = (FiveRegisterInstruction) inst.instruction;
+		switch (((OdexedInvokeInline) inst.instruction).getInlineIndex()) {
+		case BytecodeToCConverter.INLINE_MATH_ABS_FLOAT:
+		case BytecodeToCConverter.INLINE_STRICT_MATH_ABS_FLOAT:
+		case BytecodeToCConverter.INLINE_FLOAT_TO_INT_BITS:
+		case BytecodeToCConverter.INLINE_FLOAT_TO_RAW_INT_BITS:
+			use(inst, invoke.getRegisterD(), VregType.FLOAT);
+			break;
+		case BytecodeToCConverter.INLINE_MATH_ABS_DOUBLE:
+		case BytecodeToCConverter.INLINE_STRICT_MATH_ABS_DOUBLE:
+		case BytecodeToCConverter.INLINE_MATH_SQRT:
+		case BytecodeToCConverter.INLINE_STRICT_MATH_SQRT:
+		case BytecodeToCConverter.INLINE_MATH_COS:
+		case BytecodeToCConverter.INLINE_MATH_SIN:
+		case BytecodeToCConverter.INLINE_DOUBLE_TO_LONG_BITS:
+		case BytecodeToCConverter.INLINE_DOUBLE_TO_RAW_LONG_BITS:
+			use(inst, invoke.getRegisterD(), VregType.DOUBLE);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private boolean isOrderedIf(Opcode opcode) {
+		switch (opcode) {
+		case IF_LT:
+		case IF_GE:
+		case IF_GT:
+		case IF_LE:
+		case IF_LTZ:
+		case IF_GEZ:
+		case IF_GTZ:
+		case IF_LEZ:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private VregType getType(String name) {
+		if (name.equals("float")) {
+			return VregType.FLOAT;
+		}
+		if (name.equals("double")) {
+			return VregType.DOUBLE;
+		}
+		if (name.equals("long")) {
+			return VregType.LONG;
+		}
+		return VregType.INT;
+	}
+
+	private void def(IRInstruction inst, int reg, VregType type) {
+		constrain(inst.getDef(reg), type);
+		if (type.isWide()) {
+			constrain(inst.getDef(reg + 1), VregType.HIGH_HALF);
+		}
+	}
+
+	private void use(IRInstruction inst, int reg, VregType type) {
+		constrain(inst.getUse(reg), type);
+		if (type.isWide()) {
+			constrain(inst.getUse(reg + 1), VregType.HIGH_HALF);
+		}
+	}
+
+	private void constrain(IRValue value, VregType type) {
+		if (value == null) {
+			return;
+		}
+		IRValue root = find(value);
+		VregType current = classTypes.get(root);
+		classTypes.put(root, (current == null) ? type : current.merge(type));
+	}
+
+	private IRValue find(IRValue value) {
+		IRValue p = parent.get(value);
+		if (p == null) {
+			return value;
+		}
+		IRValue root = find(p);
+		parent.put(value, root);
+		return root;
+	}
+
+	private void union(IRValue a, IRValue b) {
+		if (a == null || b == null) {
+			return;
+		}
+		IRValue rootA = find(a);
+		IRValue rootB = find(b);
+		if (rootA != rootB) {
+			parent.put(rootB, rootA);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package eu.whrl.aottracegen.ir;
+
+/*
+ * What kind of value a vreg holds, as far as the TypeInferencePass can tell.
+ * HIGH_HALF is the upper register of a long or double.
+ */
+public enum VregType {
+	UNKNOWN,
+	INT,
+	FLOAT,
+	LONG,
+	DOUBLE,
+	REFERENCE,
+	HIGH_HALF,
+	CONFLICT;
+	
+	public VregType merge(VregType other) {
+		if (this == UNKNOWN) {
+			return other;
+		}
+		if (other == UNKNOWN || other == this) {
+			return this;
+		}
+		return CONFLICT;
+	}
+	
+	public boolean isWide() {
+		return this == LONG || this == DOUBLE;
+	}
+}